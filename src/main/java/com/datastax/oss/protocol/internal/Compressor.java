@@ -31,5 +31,84 @@ public interface Compressor<B> {
 
   B compress(B uncompressed);
 
+  /**
+   * The maximum size of the compressed form of {@code uncompressedLength} bytes, or -1 if this
+   * compressor does not support {@link #compressInto(Object, Object)}.
+   *
+   * <p>The default implementation returns -1.
+   */
+  default int maxCompressedLength(int uncompressedLength) {
+    return -1;
+  }
+
+  /**
+   * Compresses the readable bytes of {@code uncompressed}, and writes the result at the end of
+   * {@code dest}, which must have room for {@link #maxCompressedLength(int)} bytes.
+   *
+   * <p>This allows the frame codec to compress directly into the frame buffer, after the header.
+   * Only called if {@link #maxCompressedLength(int)} returns a non-negative value.
+   */
+  default void compressInto(B uncompressed, B dest) {
+    throw new UnsupportedOperationException(
+        getClass().getSimpleName() + " does not support compressInto");
+  }
+
   B decompress(B compressed);
+
+  /**
+   * The uncompressed length declared at the beginning of {@code compressed} (typically, the length
+   * prefix that precedes the compressed data), without consuming any bytes; or -1 if this
+   * compressor can't tell without decompressing.
+   *
+   * <p>This allows the frame codec to enforce its {@linkplain FrameCodec.Limits limits} before
+   * anything is allocated, and then, if the compressor {@linkplain #supportsDecompressInto()
+   * supports it}, to allocate an exactly-sized buffer itself (possibly from a pool) for {@link
+   * #decompressInto(Object, Object)}. The default implementation returns -1.
+   */
+  default int decompressedLength(B compressed) {
+    return -1;
+  }
+
+  /**
+   * Whether this compressor implements {@link #decompressInto(Object, Object)}.
+   *
+   * <p>The default implementation returns false.
+   */
+  default boolean supportsDecompressInto() {
+    return false;
+  }
+
+  /**
+   * Decompresses the readable bytes of {@code compressed}, and writes the result at the end of
+   * {@code dest}, which must have room for {@link #decompressedLength(Object)} bytes.
+   *
+   * <p>Only called if {@link #supportsDecompressInto()} returns true and {@link
+   * #decompressedLength(Object)} returns a non-negative value; otherwise the frame codec uses
+   * {@link #decompress(Object)}.
+   */
+  default void decompressInto(B compressed, B dest) {
+    throw new UnsupportedOperationException(
+        getClass().getSimpleName() + " does not support decompressInto");
+  }
+
+  /**
+   * Compresses without any framing (in particular, without prefixing the uncompressed length).
+   *
+   * <p>This is used for protocol v5 segments, where the uncompressed length is stored in the
+   * segment header. The default implementation throws {@link UnsupportedOperationException}.
+   */
+  default B compressWithoutLength(B uncompressed) {
+    throw new UnsupportedOperationException(
+        getClass().getSimpleName() + " does not support segment compression");
+  }
+
+  /**
+   * Decompresses data produced by {@link #compressWithoutLength(Object)}.
+   *
+   * <p>The default implementation throws {@link UnsupportedOperationException}.
+   */
+  default B decompressWithoutLength(B compressed, int uncompressedLength) {
+    throw new UnsupportedOperationException(
+        getClass().getSimpleName() + " does not support segment compression");
+  }
 }
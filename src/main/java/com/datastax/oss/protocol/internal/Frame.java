@@ -20,10 +20,14 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class Frame {
   public static final Map<String, ByteBuffer> NO_PAYLOAD = Collections.emptyMap();
 
+  private static final AtomicReferenceFieldUpdater<Frame, Runnable> ON_RELEASE_UPDATER =
+      AtomicReferenceFieldUpdater.newUpdater(Frame.class, Runnable.class, "onRelease");
+
   public static Frame forRequest(
       int protocolVersion,
       int streamId,
@@ -103,6 +107,8 @@ public class Frame {
   public final List<String> warnings;
   public final Message message;
 
+  private volatile Runnable onRelease;
+
   /**
    * This constructor is mainly intended for internal use by the frame codec. If you want to build
    * frames to pass for encoding, see {@link #forRequest(int, int, boolean, Map, Message)} or {@link
@@ -119,6 +125,32 @@ public class Frame {
       Map<String, ByteBuffer> customPayload,
       List<String> warnings,
       Message message) {
+    this(
+        protocolVersion,
+        beta,
+        streamId,
+        tracing,
+        tracingId,
+        size,
+        compressedSize,
+        customPayload,
+        warnings,
+        message,
+        null);
+  }
+
+  Frame(
+      int protocolVersion,
+      boolean beta,
+      int streamId,
+      boolean tracing,
+      UUID tracingId,
+      int size,
+      int compressedSize,
+      Map<String, ByteBuffer> customPayload,
+      List<String> warnings,
+      Message message,
+      Runnable onRelease) {
     ProtocolErrors.check(
         customPayload.isEmpty() || protocolVersion >= 4, "Custom payloads require protocol V4");
     this.protocolVersion = protocolVersion;
@@ -131,6 +163,27 @@ public class Frame {
     this.customPayload = customPayload;
     this.warnings = warnings;
     this.message = message;
+    this.onRelease = onRelease;
+  }
+
+  /**
+   * Releases the buffers that the frame codec allocated to decode this frame, and that it could not
+   * release itself.
+   *
+   * <p>This only matters in {@linkplain PrimitiveCodec#slicesBytes() slice mode}: the {@code
+   * [bytes]} values of a compressed frame are views of its decompressed body, which the codec
+   * therefore keeps until this method is called. Call it once the frame's values are not used
+   * anymore, so that the body can be recycled (for example by a pooling codec). The buffer that the
+   * frame was decoded from is not affected: it still belongs to the caller.
+   *
+   * <p>In all other cases, and for frames that were not decoded, this is a no-op. Subsequent calls
+   * are also no-ops.
+   */
+  public void release() {
+    Runnable toRun = ON_RELEASE_UPDATER.getAndSet(this, null);
+    if (toRun != null) {
+      toRun.run();
+    }
   }
 
   /** @deprecated maintain compatibility while Simulacron upgrades to the latest native-protocol. */
@@ -18,10 +18,14 @@ package com.datastax.oss.protocol.internal;
 import com.datastax.oss.protocol.internal.util.Flags;
 import com.datastax.oss.protocol.internal.util.IntIntMap;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
 
 public class FrameCodec<B> {
 
@@ -53,17 +57,58 @@ public class FrameCodec<B> {
         new ProtocolV5ServerCodecs());
   }
 
+  /** The offset of the body length in the header. */
+  private static final int LENGTH_OFFSET = 5;
+
   private final PrimitiveCodec<B> primitiveCodec;
   private final Compressor<B> compressor;
+  private final CompressionPolicy compressionPolicy;
+  private final Limits limits;
   private final IntIntMap<Message.Codec> encoders;
   private final IntIntMap<Message.Codec> decoders;
 
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder batchedFrames = new LongAdder();
+  private final LongAdder batchedBytes = new LongAdder();
+
   public FrameCodec(
       PrimitiveCodec<B> primitiveCodec, Compressor<B> compressor, CodecGroup... codecGroups) {
+    this(primitiveCodec, compressor, Limits.DEFAULT, codecGroups);
+  }
+
+  /**
+   * @param limits the limits that incoming frames are checked against, to protect against malformed
+   *     or hostile peers.
+   */
+  public FrameCodec(
+      PrimitiveCodec<B> primitiveCodec,
+      Compressor<B> compressor,
+      Limits limits,
+      CodecGroup... codecGroups) {
+    this(primitiveCodec, compressor, CompressionPolicy.ALWAYS, limits, codecGroups);
+  }
+
+  /**
+   * @param compressionPolicy which outgoing frames get compressed (only relevant if {@code
+   *     compressor} is not {@link Compressor#none()}).
+   * @param limits the limits that incoming frames are checked against, to protect against malformed
+   *     or hostile peers.
+   */
+  public FrameCodec(
+      PrimitiveCodec<B> primitiveCodec,
+      Compressor<B> compressor,
+      CompressionPolicy compressionPolicy,
+      Limits limits,
+      CodecGroup... codecGroups) {
     ProtocolErrors.check(primitiveCodec != null, "primitiveCodec can't be null");
     ProtocolErrors.check(compressor != null, "compressor can't be null, use Compressor.none()");
+    ProtocolErrors.check(
+        compressionPolicy != null, "compressionPolicy can't be null, use CompressionPolicy.ALWAYS");
+    ProtocolErrors.check(limits != null, "limits can't be null, use Limits.DEFAULT");
     this.primitiveCodec = primitiveCodec;
     this.compressor = compressor;
+    this.compressionPolicy = compressionPolicy;
+    this.limits = limits;
     IntIntMap.Builder<Message.Codec> encodersBuilder = IntIntMap.builder();
     IntIntMap.Builder<Message.Codec> decodersBuilder = IntIntMap.builder();
     CodecGroup.Registry registry =
@@ -94,9 +139,265 @@ public class FrameCodec<B> {
     this.decoders = decodersBuilder.build();
   }
 
+  /** The limits that incoming frames are checked against. */
+  public Limits getLimits() {
+    return limits;
+  }
+
   public B encode(Frame frame) {
+    Message.Codec encoder = encoderFor(frame);
+    int headerSize = headerEncodedSize();
+    int messageSize = uncompressedMessageSize(frame, encoder);
+    int flags = flagsFor(frame, messageSize);
+    if (Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED)) {
+      int maxCompressedSize = maxCompressedInPlaceLength(messageSize);
+      if (maxCompressedSize >= 0) {
+        // Compress directly after the header, and fill in the length afterwards
+        B dest = primitiveCodec.allocate(headerSize + maxCompressedSize);
+        encodeCompressed(frame, flags, encoder, messageSize, dest);
+        if (keepCompressed(frame, messageSize, primitiveCodec.sizeOf(dest) - headerSize)) {
+          return dest;
+        }
+        primitiveCodec.release(dest);
+      } else {
+        // We need to compress first in order to know the body size
+        B compressedMessage = compressMessage(frame, encoder, messageSize);
+        int compressedSize = primitiveCodec.sizeOf(compressedMessage);
+        if (keepCompressed(frame, messageSize, compressedSize)) {
+          B header = primitiveCodec.allocate(headerSize);
+          encodeHeader(frame, flags, compressedSize, header);
+          return primitiveCodec.concat(header, compressedMessage);
+        }
+        primitiveCodec.release(compressedMessage);
+      }
+      flags = Flags.remove(flags, ProtocolConstants.FrameFlag.COMPRESSED);
+    }
+    // No compression: we can optimize and do everything with a single allocation
+    B dest = primitiveCodec.allocate(headerSize + messageSize);
+    encodeHeader(frame, flags, messageSize, dest);
+    encodeMessage(frame, encoder, dest);
+    return dest;
+  }
+
+  /**
+   * Encodes a frame in a task of {@code executor}.
+   *
+   * <p>Compressing a large frame can take a while: this keeps the calling thread (typically an
+   * event loop that serves other connections) available in the meantime. In protocol v5, see also
+   * {@code SegmentCodec.encodeAsync}, which spreads the segments of a large frame over several
+   * tasks.
+   *
+   * @return a future that completes with the result of {@link #encode(Frame)}.
+   */
+  public CompletableFuture<B> encodeAsync(Frame frame, Executor executor) {
+    return CompletableFuture.supplyAsync(() -> encode(frame), executor);
+  }
+
+  /**
+   * Encodes a frame in a single pass over the message, without computing its size first: the
+   * message is written to a buffer that grows on demand, and the length in the header is
+   * backpatched once known.
+   *
+   * <p>This requires a primitive codec that allocates growable buffers and supports {@link
+   * PrimitiveCodec#updateInt(int, Object, int)}, such as a {@code CompositePrimitiveCodec} with a
+   * growth chunk size. It avoids traversing large messages (batches, rows...) twice.
+   */
+  public B encodeSinglePass(Frame frame) {
+    Message.Codec encoder = encoderFor(frame);
+    int flags = flagsFor(frame);
+    int headerSize = headerEncodedSize();
+    if (Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED)) {
+      B uncompressedMessage = primitiveCodec.allocate(0);
+      encodeMessage(frame, encoder, uncompressedMessage);
+      int messageSize = primitiveCodec.sizeOf(uncompressedMessage);
+      flags = flagsFor(frame, messageSize);
+      B header = primitiveCodec.allocate(headerSize);
+      if (!Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED)) {
+        encodeHeader(frame, flags, messageSize, header);
+        return primitiveCodec.concat(header, uncompressedMessage);
+      }
+      B compressedMessage = compress(uncompressedMessage);
+      int compressedSize = primitiveCodec.sizeOf(compressedMessage);
+      if (keepCompressed(frame, messageSize, compressedSize)) {
+        encodeHeader(frame, flags, compressedSize, header);
+        return primitiveCodec.concat(header, compressedMessage);
+      }
+      primitiveCodec.release(compressedMessage);
+      primitiveCodec.release(header);
+      flags = Flags.remove(flags, ProtocolConstants.FrameFlag.COMPRESSED);
+    }
+    B dest = primitiveCodec.allocate(headerSize);
+    encodeHeader(frame, flags, 0, dest);
+    encodeMessage(frame, encoder, dest);
+    primitiveCodec.updateInt(primitiveCodec.sizeOf(dest) - headerSize, dest, LENGTH_OFFSET);
+    return dest;
+  }
+
+  /**
+   * Encodes a frame at the end of an existing buffer, for example a per-connection buffer that
+   * accumulates all the frames of a flush.
+   *
+   * <p>{@code dest} must have enough room for the frame. If the frame is not compressed, nothing is
+   * allocated; otherwise, the body is compressed in a temporary buffer that is released after being
+   * copied. If the caller needs the size of a compressed frame first, {@link #prepare(Frame)}
+   * avoids compressing it twice.
+   */
+  public void encodeInto(Frame frame, B dest) {
+    prepare(frame).encodeInto(dest);
+  }
+
+  /**
+   * Prepares a frame to be written with {@link PreparedFrame#encodeInto(Object)}, once its exact
+   * {@linkplain PreparedFrame#encodedSize() size} is known.
+   *
+   * <p>If the frame is compressed, its body is encoded and compressed now, and kept until the frame
+   * is written or {@linkplain PreparedFrame#release() released}. Otherwise, nothing is encoded or
+   * allocated until the frame is written.
+   */
+  public PreparedFrame<B> prepare(Frame frame) {
+    Message.Codec encoder = encoderFor(frame);
+    int messageSize = uncompressedMessageSize(frame, encoder);
+    int flags = flagsFor(frame, messageSize);
+    B compressedMessage = null;
+    if (Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED)) {
+      compressedMessage = compressMessage(frame, encoder, messageSize);
+      int compressedSize = primitiveCodec.sizeOf(compressedMessage);
+      if (keepCompressed(frame, messageSize, compressedSize)) {
+        messageSize = compressedSize;
+      } else {
+        primitiveCodec.release(compressedMessage);
+        compressedMessage = null;
+        flags = Flags.remove(flags, ProtocolConstants.FrameFlag.COMPRESSED);
+      }
+    }
+    return new PreparedFrame<>(this, frame, encoder, flags, messageSize, compressedMessage);
+  }
+
+  /**
+   * The number of bytes that {@link #encode(Frame)} or {@link #encodeInto(Frame, Object)} will
+   * produce for a frame (header included).
+   *
+   * <p>This is cheap if the frame is not compressed. Otherwise the size of the body is only known
+   * after compression, so this method compresses it (and discards the result): callers that use it
+   * to size a destination buffer should use {@link #prepare(Frame)} instead.
+   *
+   * @throws IllegalArgumentException if the frame is compressed, and its message can't be encoded
+   *     more than once (see {@code AuthResponse}): use {@link #prepare(Frame)}.
+   */
+  public int encodedSize(Frame frame) {
+    Message.Codec encoder = encoderFor(frame);
+    int messageSize = uncompressedMessageSize(frame, encoder);
+    int flags = flagsFor(frame, messageSize);
+    if (!Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED)) {
+      return headerEncodedSize() + messageSize;
+    }
+    ProtocolErrors.check(
+        frame.message.isEncodedSizeStable(),
+        "Can't compute the compressed size of %s without encoding it, use prepare() instead",
+        frame.message);
+    PreparedFrame<B> prepared = prepare(frame);
+    prepared.release();
+    return prepared.encodedSize();
+  }
+
+  /**
+   * Encodes several frames back-to-back into a single buffer, for example all the frames of an
+   * event loop flush.
+   *
+   * <p>All sizes are computed in a first pass, so that the result is allocated only once.
+   * Compression still applies to each frame individually: if the compressor supports {@link
+   * Compressor#compressInto(Object, Object)} (and the primitive codec {@linkplain
+   * PrimitiveCodec#supportsUpdates() supports updates}), the worst-case size is reserved and frames
+   * are compressed in place; otherwise, they are compressed during the first pass, since it
+   * determines their size.
+   *
+   * @see #batchCount()
+   * @see #batchedFrameCount()
+   * @see #batchedByteCount()
+   */
+  public B encodeBatch(List<Frame> frames) {
+    int count = frames.size();
+    Message.Codec[] frameEncoders = new Message.Codec[count];
+    int[] frameFlags = new int[count];
+    int[] messageSizes = new int[count];
+    List<B> compressedMessages = null;
+    int totalSize = 0;
+    for (int i = 0; i < count; i++) {
+      Frame frame = frames.get(i);
+      Message.Codec encoder = encoderFor(frame);
+      int messageSize = uncompressedMessageSize(frame, encoder);
+      int flags = flagsFor(frame, messageSize);
+      if (Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED)) {
+        int maxCompressedSize = maxCompressedInPlaceLength(messageSize);
+        // In-place compression can't fall back, since the frame's room is reserved in advance
+        if (maxCompressedSize >= 0 && !compressionPolicy.onlyIfSmaller) {
+          // Will be compressed in place during the second pass: reserve the worst case
+          frameEncoders[i] = encoder;
+          frameFlags[i] = flags;
+          messageSizes[i] = messageSize;
+          totalSize += headerEncodedSize() + maxCompressedSize;
+          continue;
+        }
+        if (compressedMessages == null) {
+          compressedMessages = new ArrayList<>(Collections.nCopies(count, null));
+        }
+        B compressedMessage = compressMessage(frame, encoder, messageSize);
+        int compressedSize = primitiveCodec.sizeOf(compressedMessage);
+        if (keepCompressed(frame, messageSize, compressedSize)) {
+          compressedMessages.set(i, compressedMessage);
+          messageSize = compressedSize;
+        } else {
+          primitiveCodec.release(compressedMessage);
+          flags = Flags.remove(flags, ProtocolConstants.FrameFlag.COMPRESSED);
+        }
+      }
+      frameEncoders[i] = encoder;
+      frameFlags[i] = flags;
+      messageSizes[i] = messageSize;
+      totalSize += headerEncodedSize() + messageSize;
+    }
+
+    B dest = primitiveCodec.allocate(totalSize);
+    for (int i = 0; i < count; i++) {
+      Frame frame = frames.get(i);
+      B compressedMessage = (compressedMessages == null) ? null : compressedMessages.get(i);
+      if (compressedMessage == null) {
+        if (Flags.contains(frameFlags[i], ProtocolConstants.FrameFlag.COMPRESSED)) {
+          encodeCompressed(frame, frameFlags[i], frameEncoders[i], messageSizes[i], dest);
+        } else {
+          encodeHeader(frame, frameFlags[i], messageSizes[i], dest);
+          encodeMessage(frame, frameEncoders[i], dest);
+        }
+      } else {
+        encodeHeader(frame, frameFlags[i], messageSizes[i], dest);
+        primitiveCodec.writeRaw(compressedMessage, dest);
+        primitiveCodec.release(compressedMessage);
+      }
+    }
+
+    batches.increment();
+    batchedFrames.add(count);
+    batchedBytes.add(primitiveCodec.sizeOf(dest));
+    return dest;
+  }
+
+  /** The number of calls to {@link #encodeBatch(List)} since this codec was created. */
+  public long batchCount() {
+    return batches.sum();
+  }
+
+  /** The total number of frames encoded by {@link #encodeBatch(List)}. */
+  public long batchedFrameCount() {
+    return batchedFrames.sum();
+  }
+
+  /** The total number of bytes produced by {@link #encodeBatch(List)}. */
+  public long batchedByteCount() {
+    return batchedBytes.sum();
+  }
+
+  private Message.Codec encoderFor(Frame frame) {
     int protocolVersion = frame.protocolVersion;
-    Message request = frame.message;
 
     ProtocolErrors.check(
         protocolVersion >= ProtocolConstants.Version.V4 || frame.customPayload.isEmpty(),
@@ -107,13 +408,17 @@ public class FrameCodec<B> {
         "Warnings are not supported in protocol v%d",
         protocolVersion);
 
-    int opcode = request.opcode;
+    int opcode = frame.message.opcode;
     Message.Codec encoder = encoders.get(protocolVersion, opcode);
     ProtocolErrors.check(
         encoder != null, "Unsupported opcode %s in protocol v%d", opcode, protocolVersion);
+    return encoder;
+  }
 
+  private int flagsFor(Frame frame) {
     int flags = 0;
-    if (!(compressor instanceof NoopCompressor) && opcode != ProtocolConstants.Opcode.STARTUP) {
+    if (!(compressor instanceof NoopCompressor)
+        && frame.message.opcode != ProtocolConstants.Opcode.STARTUP) {
       flags = Flags.add(flags, ProtocolConstants.FrameFlag.COMPRESSED);
     }
     if (frame.tracing || frame.tracingId != null) {
@@ -125,59 +430,99 @@ public class FrameCodec<B> {
     if (!frame.warnings.isEmpty()) {
       flags = Flags.add(flags, ProtocolConstants.FrameFlag.WARNING);
     }
-    if (protocolVersion == ProtocolConstants.Version.BETA) {
+    if (frame.protocolVersion == ProtocolConstants.Version.BETA) {
       flags = Flags.add(flags, ProtocolConstants.FrameFlag.USE_BETA);
     }
+    return flags;
+  }
 
-    int headerSize = headerEncodedSize();
-    if (!Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED)) {
-      // No compression: we can optimize and do everything with a single allocation
-      int messageSize = encoder.encodedSize(request);
-      if (frame.tracingId != null) {
-        messageSize += PrimitiveSizes.UUID;
-      }
-      if (!frame.customPayload.isEmpty()) {
-        messageSize += PrimitiveSizes.sizeOfBytesMap(frame.customPayload);
-      }
-      if (!frame.warnings.isEmpty()) {
-        messageSize += PrimitiveSizes.sizeOfStringList(frame.warnings);
-      }
-      B dest = primitiveCodec.allocate(headerSize + messageSize);
-      encodeHeader(frame, flags, messageSize, dest);
-      encodeTracingId(frame.tracingId, dest);
-      encodeCustomPayload(frame.customPayload, dest);
-      encodeWarnings(frame.warnings, dest);
-      encoder.encode(dest, request, primitiveCodec);
-      return dest;
-    } else {
-      // We need to compress first in order to know the body size
-      // 1) Encode uncompressed message
-      int uncompressedMessageSize = encoder.encodedSize(request);
-      if (frame.tracingId != null) {
-        uncompressedMessageSize += PrimitiveSizes.UUID;
-      }
-      if (!frame.customPayload.isEmpty()) {
-        uncompressedMessageSize += PrimitiveSizes.sizeOfBytesMap(frame.customPayload);
-      }
-      if (!frame.warnings.isEmpty()) {
-        uncompressedMessageSize += PrimitiveSizes.sizeOfStringList(frame.warnings);
-      }
-      B uncompressedMessage = primitiveCodec.allocate(uncompressedMessageSize);
-      encodeTracingId(frame.tracingId, uncompressedMessage);
-      encodeCustomPayload(frame.customPayload, uncompressedMessage);
-      encodeWarnings(frame.warnings, uncompressedMessage);
-      encoder.encode(uncompressedMessage, request, primitiveCodec);
-
-      // 2) Compress and measure size, discard uncompressed buffer
-      B compressedMessage = compressor.compress(uncompressedMessage);
-      primitiveCodec.release(uncompressedMessage);
-      int messageSize = primitiveCodec.sizeOf(compressedMessage);
+  /**
+   * The flags for a frame whose uncompressed body has the given size: same as {@link
+   * #flagsFor(Frame)}, except that bodies below the compression policy's threshold are not
+   * compressed.
+   */
+  private int flagsFor(Frame frame, int messageSize) {
+    int flags = flagsFor(frame);
+    if (messageSize < compressionPolicy.minBodySize) {
+      flags = Flags.remove(flags, ProtocolConstants.FrameFlag.COMPRESSED);
+    }
+    return flags;
+  }
 
-      // 3) Encode final frame
-      B header = primitiveCodec.allocate(headerSize);
-      encodeHeader(frame, flags, messageSize, header);
-      return primitiveCodec.concat(header, compressedMessage);
+  /**
+   * Whether a compressed body should be sent, or replaced by the uncompressed one (which requires
+   * encoding the message again).
+   */
+  private boolean keepCompressed(Frame frame, int uncompressedSize, int compressedSize) {
+    return !compressionPolicy.onlyIfSmaller
+        || compressedSize < uncompressedSize
+        // Messages that change when encoded (see AuthResponse) can't be encoded a second time
+        || !frame.message.isEncodedSizeStable();
+  }
+
+  /**
+   * The room to reserve to compress a body directly after its header, or -1 if that is not possible
+   * (either the compressor does not support it, or the primitive codec can't backpatch the length).
+   */
+  private int maxCompressedInPlaceLength(int uncompressedMessageSize) {
+    return primitiveCodec.supportsUpdates()
+        ? compressor.maxCompressedLength(uncompressedMessageSize)
+        : -1;
+  }
+
+  private static int uncompressedMessageSize(Frame frame, Message.Codec encoder) {
+    int messageSize = frame.message.encodedSize(encoder);
+    if (frame.tracingId != null) {
+      messageSize += PrimitiveSizes.UUID;
     }
+    if (!frame.customPayload.isEmpty()) {
+      messageSize += PrimitiveSizes.sizeOfBytesMap(frame.customPayload);
+    }
+    if (!frame.warnings.isEmpty()) {
+      messageSize += PrimitiveSizes.sizeOfStringList(frame.warnings);
+    }
+    return messageSize;
+  }
+
+  /** Encodes the frame body (everything after the header), uncompressed. */
+  private void encodeMessage(Frame frame, Message.Codec encoder, B dest) {
+    encodeTracingId(frame.tracingId, dest);
+    encodeCustomPayload(frame.customPayload, dest);
+    encodeWarnings(frame.warnings, dest);
+    encoder.encode(dest, frame.message, primitiveCodec);
+  }
+
+  /**
+   * Encodes a compressed frame at the end of {@code dest}, with the compressor writing directly
+   * after the header; the length in the header is backpatched once known.
+   */
+  private void encodeCompressed(
+      Frame frame, int flags, Message.Codec encoder, int uncompressedMessageSize, B dest) {
+    int headerIndex = primitiveCodec.sizeOf(dest);
+    encodeHeader(frame, flags, 0, dest);
+
+    B uncompressedMessage = primitiveCodec.allocate(uncompressedMessageSize);
+    encodeMessage(frame, encoder, uncompressedMessage);
+    compressor.compressInto(uncompressedMessage, dest);
+    primitiveCodec.release(uncompressedMessage);
+
+    int messageSize = primitiveCodec.sizeOf(dest) - headerIndex - headerEncodedSize();
+    primitiveCodec.updateInt(messageSize, dest, headerIndex + LENGTH_OFFSET);
+  }
+
+  private B compressMessage(Frame frame, Message.Codec encoder, int uncompressedMessageSize) {
+    B uncompressedMessage = primitiveCodec.allocate(uncompressedMessageSize);
+    encodeMessage(frame, encoder, uncompressedMessage);
+    return compress(uncompressedMessage);
+  }
+
+  /** Compresses a message, and releases the uncompressed buffer. */
+  private B compress(B uncompressedMessage) {
+    B compressedMessage = compressor.compress(uncompressedMessage);
+    if (compressedMessage != uncompressedMessage) {
+      primitiveCodec.release(uncompressedMessage);
+    }
+    return compressedMessage;
   }
 
   public static int headerEncodedSize() {
@@ -185,16 +530,34 @@ public class FrameCodec<B> {
   }
 
   private void encodeHeader(Frame frame, int flags, int messageSize, B dest) {
-    int versionAndDirection = frame.protocolVersion;
-    if (frame.message.isResponse) {
+    encodeHeader(
+        frame.protocolVersion,
+        frame.message.isResponse,
+        flags,
+        frame.streamId,
+        frame.message.opcode,
+        messageSize,
+        dest);
+  }
+
+  private void encodeHeader(
+      int protocolVersion,
+      boolean isResponse,
+      int flags,
+      int streamId,
+      int opcode,
+      int messageSize,
+      B dest) {
+    int versionAndDirection = protocolVersion;
+    if (isResponse) {
       versionAndDirection |= 0b1000_0000;
     }
     primitiveCodec.writeByte((byte) versionAndDirection, dest);
     primitiveCodec.writeByte((byte) flags, dest);
     primitiveCodec.writeUnsignedShort(
-        frame.streamId & 0xFFFF, // see readStreamId()
+        streamId & 0xFFFF, // see readStreamId()
         dest);
-    primitiveCodec.writeByte((byte) frame.message.opcode, dest);
+    primitiveCodec.writeByte((byte) opcode, dest);
     primitiveCodec.writeInt(messageSize, dest);
   }
 
@@ -217,29 +580,134 @@ public class FrameCodec<B> {
   }
 
   public Frame decode(B source) {
+    return decode(source, true, true);
+  }
+
+  /**
+   * Decodes a frame, optionally skipping some of its contents without materializing them.
+   *
+   * @param withCustomPayload if false, the frame's custom payload (if any) is skipped, and the
+   *     resulting frame has an empty payload.
+   * @param withWarnings if false, the frame's warnings (if any) are skipped, and the resulting
+   *     frame has no warnings.
+   */
+  public Frame decode(B source, boolean withCustomPayload, boolean withWarnings) {
+    return decodeBody(decodeHeader(source), source, withCustomPayload, withWarnings);
+  }
+
+  /**
+   * Decodes the header of a frame, and checks that the rest of {@code source} matches the declared
+   * length. The body is not touched; it is returned as a {@link LazyFrame} that will decode it on
+   * demand.
+   */
+  public LazyFrame<B> decodeLazily(B source) {
+    FrameHeader header = decodeHeader(source);
+    checkLength(header, source);
+    return new LazyFrame<>(this, header, source);
+  }
+
+  /**
+   * Re-encodes a frame with a different stream id, without decoding, decompressing or copying its
+   * body: version, flags, opcode and body bytes are forwarded untouched. This is intended for
+   * proxies that multiplex client connections onto upstream connections.
+   *
+   * <p>This takes ownership of the frame's body, which can't be {@linkplain LazyFrame#frame()
+   * decoded} afterwards. Note that the result may reuse, and modify, the buffer that was passed to
+   * {@link #decodeLazily(Object)}: if the primitive codec can {@linkplain
+   * PrimitiveCodec#unread(Object, int) unread} the original header that precedes the body, the
+   * stream id is patched in place and that buffer is returned, without any allocation. Otherwise, a
+   * new header is concatenated with the body, which can also write into the source (see {@link
+   * PrimitiveCodec#concat(Object, Object)}).
+   *
+   * @param newStreamId the new stream id. Stream ids are signed shorts, so it must be between
+   *     {@link Short#MIN_VALUE} and {@link Short#MAX_VALUE} (negative ids are reserved for server
+   *     events).
+   */
+  public B forward(LazyFrame<B> frame, int newStreamId) {
+    ProtocolErrors.check(
+        newStreamId >= Short.MIN_VALUE && newStreamId <= Short.MAX_VALUE,
+        "Invalid stream id %d",
+        newStreamId);
+    FrameHeader header = frame.header();
+    B body = frame.detachBody();
+    if (primitiveCodec.supportsUpdates() && primitiveCodec.unread(body, headerEncodedSize())) {
+      // The stream id is in the first 4 bytes, along with the version and flags (see encodeHeader)
+      int versionAndDirection = header.protocolVersion;
+      if (header.isResponse) {
+        versionAndDirection |= 0b1000_0000;
+      }
+      primitiveCodec.updateInt(
+          (versionAndDirection << 24) | ((header.flags & 0xFF) << 16) | (newStreamId & 0xFFFF),
+          body,
+          0);
+      return body;
+    }
+    B newHeader = primitiveCodec.allocate(headerEncodedSize());
+    encodeHeader(
+        header.protocolVersion,
+        header.isResponse,
+        header.flags,
+        newStreamId,
+        header.opcode,
+        header.length,
+        newHeader);
+    return primitiveCodec.concat(newHeader, body);
+  }
+
+  /**
+   * Decodes the header at the beginning of {@code source}, which gets consumed (only the {@link
+   * #headerEncodedSize()} first bytes are read).
+   *
+   * @throws IllegalArgumentException if the declared length is negative or exceeds {@link
+   *     Limits#maxFrameLength}. This happens before the body is read, so callers that have only
+   *     received the header can use this method to reject a frame before buffering it.
+   */
+  public FrameHeader decodeHeader(B source) {
     int directionAndVersion = primitiveCodec.readByte(source);
     boolean isResponse = (directionAndVersion & 0b1000_0000) == 0b1000_0000;
     int protocolVersion = directionAndVersion & 0b0111_1111;
     int flags = primitiveCodec.readByte(source);
-    boolean beta = Flags.contains(flags, ProtocolConstants.FrameFlag.USE_BETA);
     int streamId = readStreamId(source);
     int opcode = primitiveCodec.readByte(source);
     int length = primitiveCodec.readInt(source);
-
-    int actualLength = primitiveCodec.sizeOf(source);
     ProtocolErrors.check(
-        length == actualLength,
-        "Declared length in header (%d) does not match actual length (%d)",
+        length >= 0 && length <= limits.maxFrameLength - headerEncodedSize(),
+        "Invalid frame length %d (max frame length is %d, including the header)",
         length,
-        actualLength);
+        limits.maxFrameLength);
+    return new FrameHeader(protocolVersion, isResponse, flags, streamId, opcode, length);
+  }
+
+  Frame decodeBody(FrameHeader header, B source, boolean withCustomPayload, boolean withWarnings) {
+    checkLength(header, source);
+    boolean isResponse = header.isResponse;
+    int protocolVersion = header.protocolVersion;
+    int flags = header.flags;
+    boolean beta = header.isBeta();
+    int streamId = header.streamId;
+    int opcode = header.opcode;
+    int length = header.length;
 
     boolean decompressed = false;
     if (Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED)) {
-      B newSource = compressor.decompress(source);
-      // if decompress returns a different object, track this so we know to release it when done.
-      if (newSource != source) {
+      int declaredLength = compressor.decompressedLength(source);
+      if (declaredLength >= 0) {
+        checkDecompressedLength(declaredLength, length);
+      }
+      if (declaredLength >= 0 && compressor.supportsDecompressInto()) {
+        B newSource = primitiveCodec.allocate(declaredLength);
+        compressor.decompressInto(source, newSource);
         decompressed = true;
         source = newSource;
+      } else {
+        B newSource = compressor.decompress(source);
+        // if decompress returns a different object, track this so we know to release it when done.
+        if (newSource != source) {
+          decompressed = true;
+          source = newSource;
+          // Too late to avoid the allocation, but at least don't decode the message
+          checkDecompressedLength(primitiveCodec.sizeOf(source), length);
+        }
       }
     }
 
@@ -256,23 +724,42 @@ public class FrameCodec<B> {
     boolean isTracing = Flags.contains(flags, ProtocolConstants.FrameFlag.TRACING);
     UUID tracingId = (isResponse && isTracing) ? primitiveCodec.readUuid(source) : null;
 
-    Map<String, ByteBuffer> customPayload =
-        (Flags.contains(flags, ProtocolConstants.FrameFlag.CUSTOM_PAYLOAD))
-            ? primitiveCodec.readBytesMap(source)
-            : Collections.emptyMap();
+    Map<String, ByteBuffer> customPayload = Collections.emptyMap();
+    if (Flags.contains(flags, ProtocolConstants.FrameFlag.CUSTOM_PAYLOAD)) {
+      if (withCustomPayload) {
+        customPayload = primitiveCodec.readBytesMap(source);
+      } else {
+        primitiveCodec.skipBytesMap(source);
+      }
+    }
 
-    List<String> warnings =
-        (isResponse && Flags.contains(flags, ProtocolConstants.FrameFlag.WARNING))
-            ? primitiveCodec.readStringList(source)
-            : Collections.emptyList();
+    List<String> warnings = Collections.emptyList();
+    if (isResponse && Flags.contains(flags, ProtocolConstants.FrameFlag.WARNING)) {
+      if (withWarnings) {
+        warnings =
+            primitiveCodec.decodesLazily()
+                ? primitiveCodec.readLazyStringList(source)
+                : primitiveCodec.readStringList(source);
+      } else {
+        primitiveCodec.skipStringList(source);
+      }
+    }
 
     Message.Codec decoder = decoders.get(protocolVersion, opcode);
     ProtocolErrors.check(
         decoder != null, "Unsupported request opcode: %s in protocol %d", opcode, protocolVersion);
     Message response = decoder.decode(source, primitiveCodec);
 
+    // In slice mode, the decoded values might point into the decompressed buffer: it can only be
+    // released with the frame.
+    Runnable onRelease = null;
     if (decompressed) {
-      primitiveCodec.release(source);
+      if (primitiveCodec.slicesBytes()) {
+        B decompressedSource = source;
+        onRelease = () -> primitiveCodec.release(decompressedSource);
+      } else {
+        primitiveCodec.release(source);
+      }
     }
 
     return new Frame(
@@ -285,7 +772,32 @@ public class FrameCodec<B> {
         compressedFrameSize,
         customPayload,
         warnings,
-        response);
+        response,
+        onRelease);
+  }
+
+  private void checkLength(FrameHeader header, B source) {
+    int actualLength = primitiveCodec.sizeOf(source);
+    ProtocolErrors.check(
+        header.length == actualLength,
+        "Declared length in header (%d) does not match actual length (%d)",
+        header.length,
+        actualLength);
+  }
+
+  private void checkDecompressedLength(int decompressedLength, int compressedLength) {
+    ProtocolErrors.check(
+        decompressedLength >= 0 && decompressedLength <= limits.maxDecompressedLength,
+        "Invalid decompressed length %d (max is %d)",
+        decompressedLength,
+        limits.maxDecompressedLength);
+    ProtocolErrors.check(
+        limits.maxCompressionRatio <= 0
+            || decompressedLength <= (long) compressedLength * limits.maxCompressionRatio,
+        "Compression ratio of frame body exceeds %d (%d bytes decompress to %d)",
+        limits.maxCompressionRatio,
+        compressedLength,
+        decompressedLength);
   }
 
   private int readStreamId(B source) {
@@ -296,6 +808,67 @@ public class FrameCodec<B> {
     return (short) id;
   }
 
+  /**
+   * A frame whose size is known, ready to be written at the end of an existing buffer.
+   *
+   * @see #prepare(Frame)
+   */
+  public static class PreparedFrame<B> {
+    private final FrameCodec<B> codec;
+    private final Frame frame;
+    private final Message.Codec encoder;
+    private final int flags;
+    private final int messageSize;
+    private B compressedMessage;
+    private boolean done;
+
+    private PreparedFrame(
+        FrameCodec<B> codec,
+        Frame frame,
+        Message.Codec encoder,
+        int flags,
+        int messageSize,
+        B compressedMessage) {
+      this.codec = codec;
+      this.frame = frame;
+      this.encoder = encoder;
+      this.flags = flags;
+      this.messageSize = messageSize;
+      this.compressedMessage = compressedMessage;
+    }
+
+    /** The number of bytes that {@link #encodeInto(Object)} will write (header included). */
+    public int encodedSize() {
+      return headerEncodedSize() + messageSize;
+    }
+
+    /**
+     * Writes the frame at the end of {@code dest}, which must have room for {@link #encodedSize()}
+     * bytes. This can only be done once.
+     */
+    public void encodeInto(B dest) {
+      ProtocolErrors.check(!done, "This frame was already written or released");
+      done = true;
+      codec.encodeHeader(frame, flags, messageSize, dest);
+      if (compressedMessage == null) {
+        codec.encodeMessage(frame, encoder, dest);
+      } else {
+        codec.primitiveCodec.writeRaw(compressedMessage, dest);
+        codec.primitiveCodec.release(compressedMessage);
+        compressedMessage = null;
+      }
+    }
+
+    /** Releases the compressed body, if the frame is not going to be written after all. */
+    public void release() {
+      done = true;
+      if (compressedMessage != null) {
+        codec.primitiveCodec.release(compressedMessage);
+        compressedMessage = null;
+      }
+    }
+  }
+
   /**
    * Intermediary class to pass request/response codecs to the frame codec.
    *
@@ -320,4 +893,75 @@ public class FrameCodec<B> {
 
     void registerCodecs(Registry registry);
   }
+
+  /**
+   * Decides which outgoing frames get compressed, when the frame codec has a compressor.
+   *
+   * <p>In protocol v3 and v4, compression is indicated per frame with the {@code COMPRESSED} flag,
+   * and the decoder only decompresses the frames that have it: frames with small bodies, that
+   * compress poorly, can be sent uncompressed even if compression was negotiated. {@code STARTUP}
+   * messages are never compressed, regardless of the policy.
+   */
+  public static class CompressionPolicy {
+
+    /** Compresses every frame. */
+    public static final CompressionPolicy ALWAYS = new CompressionPolicy(0, false);
+
+    /** The minimum size of an uncompressed frame body for compression to be attempted. */
+    public final int minBodySize;
+
+    /**
+     * Whether to send the uncompressed body when compressing did not make it smaller. This costs a
+     * second encoding of the message in that case.
+     */
+    public final boolean onlyIfSmaller;
+
+    public CompressionPolicy(int minBodySize, boolean onlyIfSmaller) {
+      ProtocolErrors.check(minBodySize >= 0, "Invalid minBodySize %d", minBodySize);
+      this.minBodySize = minBodySize;
+      this.onlyIfSmaller = onlyIfSmaller;
+    }
+  }
+
+  /**
+   * Limits that incoming frames are checked against, before their contents are allocated.
+   *
+   * <p>Decompression limits are checked against the length declared in the compressed data, if the
+   * compressor {@linkplain Compressor#decompressedLength(Object) exposes it}; otherwise, they can
+   * only be checked after decompressing.
+   */
+  public static class Limits {
+
+    /**
+     * 256 MB for both the frame (header included) and the decompressed body, no compression ratio
+     * limit.
+     */
+    public static final Limits DEFAULT = new Limits(256 * 1024 * 1024, 256 * 1024 * 1024, 0);
+
+    /** The maximum length of a frame, header included. */
+    public final int maxFrameLength;
+
+    /** The maximum length of a frame body, once decompressed. */
+    public final int maxDecompressedLength;
+
+    /**
+     * The maximum ratio between the decompressed and compressed lengths of a frame body, or 0 for
+     * no limit.
+     */
+    public final int maxCompressionRatio;
+
+    public Limits(int maxFrameLength, int maxDecompressedLength, int maxCompressionRatio) {
+      ProtocolErrors.check(
+          maxFrameLength >= headerEncodedSize(),
+          "maxFrameLength must be at least %d",
+          headerEncodedSize());
+      ProtocolErrors.check(
+          maxDecompressedLength >= 0, "Invalid maxDecompressedLength %d", maxDecompressedLength);
+      ProtocolErrors.check(
+          maxCompressionRatio >= 0, "Invalid maxCompressionRatio %d", maxCompressionRatio);
+      this.maxFrameLength = maxFrameLength;
+      this.maxDecompressedLength = maxDecompressedLength;
+      this.maxCompressionRatio = maxCompressionRatio;
+    }
+  }
 }
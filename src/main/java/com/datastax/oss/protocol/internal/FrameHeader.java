@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+import com.datastax.oss.protocol.internal.util.Flags;
+
+/**
+ * The fixed-size header of a frame, decoded on its own.
+ *
+ * @see FrameCodec#decodeHeader(Object)
+ */
+public class FrameHeader {
+
+  public final int protocolVersion;
+  public final boolean isResponse;
+
+  /** The raw flags, see {@link ProtocolConstants.FrameFlag}. */
+  public final int flags;
+
+  public final int streamId;
+  public final int opcode;
+
+  /** The length of the body, as declared in the header (if compressed, the compressed length). */
+  public final int length;
+
+  public FrameHeader(
+      int protocolVersion, boolean isResponse, int flags, int streamId, int opcode, int length) {
+    this.protocolVersion = protocolVersion;
+    this.isResponse = isResponse;
+    this.flags = flags;
+    this.streamId = streamId;
+    this.opcode = opcode;
+    this.length = length;
+  }
+
+  public boolean isBeta() {
+    return Flags.contains(flags, ProtocolConstants.FrameFlag.USE_BETA);
+  }
+
+  public boolean isCompressed() {
+    return Flags.contains(flags, ProtocolConstants.FrameFlag.COMPRESSED);
+  }
+
+  public boolean isTracing() {
+    return Flags.contains(flags, ProtocolConstants.FrameFlag.TRACING);
+  }
+
+  /** The binary size of the frame in bytes, including the header. */
+  public int size() {
+    return FrameCodec.headerEncodedSize() + length;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "FrameHeader(v%d, %s, stream %d, opcode %d, flags 0x%02x, length %d)",
+        protocolVersion, isResponse ? "response" : "request", streamId, opcode, flags, length);
+  }
+}
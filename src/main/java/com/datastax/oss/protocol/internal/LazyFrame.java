@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal;
+
+/**
+ * A frame whose header has been decoded, but not its body.
+ *
+ * <p>The body is decompressed and decoded the first time {@link #frame()} or {@link #message()} is
+ * called. Until then, this object holds a reference to the body buffer: components that only route,
+ * count or drop frames can use {@link #header()} without paying the cost of decoding.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @see FrameCodec#decodeLazily(Object)
+ */
+public class LazyFrame<B> {
+
+  private final FrameCodec<B> frameCodec;
+  private final FrameHeader header;
+  private B body;
+  private Frame frame;
+
+  LazyFrame(FrameCodec<B> frameCodec, FrameHeader header, B body) {
+    this.frameCodec = frameCodec;
+    this.header = header;
+    this.body = body;
+  }
+
+  public FrameHeader header() {
+    return header;
+  }
+
+  /** Whether the body has been decoded yet. */
+  public boolean isDecoded() {
+    return frame != null;
+  }
+
+  /** Decodes the body if needed, and returns the full frame. */
+  public Frame frame() {
+    if (frame == null) {
+      frame = frameCodec.decodeBody(header, detachBody(), true, true);
+    }
+    return frame;
+  }
+
+  /** Shortcut for {@code frame().message}. */
+  public Message message() {
+    return frame().message;
+  }
+
+  /**
+   * Returns the undecoded body (after the header, possibly compressed), or {@code null} if it was
+   * already decoded or {@linkplain FrameCodec#forward(LazyFrame, int) forwarded}.
+   */
+  public B body() {
+    return body;
+  }
+
+  B detachBody() {
+    if (body == null) {
+      throw new IllegalStateException("The body was already decoded or forwarded");
+    }
+    B result = body;
+    body = null;
+    return result;
+  }
+}
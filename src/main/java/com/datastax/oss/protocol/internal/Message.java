@@ -26,6 +26,56 @@ public abstract class Message {
     this.opcode = opcode;
   }
 
+  // Memoized result of Codec.encodedSize, see encodedSize(Codec)
+  private volatile EncodedSize encodedSize;
+  // Whether the size was computed at least once. This is deliberately not volatile: a racy read
+  // only delays memoization by one computation.
+  private boolean measured;
+
+  /**
+   * Returns {@code codec.encodedSize(this)}, computing it at most twice per codec.
+   *
+   * <p>Messages are not supposed to be modified after they're created, so the size can't change; a
+   * message that gets sent again (retries, speculative executions...) does not need to be measured
+   * again. Most messages are only encoded once though, so the size is only memoized the second time
+   * it is computed: the first encoding does not allocate a holder or perform a volatile write.
+   */
+  int encodedSize(Codec codec) {
+    if (!isEncodedSizeStable()) {
+      return codec.encodedSize(this);
+    }
+    EncodedSize size = this.encodedSize;
+    if (size != null && size.codec == codec) {
+      return size.value;
+    }
+    int value = codec.encodedSize(this);
+    if (measured) {
+      this.encodedSize = new EncodedSize(codec, value);
+    } else {
+      measured = true;
+    }
+    return value;
+  }
+
+  /**
+   * Whether the encoded size of this message is the same every time it gets encoded, and can
+   * therefore be computed only once. Subclasses that mutate their contents while encoding must
+   * return {@code false}.
+   */
+  protected boolean isEncodedSizeStable() {
+    return true;
+  }
+
+  private static class EncodedSize {
+    private final Codec codec;
+    private final int value;
+
+    private EncodedSize(Codec codec, int value) {
+      this.codec = codec;
+      this.value = value;
+    }
+  }
+
   public abstract static class Codec {
     /** @see ProtocolConstants.Opcode */
     public final int opcode;
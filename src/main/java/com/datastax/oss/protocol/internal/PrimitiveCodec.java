@@ -15,6 +15,7 @@
  */
 package com.datastax.oss.protocol.internal;
 
+import com.datastax.oss.protocol.internal.util.collection.LazyStringList;
 import com.datastax.oss.protocol.internal.util.collection.NullAllowingImmutableList;
 import com.datastax.oss.protocol.internal.util.collection.NullAllowingImmutableMap;
 import java.net.InetAddress;
@@ -56,14 +57,68 @@ public interface PrimitiveCodec<B> {
 
   int readUnsignedShort(B source);
 
+  /**
+   * Reads a {@code [bytes]} value.
+   *
+   * <p>By default, the result is independent from {@code source} (typically a copy). However, if
+   * {@link #slicesBytes()} returns true, it is a read-only view of the bytes in {@code source}: it
+   * remains valid only until {@code source} is {@linkplain #release(Object) released} or reused.
+   */
   ByteBuffer readBytes(B source);
 
   byte[] readShortBytes(B source);
 
+  /**
+   * Whether this codec is in "slice mode", where {@link #readBytes(Object)} returns views of the
+   * source instead of copies.
+   *
+   * <p>This avoids an allocation and a copy for every cell of a result set, but it changes the
+   * lifecycle of decoded frames: the caller of {@link FrameCodec#decode(Object)} must keep the
+   * source buffer alive (and unmodified) as long as it uses the frame, and release it only
+   * afterwards. If the frame was compressed, its values point into the decompressed body instead,
+   * which the caller hands back with {@link Frame#release()}.
+   */
+  default boolean slicesBytes() {
+    return false;
+  }
+
   String readString(B source);
 
   String readLongString(B source);
 
+  /**
+   * Reads a {@code [string]} that holds a schema identifier: keyspace, table, column, type or field
+   * name.
+   *
+   * <p>Such values are highly repetitive, so implementations may return canonical instances instead
+   * of decoding a new string every time. The default implementation simply calls {@link
+   * #readString(Object)}.
+   */
+  default String readIdentifier(B source) {
+    return readString(source);
+  }
+
+  /**
+   * Whether {@link FrameCodec} should read rarely-used strings (currently, response warnings) with
+   * {@link #readLazyStringList(Object)} instead of {@link #readStringList(Object)}.
+   *
+   * <p>This defers their UTF-8 decoding until they are accessed, at the cost of keeping a copy of
+   * their raw bytes. It is disabled by default.
+   */
+  default boolean decodesLazily() {
+    return false;
+  }
+
+  /**
+   * Reads a {@code [string]} that might never be used by the client (for example a warning).
+   *
+   * <p>Implementations may defer UTF-8 decoding until the contents of the result are first
+   * accessed. The default implementation simply calls {@link #readString(Object)}.
+   */
+  default CharSequence readLazyString(B source) {
+    return readString(source);
+  }
+
   default UUID readUuid(B source) {
     long msb = readLong(source);
     long lsb = readLong(source);
@@ -83,6 +138,23 @@ public interface PrimitiveCodec<B> {
     }
   }
 
+  /**
+   * Reads a {@code [string list]} whose elements are read with {@link #readLazyString(Object)}, and
+   * only converted to strings when they are accessed.
+   */
+  default List<String> readLazyStringList(B source) {
+    int size = readUnsignedShort(source);
+    if (size == 0) {
+      return Collections.emptyList();
+    } else {
+      CharSequence[] elements = new CharSequence[size];
+      for (int i = 0; i < size; i++) {
+        elements[i] = readLazyString(source);
+      }
+      return new LazyStringList(elements);
+    }
+  }
+
   default Map<String, String> readStringMap(B source) {
     int size = readUnsignedShort(source);
     if (size == 0) {
@@ -131,6 +203,85 @@ public interface PrimitiveCodec<B> {
     }
   }
 
+  /**
+   * Reads {@code length} consecutive {@code [int]} values into {@code dest}, starting at index
+   * {@code offset}.
+   *
+   * <p>The default implementation calls {@link #readInt(Object)} for each element; buffer-backed
+   * implementations should override it to check bounds only once.
+   */
+  default void readInts(B source, int[] dest, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      dest[i] = readInt(source);
+    }
+  }
+
+  /** Same as {@link #readInts(Object, int[], int, int)}, for {@code [long]} values. */
+  default void readLongs(B source, long[] dest, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      dest[i] = readLong(source);
+    }
+  }
+
+  /** Same as {@link #readInts(Object, int[], int, int)}, for {@code [short]} values. */
+  default void readUnsignedShorts(B source, int[] dest, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      dest[i] = readUnsignedShort(source);
+    }
+  }
+
+  /**
+   * Skips the next {@code length} bytes of {@code source}.
+   *
+   * <p>The other {@code skipXxx} methods are built on this one. The default implementation reads
+   * the bytes one at a time; implementations should override it with something more efficient.
+   */
+  default void skip(B source, int length) {
+    for (int i = 0; i < length; i++) {
+      readByte(source);
+    }
+  }
+
+  /** Skips a {@code [bytes]} value, without materializing it. */
+  default void skipBytes(B source) {
+    int length = readInt(source);
+    if (length > 0) {
+      skip(source, length);
+    }
+  }
+
+  /** Skips a {@code [short bytes]} value, without materializing it. */
+  default void skipShortBytes(B source) {
+    skip(source, readUnsignedShort(source));
+  }
+
+  /** Skips a {@code [string]} value, without decoding it. */
+  default void skipString(B source) {
+    skip(source, readUnsignedShort(source));
+  }
+
+  /** Skips a {@code [long string]} value, without decoding it. */
+  default void skipLongString(B source) {
+    skip(source, readInt(source));
+  }
+
+  /** Skips a {@code [string list]} value, without decoding it. */
+  default void skipStringList(B source) {
+    int size = readUnsignedShort(source);
+    for (int i = 0; i < size; i++) {
+      skipString(source);
+    }
+  }
+
+  /** Skips a {@code [bytes map]} value, without materializing it. */
+  default void skipBytesMap(B source) {
+    int size = readUnsignedShort(source);
+    for (int i = 0; i < size; i++) {
+      skipString(source);
+      skipBytes(source);
+    }
+  }
+
   default InetSocketAddress readInet(B source) {
     InetAddress addr = readInetAddr(source);
     int port = readInt(source);
@@ -151,6 +302,33 @@ public interface PrimitiveCodec<B> {
 
   void writeLongString(String s, B dest);
 
+  /**
+   * Writes {@code length} consecutive elements of {@code values} as {@code [int]}s, starting at
+   * index {@code offset}.
+   *
+   * <p>The default implementation calls {@link #writeInt(int, Object)} for each element;
+   * buffer-backed implementations should override it to check bounds only once.
+   */
+  default void writeInts(int[] values, int offset, int length, B dest) {
+    for (int i = offset; i < offset + length; i++) {
+      writeInt(values[i], dest);
+    }
+  }
+
+  /** Same as {@link #writeInts(int[], int, int, Object)}, for {@code [long]} values. */
+  default void writeLongs(long[] values, int offset, int length, B dest) {
+    for (int i = offset; i < offset + length; i++) {
+      writeLong(values[i], dest);
+    }
+  }
+
+  /** Same as {@link #writeInts(int[], int, int, Object)}, for {@code [short]} values. */
+  default void writeUnsignedShorts(int[] values, int offset, int length, B dest) {
+    for (int i = offset; i < offset + length; i++) {
+      writeUnsignedShort(values[i], dest);
+    }
+  }
+
   default void writeUuid(UUID uuid, B dest) {
     writeLong(uuid.getMostSignificantBits(), dest);
     writeLong(uuid.getLeastSignificantBits(), dest);
@@ -162,6 +340,57 @@ public interface PrimitiveCodec<B> {
 
   void writeShortBytes(byte[] bytes, B dest);
 
+  /**
+   * Overwrites an {@code [int]} that was previously written to {@code dest}, for example a length
+   * that was only known after the data that follows it.
+   *
+   * @param index the offset of the value, relative to the first readable byte of {@code dest}.
+   * @throws UnsupportedOperationException if this codec does not support in-place updates (which is
+   *     the default).
+   * @see #supportsUpdates()
+   */
+  default void updateInt(int newValue, B dest, int index) {
+    throw new UnsupportedOperationException(
+        getClass().getSimpleName() + " does not support in-place updates");
+  }
+
+  /**
+   * Whether this codec implements {@link #updateInt(int, Object, int)}. The frame codec only
+   * compresses directly into the frame buffer (which requires backpatching the length) if this
+   * returns true.
+   *
+   * <p>The default implementation returns false.
+   */
+  default boolean supportsUpdates() {
+    return false;
+  }
+
+  /**
+   * Makes the {@code length} bytes that precede the readable bytes of {@code source} (and were
+   * therefore already read) readable again, so that they can be {@linkplain #updateInt(int, Object,
+   * int) updated} in place.
+   *
+   * @return whether it was possible. If not (for example because these bytes are not available
+   *     anymore, or can't be modified), {@code source} is left untouched. The default
+   *     implementation always returns false.
+   */
+  default boolean unread(B source, int length) {
+    return false;
+  }
+
+  /**
+   * Copies the readable contents of {@code source} to {@code dest}, as-is (without any length
+   * prefix). {@code source} is consumed.
+   *
+   * <p>The default implementation copies one byte at a time; buffer-backed implementations should
+   * override it.
+   */
+  default void writeRaw(B source, B dest) {
+    while (sizeOf(source) > 0) {
+      writeByte(readByte(source), dest);
+    }
+  }
+
   default void writeStringList(List<String> l, B dest) {
     writeUnsignedShort(l.size(), dest);
     for (String s : l) {
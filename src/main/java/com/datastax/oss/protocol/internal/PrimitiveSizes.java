@@ -90,10 +90,30 @@ public class PrimitiveSizes {
     return size;
   }
 
-  // Visible for testing
-  static int encodedUTF8Length(String st) {
+  /**
+   * Computes the number of bytes needed to encode a string in UTF-8, without actually encoding it.
+   * Malformed surrogates count as one byte, like the replacement character written by the JDK's
+   * encoder.
+   */
+  public static int encodedUTF8Length(String st) {
+    // Fast path for the (very common) ASCII prefix, where every char is one byte
+    int asciiLength = 0;
+    int charCount = st.length();
+    while (asciiLength < charCount && st.charAt(asciiLength) < 0x80) {
+      asciiLength += 1;
+    }
+    return (asciiLength == charCount)
+        ? charCount
+        : asciiLength + encodedUTF8Length(st, asciiLength);
+  }
+
+  /**
+   * Computes the number of bytes needed to encode the chars of a string starting at index {@code
+   * from}, in UTF-8.
+   */
+  public static int encodedUTF8Length(String st, int from) {
     int length = 0;
-    for (int i = 0; i < st.length(); i++) {
+    for (int i = from; i < st.length(); i++) {
       char c = st.charAt(i);
       if (Character.isHighSurrogate(c)) {
         if (i < st.length() - 1) {
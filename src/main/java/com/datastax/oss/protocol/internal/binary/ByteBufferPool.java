@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of byte buffers, organized in power-of-two size classes.
+ *
+ * <p>Each thread keeps a small cache per size class, so that the common case (a buffer allocated
+ * and released on the same event loop thread) does not involve any lock or allocation. When a
+ * thread cache is full, released buffers go to a shared, bounded queue; if that is full too, they
+ * are simply left to the garbage collector.
+ *
+ * <p>Requests larger than the biggest size class are not pooled: they are allocated on demand, and
+ * not kept when released.
+ *
+ * <p>The pool keeps track of the buffers that it allocated, with an entry that is created along
+ * with the buffer and references it weakly (so that a buffer that is never released can still be
+ * garbage collected). Only those buffers are taken back: any other buffer passed to {@link
+ * #release(ByteBuffer)} is ignored, even if its capacity matches a size class, since it might share
+ * its memory with another buffer (for example a slice or a wrapped array). Releasing the same
+ * buffer twice is ignored as well. This costs a lock-free lookup by identity, and an uncontended
+ * compare-and-set on the entry, for each release.
+ *
+ * <p>This class is thread-safe.
+ */
+public class ByteBufferPool {
+
+  private static final AtomicIntegerFieldUpdater<Entry> ACQUIRED_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(Entry.class, "acquired");
+
+  private final boolean direct;
+  private final int minClassShift;
+  private final int classCount;
+  private final int maxPooledSize;
+  private final int threadCacheSize;
+  private final int sharedCacheSize;
+
+  private final Queue<Entry>[] sharedCaches;
+  private final AtomicInteger[] sharedCacheCounts;
+  private final ThreadLocal<ThreadCache> threadCaches;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder outstanding = new LongAdder();
+
+  // The entries of the buffers allocated by this pool (each entry is its own key)
+  private final ConcurrentHashMap<Object, Entry> entries = new ConcurrentHashMap<>();
+  private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+  /**
+   * @param direct whether to allocate direct buffers.
+   * @param minPooledSize the size of the smallest class. Must be a power of two.
+   * @param maxPooledSize the size of the biggest class. Must be a power of two.
+   * @param threadCacheSize how many buffers of each class a thread can cache.
+   * @param sharedCacheSize how many buffers of each class can be cached in the shared queues.
+   */
+  @SuppressWarnings("unchecked")
+  public ByteBufferPool(
+      boolean direct,
+      int minPooledSize,
+      int maxPooledSize,
+      int threadCacheSize,
+      int sharedCacheSize) {
+    ProtocolErrors.check(
+        Integer.bitCount(minPooledSize) == 1 && Integer.bitCount(maxPooledSize) == 1,
+        "Size classes must be powers of two (got %d and %d)",
+        minPooledSize,
+        maxPooledSize);
+    ProtocolErrors.check(
+        minPooledSize <= maxPooledSize,
+        "minPooledSize (%d) must be lower than maxPooledSize (%d)",
+        minPooledSize,
+        maxPooledSize);
+    this.direct = direct;
+    this.minClassShift = Integer.numberOfTrailingZeros(minPooledSize);
+    this.classCount = Integer.numberOfTrailingZeros(maxPooledSize) - minClassShift + 1;
+    this.maxPooledSize = maxPooledSize;
+    this.threadCacheSize = threadCacheSize;
+    this.sharedCacheSize = sharedCacheSize;
+
+    this.sharedCaches = new Queue[classCount];
+    this.sharedCacheCounts = new AtomicInteger[classCount];
+    for (int i = 0; i < classCount; i++) {
+      sharedCaches[i] = new ConcurrentLinkedQueue<>();
+      sharedCacheCounts[i] = new AtomicInteger();
+    }
+    this.threadCaches = ThreadLocal.withInitial(ThreadCache::new);
+  }
+
+  /** Builds a pool with classes from 64 bytes to 1 MB, and reasonable cache sizes. */
+  public ByteBufferPool(boolean direct) {
+    this(direct, 64, 1024 * 1024, 16, 256);
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  /**
+   * Returns a cleared buffer (position 0, limit equal to capacity) that can hold at least {@code
+   * minCapacity} bytes.
+   */
+  public ByteBuffer acquire(int minCapacity) {
+    outstanding.increment();
+    if (minCapacity > maxPooledSize) {
+      misses.increment();
+      return newBuffer(minCapacity);
+    }
+    int sizeClass = sizeClass(minCapacity);
+    Entry entry = threadCaches.get().poll(sizeClass);
+    if (entry == null) {
+      entry = sharedCaches[sizeClass].poll();
+      if (entry != null) {
+        sharedCacheCounts[sizeClass].decrementAndGet();
+      }
+    }
+    if (entry == null) {
+      misses.increment();
+      return newBuffer(1 << (sizeClass + minClassShift));
+    }
+    hits.increment();
+    ByteBuffer buffer = entry.cached;
+    entry.cached = null;
+    entry.acquired = 1;
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer to the pool. It must not be used by the caller anymore.
+   *
+   * <p>Buffers that were not obtained from this pool, or that were already released, are ignored.
+   */
+  public void release(ByteBuffer buffer) {
+    ThreadCache threadCache = threadCaches.get();
+    Entry entry = threadCache.lookup(buffer);
+    if (entry == null || !ACQUIRED_UPDATER.compareAndSet(entry, 1, 0)) {
+      return;
+    }
+    outstanding.decrement();
+    int capacity = buffer.capacity();
+    if (capacity > maxPooledSize) {
+      entries.remove(entry);
+      return;
+    }
+    int sizeClass = Integer.numberOfTrailingZeros(capacity) - minClassShift;
+    // Keep the buffer strongly reachable while it's cached
+    entry.cached = buffer;
+    if (threadCache.offer(sizeClass, entry)) {
+      return;
+    }
+    if (sharedCacheCounts[sizeClass].incrementAndGet() <= sharedCacheSize) {
+      sharedCaches[sizeClass].offer(entry);
+    } else {
+      sharedCacheCounts[sizeClass].decrementAndGet();
+      entry.cached = null;
+      entries.remove(entry);
+    }
+  }
+
+  /** The number of {@link #acquire(int)} calls that were served from a cache. */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /** The number of {@link #acquire(int)} calls that had to allocate a new buffer. */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /**
+   * The number of buffers that were acquired but not released yet (releases of buffers that were
+   * not acquired from this pool are not counted).
+   */
+  public long outstanding() {
+    return outstanding.sum();
+  }
+
+  private int sizeClass(int size) {
+    int shift = (size <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    return Math.max(0, shift - minClassShift);
+  }
+
+  private ByteBuffer newBuffer(int capacity) {
+    Reference<? extends ByteBuffer> reference;
+    while ((reference = collected.poll()) != null) {
+      entries.remove(reference);
+    }
+    ByteBuffer buffer =
+        direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    Entry entry = new Entry(buffer, collected);
+    entries.put(entry, entry);
+    return buffer;
+  }
+
+  /**
+   * Tracks a buffer allocated by the pool. It is created once with the buffer, and its key in the
+   * entry map is itself (identity equality, and the identity hash code of the buffer).
+   */
+  private static class Entry extends WeakReference<ByteBuffer> {
+    private final int hash;
+    // 1 while the buffer is acquired, 0 while it's cached (or being released)
+    volatile int acquired = 1;
+    // A strong reference while the buffer is cached, so that the weak reference is not cleared
+    private ByteBuffer cached;
+
+    private Entry(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+      super(buffer, queue);
+      this.hash = System.identityHashCode(buffer);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other == this;
+    }
+  }
+
+  /**
+   * A reusable key to look up the entry of a buffer without allocating. {@link ConcurrentHashMap}
+   * compares keys with the {@code equals} method of the argument.
+   */
+  private static class Probe {
+    private ByteBuffer buffer;
+    private int hash;
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    @SuppressWarnings("ReferenceEquality")
+    public boolean equals(Object other) {
+      return other instanceof Entry && ((Entry) other).get() == buffer;
+    }
+  }
+
+  private class ThreadCache {
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Entry>[] buffers = new ArrayDeque[classCount];
+
+    private final Probe probe = new Probe();
+
+    private Entry lookup(ByteBuffer buffer) {
+      probe.buffer = buffer;
+      probe.hash = System.identityHashCode(buffer);
+      Entry entry = entries.get(probe);
+      probe.buffer = null;
+      return entry;
+    }
+
+    private Entry poll(int sizeClass) {
+      ArrayDeque<Entry> queue = buffers[sizeClass];
+      return (queue == null) ? null : queue.pollLast();
+    }
+
+    private boolean offer(int sizeClass, Entry entry) {
+      ArrayDeque<Entry> queue = buffers[sizeClass];
+      if (queue == null) {
+        queue = buffers[sizeClass] = new ArrayDeque<>(threadCacheSize);
+      }
+      if (queue.size() >= threadCacheSize) {
+        return false;
+      }
+      queue.addLast(entry);
+      return true;
+    }
+  }
+}
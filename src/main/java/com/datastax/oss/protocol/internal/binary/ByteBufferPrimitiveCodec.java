@@ -0,0 +1,626 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.PrimitiveCodec;
+import com.datastax.oss.protocol.internal.PrimitiveSizes;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import com.datastax.oss.protocol.internal.util.Utf8CharSequence;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A primitive codec for NIO byte buffers.
+ *
+ * <p>Since {@code ByteBuffer} does not have separate reader and writer indices, this codec uses the
+ * position as the reader index and the limit as the writer index: the readable bytes of a buffer
+ * are always those between its position and its limit. Reads advance the position; writes append at
+ * the limit and push it towards the capacity. In particular:
+ *
+ * <ul>
+ *   <li>{@link #allocate(int)} returns an empty buffer ({@code position == limit == 0}) with the
+ *       requested capacity;
+ *   <li>a buffer returned by {@code FrameCodec.encode} is ready to be written to a channel, without
+ *       any call to {@code flip()};
+ *   <li>a buffer passed to {@code FrameCodec.decode} is read from its current position to its
+ *       limit, like any regular NIO buffer.
+ * </ul>
+ *
+ * Use {@link #HEAP} or {@link #DIRECT} depending on where encoded frames should be allocated.
+ * Decoding works with both kinds of buffers regardless of the instance.
+ *
+ * <p>{@link #SLICING_HEAP} and {@link #SLICING_DIRECT} are in {@linkplain #slicesBytes() slice
+ * mode}: {@code [bytes]} values are returned as read-only views of the source buffer, which must
+ * not be released or reused while the decoded frame is in use.
+ *
+ * <p>Instances built with an {@link IdentifierCache} return canonical strings for schema
+ * identifiers (see {@link #readIdentifier(ByteBuffer)}). Instances built with {@code decodesLazily}
+ * defer the decoding of response warnings (see {@link #decodesLazily()}).
+ */
+public class ByteBufferPrimitiveCodec implements PrimitiveCodec<ByteBuffer> {
+
+  /** An instance that allocates heap buffers. */
+  public static final ByteBufferPrimitiveCodec HEAP = new ByteBufferPrimitiveCodec(false);
+
+  /** An instance that allocates direct buffers. */
+  public static final ByteBufferPrimitiveCodec DIRECT = new ByteBufferPrimitiveCodec(true);
+
+  /** An instance that allocates heap buffers, and returns views for {@code [bytes]} values. */
+  public static final ByteBufferPrimitiveCodec SLICING_HEAP =
+      new ByteBufferPrimitiveCodec(false, true);
+
+  /** An instance that allocates direct buffers, and returns views for {@code [bytes]} values. */
+  public static final ByteBufferPrimitiveCodec SLICING_DIRECT =
+      new ByteBufferPrimitiveCodec(true, true);
+
+  private final boolean direct;
+  private final boolean slicesBytes;
+  private final boolean decodesLazily;
+  private final IdentifierCache identifierCache;
+
+  protected ByteBufferPrimitiveCodec(boolean direct) {
+    this(direct, false, null);
+  }
+
+  protected ByteBufferPrimitiveCodec(boolean direct, boolean slicesBytes) {
+    this(direct, slicesBytes, null);
+  }
+
+  /**
+   * @param direct whether to allocate direct buffers.
+   * @param slicesBytes whether to enable {@linkplain #slicesBytes() slice mode}.
+   * @param identifierCache the cache to use for schema identifiers, or {@code null} to decode them
+   *     like regular strings.
+   */
+  public ByteBufferPrimitiveCodec(
+      boolean direct, boolean slicesBytes, IdentifierCache identifierCache) {
+    this(direct, slicesBytes, false, identifierCache);
+  }
+
+  /**
+   * @param direct whether to allocate direct buffers.
+   * @param slicesBytes whether to enable {@linkplain #slicesBytes() slice mode}.
+   * @param decodesLazily whether to {@linkplain #decodesLazily() defer the decoding} of warnings.
+   * @param identifierCache the cache to use for schema identifiers, or {@code null} to decode them
+   *     like regular strings.
+   */
+  public ByteBufferPrimitiveCodec(
+      boolean direct, boolean slicesBytes, boolean decodesLazily, IdentifierCache identifierCache) {
+    this.direct = direct;
+    this.slicesBytes = slicesBytes;
+    this.decodesLazily = decodesLazily;
+    this.identifierCache = identifierCache;
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  @Override
+  public ByteBuffer allocate(int size) {
+    ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    buffer.limit(0);
+    return buffer;
+  }
+
+  @Override
+  public void release(ByteBuffer toRelease) {
+    // nothing to do, buffers are garbage-collected
+  }
+
+  @Override
+  public int sizeOf(ByteBuffer toMeasure) {
+    return toMeasure.remaining();
+  }
+
+  /**
+   * Avoids allocating a new buffer when possible: if {@code left} has enough spare capacity, {@code
+   * right} is appended to it; if {@code right} has enough room before its position (for example
+   * because a compressor reserved it), {@code left} is prepended in place. Otherwise, both are
+   * copied into a new buffer.
+   */
+  @Override
+  public ByteBuffer concat(ByteBuffer left, ByteBuffer right) {
+    int leftSize = left.remaining();
+    int rightSize = right.remaining();
+    if (!left.isReadOnly() && left.capacity() - left.limit() >= rightSize) {
+      copy(right, left, reserve(left, rightSize));
+      return left;
+    } else if (!right.isReadOnly() && right.position() >= leftSize) {
+      int newPosition = right.position() - leftSize;
+      copy(left, right, newPosition);
+      right.position(newPosition);
+      return right;
+    } else {
+      ByteBuffer result = allocate(leftSize + rightSize);
+      copy(left, result, reserve(result, leftSize));
+      copy(right, result, reserve(result, rightSize));
+      return result;
+    }
+  }
+
+  @Override
+  public byte readByte(ByteBuffer source) {
+    return source.get();
+  }
+
+  @Override
+  public int readInt(ByteBuffer source) {
+    return source.getInt();
+  }
+
+  @Override
+  public InetAddress readInetAddr(ByteBuffer source) {
+    int length = source.get() & 0xFF;
+    byte[] bytes = new byte[length];
+    source.get(bytes);
+    try {
+      return InetAddress.getByAddress(bytes);
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException("Invalid address length: " + length, e);
+    }
+  }
+
+  @Override
+  public long readLong(ByteBuffer source) {
+    return source.getLong();
+  }
+
+  @Override
+  public int readUnsignedShort(ByteBuffer source) {
+    return source.getShort() & 0xFFFF;
+  }
+
+  /**
+   * Returns a heap buffer containing a copy of the bytes, so that the result does not depend on the
+   * lifecycle of {@code source}; or, in slice mode, a read-only view of {@code source}.
+   */
+  @Override
+  public ByteBuffer readBytes(ByteBuffer source) {
+    int length = source.getInt();
+    if (length < 0) {
+      return null;
+    }
+    checkReadable(source, length);
+    if (slicesBytes) {
+      ByteBuffer view = source.asReadOnlyBuffer();
+      view.limit(view.position() + length);
+      source.position(source.position() + length);
+      return view.slice();
+    } else {
+      byte[] bytes = new byte[length];
+      source.get(bytes);
+      return ByteBuffer.wrap(bytes);
+    }
+  }
+
+  @Override
+  public boolean slicesBytes() {
+    return slicesBytes;
+  }
+
+  @Override
+  public boolean decodesLazily() {
+    return decodesLazily;
+  }
+
+  @Override
+  public byte[] readShortBytes(ByteBuffer source) {
+    int length = readUnsignedShort(source);
+    checkReadable(source, length);
+    byte[] bytes = new byte[length];
+    source.get(bytes);
+    return bytes;
+  }
+
+  @Override
+  public String readString(ByteBuffer source) {
+    return readUtf8(source, readUnsignedShort(source));
+  }
+
+  @Override
+  public String readLongString(ByteBuffer source) {
+    return readUtf8(source, source.getInt());
+  }
+
+  @Override
+  public void readInts(ByteBuffer source, int[] dest, int offset, int length) {
+    int position = source.position();
+    checkReadable(source, (long) length * PrimitiveSizes.INT);
+    source.asIntBuffer().get(dest, offset, length);
+    source.position(position + length * PrimitiveSizes.INT);
+  }
+
+  @Override
+  public void readLongs(ByteBuffer source, long[] dest, int offset, int length) {
+    int position = source.position();
+    checkReadable(source, (long) length * PrimitiveSizes.LONG);
+    source.asLongBuffer().get(dest, offset, length);
+    source.position(position + length * PrimitiveSizes.LONG);
+  }
+
+  @Override
+  public void readUnsignedShorts(ByteBuffer source, int[] dest, int offset, int length) {
+    checkReadable(source, (long) length * PrimitiveSizes.SHORT);
+    int index = source.position();
+    for (int i = offset; i < offset + length; i++) {
+      dest[i] = source.getShort(index) & 0xFFFF;
+      index += PrimitiveSizes.SHORT;
+    }
+    source.position(index);
+  }
+
+  @Override
+  public void skip(ByteBuffer source, int length) {
+    if (length < 0 || length > source.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    source.position(source.position() + length);
+  }
+
+  /** Copies the raw bytes, and defers decoding until the result is accessed. */
+  @Override
+  public CharSequence readLazyString(ByteBuffer source) {
+    byte[] bytes = new byte[readUnsignedShort(source)];
+    source.get(bytes);
+    return new Utf8CharSequence(bytes);
+  }
+
+  @Override
+  public String readIdentifier(ByteBuffer source) {
+    if (identifierCache == null) {
+      return readString(source);
+    }
+    int length = readUnsignedShort(source);
+    if (length > source.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    int position = source.position();
+    String identifier = identifierCache.get(source, position, length);
+    source.position(position + length);
+    return identifier;
+  }
+
+  @Override
+  public void writeByte(byte b, ByteBuffer dest) {
+    dest.put(reserve(dest, PrimitiveSizes.BYTE), b);
+  }
+
+  @Override
+  public void writeInt(int i, ByteBuffer dest) {
+    dest.putInt(reserve(dest, PrimitiveSizes.INT), i);
+  }
+
+  @Override
+  public void writeInetAddr(InetAddress address, ByteBuffer dest) {
+    byte[] bytes = address.getAddress();
+    writeByte((byte) bytes.length, dest);
+    writeRawBytes(bytes, dest);
+  }
+
+  @Override
+  public void writeLong(long l, ByteBuffer dest) {
+    dest.putLong(reserve(dest, PrimitiveSizes.LONG), l);
+  }
+
+  @Override
+  public void writeUnsignedShort(int i, ByteBuffer dest) {
+    dest.putShort(reserve(dest, PrimitiveSizes.SHORT), (short) i);
+  }
+
+  /**
+   * Encodes the string in a single pass, and backpatches the length prefix afterwards. ASCII
+   * strings are copied without any intermediary size computation.
+   */
+  @Override
+  public void writeString(String s, ByteBuffer dest) {
+    // Each char encodes to at least one byte, so we can fail fast on obviously long strings
+    ProtocolErrors.check(s.length() <= 0xFFFF, "String is too long (%d chars)", s.length());
+    int lengthIndex = reserve(dest, PrimitiveSizes.SHORT);
+    int length = writeUtf8(s, dest);
+    if (length > 0xFFFF) {
+      // Don't leave a partial string in the buffer
+      dest.limit(lengthIndex);
+      throw new IllegalArgumentException(String.format("String is too long (%d bytes)", length));
+    }
+    dest.putShort(lengthIndex, (short) length);
+  }
+
+  /** Same as {@link #writeString(String, ByteBuffer)}, with an {@code [int]} length prefix. */
+  @Override
+  public void writeLongString(String s, ByteBuffer dest) {
+    int lengthIndex = reserve(dest, PrimitiveSizes.INT);
+    int length = writeUtf8(s, dest);
+    dest.putInt(lengthIndex, length);
+  }
+
+  @Override
+  public void writeBytes(ByteBuffer bytes, ByteBuffer dest) {
+    if (bytes == null) {
+      writeInt(-1, dest);
+    } else {
+      int length = bytes.remaining();
+      writeInt(length, dest);
+      copy(bytes, dest, reserve(dest, length));
+    }
+  }
+
+  @Override
+  public void writeBytes(byte[] bytes, ByteBuffer dest) {
+    if (bytes == null) {
+      writeInt(-1, dest);
+    } else {
+      writeInt(bytes.length, dest);
+      writeRawBytes(bytes, dest);
+    }
+  }
+
+  @Override
+  public void writeShortBytes(byte[] bytes, ByteBuffer dest) {
+    writeUnsignedShort(bytes.length, dest);
+    writeRawBytes(bytes, dest);
+  }
+
+  @Override
+  public void updateInt(int newValue, ByteBuffer dest, int index) {
+    dest.putInt(dest.position() + index, newValue);
+  }
+
+  @Override
+  public boolean supportsUpdates() {
+    return true;
+  }
+
+  @Override
+  public boolean unread(ByteBuffer source, int length) {
+    if (source.isReadOnly() || length < 0 || length > source.position()) {
+      return false;
+    }
+    source.position(source.position() - length);
+    return true;
+  }
+
+  @Override
+  public void writeRaw(ByteBuffer source, ByteBuffer dest) {
+    copy(source, dest, reserve(dest, source.remaining()));
+    source.position(source.limit());
+  }
+
+  @Override
+  public void writeInts(int[] values, int offset, int length, ByteBuffer dest) {
+    int index = reserve(dest, checkedSize(length, PrimitiveSizes.INT));
+    // duplicate() resets the byte order, restore it to be consistent with the scalar writers
+    ByteBuffer target = dest.duplicate().order(dest.order());
+    target.position(index);
+    target.asIntBuffer().put(values, offset, length);
+  }
+
+  @Override
+  public void writeLongs(long[] values, int offset, int length, ByteBuffer dest) {
+    int index = reserve(dest, checkedSize(length, PrimitiveSizes.LONG));
+    // duplicate() resets the byte order, restore it to be consistent with the scalar writers
+    ByteBuffer target = dest.duplicate().order(dest.order());
+    target.position(index);
+    target.asLongBuffer().put(values, offset, length);
+  }
+
+  @Override
+  public void writeUnsignedShorts(int[] values, int offset, int length, ByteBuffer dest) {
+    int index = reserve(dest, checkedSize(length, PrimitiveSizes.SHORT));
+    for (int i = offset; i < offset + length; i++) {
+      dest.putShort(index, (short) values[i]);
+      index += PrimitiveSizes.SHORT;
+    }
+  }
+
+  /**
+   * Makes room for {@code length} more bytes at the end of the readable bytes of {@code dest}.
+   *
+   * @return the absolute index at which the new bytes should be written.
+   */
+  protected static int reserve(ByteBuffer dest, int length) {
+    int index = dest.limit();
+    if (length > dest.capacity() - index) {
+      throw new BufferOverflowException();
+    }
+    dest.limit(index + length);
+    return index;
+  }
+
+  /**
+   * Copies the readable bytes of {@code src} into {@code dest}, starting at the absolute index
+   * {@code index}. Neither buffer's position is modified.
+   */
+  protected static void copy(ByteBuffer src, ByteBuffer dest, int index) {
+    int length = src.remaining();
+    if (src.hasArray() && dest.hasArray()) {
+      System.arraycopy(
+          src.array(),
+          src.arrayOffset() + src.position(),
+          dest.array(),
+          dest.arrayOffset() + index,
+          length);
+    } else {
+      ByteBuffer target = dest.duplicate();
+      target.limit(index + length).position(index);
+      target.put(src.duplicate());
+    }
+  }
+
+  /** The size of {@code length} elements of {@code elementSize} bytes, checked for overflow. */
+  private static int checkedSize(int length, int elementSize) {
+    long size = (long) length * elementSize;
+    if (length < 0 || size > Integer.MAX_VALUE) {
+      throw new BufferOverflowException();
+    }
+    return (int) size;
+  }
+
+  private static void checkReadable(ByteBuffer source, long length) {
+    if (length < 0 || length > source.remaining()) {
+      throw new BufferUnderflowException();
+    }
+  }
+
+  private static void writeRawBytes(byte[] bytes, ByteBuffer dest) {
+    int index = reserve(dest, bytes.length);
+    if (dest.hasArray()) {
+      System.arraycopy(bytes, 0, dest.array(), dest.arrayOffset() + index, bytes.length);
+    } else {
+      ByteBuffer target = dest.duplicate();
+      target.position(index);
+      target.put(bytes);
+    }
+  }
+
+  static String readUtf8(ByteBuffer source, int length) {
+    if (length > source.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    if (source.hasArray()) {
+      int position = source.position();
+      String s =
+          new String(
+              source.array(), source.arrayOffset() + position, length, StandardCharsets.UTF_8);
+      source.position(position + length);
+      return s;
+    } else {
+      byte[] bytes = new byte[length];
+      source.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Encodes a string directly into the buffer, without going through an intermediary byte array.
+   * Malformed surrogates are replaced by {@code '?'}, like {@link String#getBytes} does.
+   *
+   * <p>Since every char takes at least one byte, we start by reserving one byte per char and
+   * copying the ASCII prefix. Only if a non-ASCII char is found do we measure the rest of the
+   * string and reserve the additional bytes.
+   *
+   * @return the number of bytes written.
+   */
+  private static int writeUtf8(String s, ByteBuffer dest) {
+    int charCount = s.length();
+    int index = reserve(dest, charCount);
+    int asciiLength =
+        dest.hasArray()
+            ? copyAscii(s, dest.array(), dest.arrayOffset() + index)
+            : copyAscii(s, dest, index);
+    if (asciiLength == charCount) {
+      return charCount;
+    }
+    int tailLength = PrimitiveSizes.encodedUTF8Length(s, asciiLength);
+    reserve(dest, tailLength - (charCount - asciiLength));
+    int tailIndex = index + asciiLength;
+    if (dest.hasArray()) {
+      encodeUtf8(s, asciiLength, dest.array(), dest.arrayOffset() + tailIndex);
+    } else {
+      ByteBuffer target = dest.duplicate();
+      target.position(tailIndex);
+      encodeUtf8(s, asciiLength, target);
+    }
+    return asciiLength + tailLength;
+  }
+
+  /**
+   * Copies chars as single bytes until the first non-ASCII char.
+   *
+   * @return the index of the first non-ASCII char, or the length of the string if there is none.
+   */
+  private static int copyAscii(String s, byte[] dest, int offset) {
+    int charCount = s.length();
+    for (int i = 0; i < charCount; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        return i;
+      }
+      dest[offset + i] = (byte) c;
+    }
+    return charCount;
+  }
+
+  private static int copyAscii(String s, ByteBuffer dest, int index) {
+    int charCount = s.length();
+    for (int i = 0; i < charCount; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        return i;
+      }
+      dest.put(index + i, (byte) c);
+    }
+    return charCount;
+  }
+
+  private static void encodeUtf8(String s, int from, byte[] dest, int offset) {
+    int length = s.length();
+    for (int i = from; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        dest[offset++] = (byte) c;
+      } else if (c < 0x800) {
+        dest[offset++] = (byte) (0xC0 | (c >> 6));
+        dest[offset++] = (byte) (0x80 | (c & 0x3F));
+      } else if (!Character.isSurrogate(c)) {
+        dest[offset++] = (byte) (0xE0 | (c >> 12));
+        dest[offset++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        dest[offset++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < length
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        dest[offset++] = (byte) (0xF0 | (codePoint >> 18));
+        dest[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        dest[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        dest[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+      } else {
+        dest[offset++] = '?';
+      }
+    }
+  }
+
+  private static void encodeUtf8(String s, int from, ByteBuffer dest) {
+    int length = s.length();
+    for (int i = from; i < length; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        dest.put((byte) c);
+      } else if (c < 0x800) {
+        dest.put((byte) (0xC0 | (c >> 6)));
+        dest.put((byte) (0x80 | (c & 0x3F)));
+      } else if (!Character.isSurrogate(c)) {
+        dest.put((byte) (0xE0 | (c >> 12)));
+        dest.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        dest.put((byte) (0x80 | (c & 0x3F)));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < length
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(++i));
+        dest.put((byte) (0xF0 | (codePoint >> 18)));
+        dest.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+        dest.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+        dest.put((byte) (0x80 | (codePoint & 0x3F)));
+      } else {
+        dest.put((byte) '?');
+      }
+    }
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A logical sequence of bytes spread across several NIO buffers, that can be written to a channel
+ * in a single gathering operation.
+ *
+ * <p>Each component follows the conventions of {@link ByteBufferPrimitiveCodec}: its readable bytes
+ * are between its position and its limit. Reads consume the components in order; writes always
+ * append to the last component.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class CompositeByteBuffer {
+
+  /** Wraps an existing buffer, without copying it. */
+  public static CompositeByteBuffer wrap(ByteBuffer buffer) {
+    CompositeByteBuffer result = new CompositeByteBuffer(1);
+    result.components.add(buffer);
+    return result;
+  }
+
+  private final ArrayList<ByteBuffer> components;
+  // The index of the first component that still has readable bytes (or the last component)
+  private int readerIndex;
+
+  public CompositeByteBuffer(int expectedComponents) {
+    this.components = new ArrayList<>(expectedComponents);
+  }
+
+  /** The components of this buffer (including those that have been fully read). */
+  public List<ByteBuffer> components() {
+    return Collections.unmodifiableList(components);
+  }
+
+  /** Appends a component. This does not copy the component's bytes. */
+  public CompositeByteBuffer append(ByteBuffer component) {
+    components.add(component);
+    return this;
+  }
+
+  /**
+   * Appends all the unread components of another composite buffer. This does not copy any bytes;
+   * the other buffer should not be used anymore after this call.
+   */
+  public CompositeByteBuffer append(CompositeByteBuffer other) {
+    for (int i = other.readerIndex; i < other.components.size(); i++) {
+      components.add(other.components.get(i));
+    }
+    return this;
+  }
+
+  /** The total number of readable bytes across all components. */
+  public int remaining() {
+    int remaining = 0;
+    for (int i = readerIndex; i < components.size(); i++) {
+      remaining += components.get(i).remaining();
+    }
+    return remaining;
+  }
+
+  /**
+   * Returns the unread components, as an array suitable for {@link
+   * GatheringByteChannel#write(ByteBuffer[])}.
+   *
+   * <p>The elements are the actual components, not copies: writing them to a channel consumes this
+   * buffer.
+   */
+  public ByteBuffer[] nioBuffers() {
+    int count = components.size() - readerIndex;
+    ByteBuffer[] result = new ByteBuffer[count];
+    for (int i = 0; i < count; i++) {
+      result[i] = components.get(readerIndex + i);
+    }
+    return result;
+  }
+
+  /**
+   * Writes all the readable bytes to a channel, using gathering writes.
+   *
+   * @return the number of bytes written.
+   */
+  public long writeTo(GatheringByteChannel channel) throws IOException {
+    ByteBuffer[] buffers = nioBuffers();
+    long total = 0;
+    int first = 0;
+    while (first < buffers.length) {
+      total += channel.write(buffers, first, buffers.length - first);
+      while (first < buffers.length && !buffers[first].hasRemaining()) {
+        first += 1;
+      }
+    }
+    readerIndex = Math.max(readerIndex, components.size() - 1);
+    return total;
+  }
+
+  /** The component that writes should go to. */
+  ByteBuffer last() {
+    return components.get(components.size() - 1);
+  }
+
+  /**
+   * Returns the current component if it holds at least {@code length} readable bytes, or {@code
+   * null} if these bytes are spread across several components.
+   */
+  ByteBuffer current(int length) {
+    if (components.isEmpty()) {
+      return null;
+    }
+    ByteBuffer component = components.get(readerIndex);
+    while (!component.hasRemaining() && readerIndex < components.size() - 1) {
+      component = components.get(++readerIndex);
+    }
+    return (component.remaining() >= length) ? component : null;
+  }
+
+  /**
+   * Reads the next {@code length} bytes. If they are contained in a single component, the result is
+   * a view of that component (no copy); otherwise they are gathered into a new heap buffer.
+   */
+  ByteBuffer readSlice(int length) {
+    checkReadable(length);
+    ByteBuffer component = current(length);
+    if (component != null) {
+      ByteBuffer slice = component.slice();
+      slice.limit(length);
+      component.position(component.position() + length);
+      return slice;
+    }
+    byte[] bytes = new byte[length];
+    readBytes(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  /**
+   * Checks that at least {@code length} bytes are readable. This must be called before allocating
+   * anything from a length read off the wire.
+   */
+  void checkReadable(int length) {
+    if (length < 0 || length > remaining()) {
+      throw new BufferUnderflowException();
+    }
+  }
+
+  /** Reads the next {@code dest.length} bytes into an array. */
+  void readBytes(byte[] dest) {
+    int offset = 0;
+    while (offset < dest.length) {
+      ByteBuffer component = current(1);
+      if (component == null) {
+        throw new BufferUnderflowException();
+      }
+      int length = Math.min(component.remaining(), dest.length - offset);
+      component.get(dest, offset, length);
+      offset += length;
+    }
+  }
+
+  /**
+   * Overwrites 4 readable bytes, starting {@code index} bytes after the reader index. The value may
+   * straddle components.
+   */
+  void putInt(int index, int value) {
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      putByte(index++, (byte) (value >>> shift));
+    }
+  }
+
+  private void putByte(int index, byte value) {
+    for (int i = readerIndex; i < components.size(); i++) {
+      ByteBuffer component = components.get(i);
+      if (index < component.remaining()) {
+        component.put(component.position() + index, value);
+        return;
+      }
+      index -= component.remaining();
+    }
+    throw new IndexOutOfBoundsException();
+  }
+
+  /** Skips the next {@code length} bytes, possibly across several components. */
+  void skip(int length) {
+    if (length < 0) {
+      throw new BufferUnderflowException();
+    }
+    int remaining = length;
+    while (remaining > 0) {
+      ByteBuffer component = current(1);
+      if (component == null) {
+        throw new BufferUnderflowException();
+      }
+      int skipped = Math.min(component.remaining(), remaining);
+      component.position(component.position() + skipped);
+      remaining -= skipped;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "CompositeByteBuffer(" + components.size() + " components, " + remaining() + " bytes)";
+  }
+}
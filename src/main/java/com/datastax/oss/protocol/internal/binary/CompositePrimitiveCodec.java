@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.PrimitiveCodec;
+import com.datastax.oss.protocol.internal.PrimitiveSizes;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import com.datastax.oss.protocol.internal.util.Utf8CharSequence;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * A primitive codec for {@link CompositeByteBuffer}s.
+ *
+ * <p>{@link #concat(CompositeByteBuffer, CompositeByteBuffer)} simply appends the components of the
+ * right operand to the left one, without copying any bytes. In particular, the compressed path of
+ * {@code FrameCodec.encode} produces a two-component buffer (header and compressed body) that can
+ * be written with {@link CompositeByteBuffer#writeTo}.
+ *
+ * <p>Individual components are allocated, written and released with a {@code ByteBuffer} codec
+ * (which can be a {@link PoolingPrimitiveCodec}). If that codec is in {@linkplain #slicesBytes()
+ * slice mode}, so is this one: {@code [bytes]} values that fit in a single component are returned
+ * as read-only views of that component.
+ *
+ * <p>If a growth chunk size is specified, buffers grow on demand: a write that does not fit in the
+ * last component appends a new component of at least that size. Combined with {@link
+ * #updateInt(int, CompositeByteBuffer, int)}, this allows encoding a message without computing its
+ * size first (see {@code FrameCodec.encodeSinglePass}). To avoid measuring strings before writing
+ * them, the room required by a string is estimated with the worst case of 3 bytes per char.
+ */
+public class CompositePrimitiveCodec implements PrimitiveCodec<CompositeByteBuffer> {
+
+  /**
+   * Adapts a {@code ByteBuffer} compressor for use with this codec.
+   *
+   * <p>The length methods are forwarded, so that the frame codec can still check its {@linkplain
+   * FrameCodec.Limits limits} before decompressing. The declared decompressed length is read from
+   * the first readable component; if it straddles components, the compressor sees a truncated
+   * prefix and returns -1, and the limits are only checked after decompressing. {@code
+   * compressInto} and {@code decompressInto} write directly into the last component of the
+   * destination if it has enough room, and otherwise append a separately (de)compressed buffer.
+   */
+  public static Compressor<CompositeByteBuffer> adapt(Compressor<ByteBuffer> compressor) {
+    return new Compressor<CompositeByteBuffer>() {
+      @Override
+      public String algorithm() {
+        return compressor.algorithm();
+      }
+
+      @Override
+      public CompositeByteBuffer compress(CompositeByteBuffer uncompressed) {
+        return CompositeByteBuffer.wrap(compressor.compress(gather(uncompressed)));
+      }
+
+      @Override
+      public int maxCompressedLength(int uncompressedLength) {
+        return compressor.maxCompressedLength(uncompressedLength);
+      }
+
+      @Override
+      public void compressInto(CompositeByteBuffer uncompressed, CompositeByteBuffer dest) {
+        ByteBuffer source = gather(uncompressed);
+        ByteBuffer last = dest.last();
+        if (last.capacity() - last.limit() >= compressor.maxCompressedLength(source.remaining())) {
+          compressor.compressInto(source, last);
+        } else {
+          dest.append(compressor.compress(source));
+        }
+      }
+
+      @Override
+      public CompositeByteBuffer decompress(CompositeByteBuffer compressed) {
+        return CompositeByteBuffer.wrap(compressor.decompress(gather(compressed)));
+      }
+
+      @Override
+      public int decompressedLength(CompositeByteBuffer compressed) {
+        ByteBuffer first = compressed.current(0);
+        return (first == null) ? -1 : compressor.decompressedLength(first);
+      }
+
+      @Override
+      public boolean supportsDecompressInto() {
+        return compressor.supportsDecompressInto();
+      }
+
+      @Override
+      public void decompressInto(CompositeByteBuffer compressed, CompositeByteBuffer dest) {
+        ByteBuffer source = gather(compressed);
+        ByteBuffer last = dest.last();
+        int length = compressor.decompressedLength(source);
+        if (length >= 0 && last.capacity() - last.limit() >= length) {
+          compressor.decompressInto(source, last);
+        } else {
+          dest.append(compressor.decompress(source));
+        }
+      }
+    };
+  }
+
+  private final PrimitiveCodec<ByteBuffer> componentCodec;
+  private final int growthChunkSize;
+
+  public CompositePrimitiveCodec(PrimitiveCodec<ByteBuffer> componentCodec) {
+    this(componentCodec, 0);
+  }
+
+  /**
+   * @param growthChunkSize the minimum size of the components that are added when a buffer runs out
+   *     of room, or 0 if buffers should not grow (writes past the allocated size fail).
+   */
+  public CompositePrimitiveCodec(PrimitiveCodec<ByteBuffer> componentCodec, int growthChunkSize) {
+    ProtocolErrors.check(growthChunkSize >= 0, "Invalid growthChunkSize %d", growthChunkSize);
+    this.componentCodec = componentCodec;
+    this.growthChunkSize = growthChunkSize;
+  }
+
+  /**
+   * Allocates a composite buffer with a single component of the requested size (or of the growth
+   * chunk size, if larger).
+   */
+  @Override
+  public CompositeByteBuffer allocate(int size) {
+    return CompositeByteBuffer.wrap(componentCodec.allocate(Math.max(size, growthChunkSize)));
+  }
+
+  /** Releases every component. */
+  @Override
+  public void release(CompositeByteBuffer toRelease) {
+    for (ByteBuffer component : toRelease.components()) {
+      componentCodec.release(component);
+    }
+  }
+
+  @Override
+  public int sizeOf(CompositeByteBuffer toMeasure) {
+    return toMeasure.remaining();
+  }
+
+  @Override
+  public CompositeByteBuffer concat(CompositeByteBuffer left, CompositeByteBuffer right) {
+    return left.append(right);
+  }
+
+  @Override
+  public byte readByte(CompositeByteBuffer source) {
+    return componentCodec.readByte(component(source, PrimitiveSizes.BYTE));
+  }
+
+  @Override
+  public int readInt(CompositeByteBuffer source) {
+    return componentCodec.readInt(component(source, PrimitiveSizes.INT));
+  }
+
+  @Override
+  public InetAddress readInetAddr(CompositeByteBuffer source) {
+    int length = readByte(source) & 0xFF;
+    byte[] bytes = new byte[length];
+    source.readBytes(bytes);
+    try {
+      return InetAddress.getByAddress(bytes);
+    } catch (UnknownHostException e) {
+      throw new IllegalArgumentException("Invalid address length: " + length, e);
+    }
+  }
+
+  @Override
+  public long readLong(CompositeByteBuffer source) {
+    return componentCodec.readLong(component(source, PrimitiveSizes.LONG));
+  }
+
+  @Override
+  public int readUnsignedShort(CompositeByteBuffer source) {
+    return componentCodec.readUnsignedShort(component(source, PrimitiveSizes.SHORT));
+  }
+
+  @Override
+  public ByteBuffer readBytes(CompositeByteBuffer source) {
+    int length = readInt(source);
+    if (length < 0) {
+      return null;
+    }
+    if (componentCodec.slicesBytes()) {
+      ByteBuffer slice = source.readSlice(length);
+      return slice.isReadOnly() ? slice : slice.asReadOnlyBuffer();
+    }
+    source.checkReadable(length);
+    byte[] bytes = new byte[length];
+    source.readBytes(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  @Override
+  public boolean slicesBytes() {
+    return componentCodec.slicesBytes();
+  }
+
+  @Override
+  public boolean decodesLazily() {
+    return componentCodec.decodesLazily();
+  }
+
+  @Override
+  public byte[] readShortBytes(CompositeByteBuffer source) {
+    int length = readUnsignedShort(source);
+    source.checkReadable(length);
+    byte[] bytes = new byte[length];
+    source.readBytes(bytes);
+    return bytes;
+  }
+
+  @Override
+  public String readString(CompositeByteBuffer source) {
+    int length = readUnsignedShort(source);
+    return ByteBufferPrimitiveCodec.readUtf8(source.readSlice(length), length);
+  }
+
+  @Override
+  public String readLongString(CompositeByteBuffer source) {
+    int length = readInt(source);
+    return ByteBufferPrimitiveCodec.readUtf8(source.readSlice(length), length);
+  }
+
+  @Override
+  public void readInts(CompositeByteBuffer source, int[] dest, int offset, int length) {
+    componentCodec.readInts(component(source, length * PrimitiveSizes.INT), dest, offset, length);
+  }
+
+  @Override
+  public void readLongs(CompositeByteBuffer source, long[] dest, int offset, int length) {
+    componentCodec.readLongs(component(source, length * PrimitiveSizes.LONG), dest, offset, length);
+  }
+
+  @Override
+  public void readUnsignedShorts(CompositeByteBuffer source, int[] dest, int offset, int length) {
+    componentCodec.readUnsignedShorts(
+        component(source, length * PrimitiveSizes.SHORT), dest, offset, length);
+  }
+
+  @Override
+  public void writeInts(int[] values, int offset, int length, CompositeByteBuffer dest) {
+    componentCodec.writeInts(values, offset, length, writable(dest, length * PrimitiveSizes.INT));
+  }
+
+  @Override
+  public void writeLongs(long[] values, int offset, int length, CompositeByteBuffer dest) {
+    componentCodec.writeLongs(values, offset, length, writable(dest, length * PrimitiveSizes.LONG));
+  }
+
+  @Override
+  public void writeUnsignedShorts(int[] values, int offset, int length, CompositeByteBuffer dest) {
+    componentCodec.writeUnsignedShorts(
+        values, offset, length, writable(dest, length * PrimitiveSizes.SHORT));
+  }
+
+  @Override
+  public void skip(CompositeByteBuffer source, int length) {
+    source.skip(length);
+  }
+
+  @Override
+  public CharSequence readLazyString(CompositeByteBuffer source) {
+    int length = readUnsignedShort(source);
+    source.checkReadable(length);
+    byte[] bytes = new byte[length];
+    source.readBytes(bytes);
+    return new Utf8CharSequence(bytes);
+  }
+
+  /**
+   * Delegates to the component codec if the identifier is contained in a single component (which is
+   * almost always the case); otherwise decodes it as a regular string.
+   */
+  @Override
+  public String readIdentifier(CompositeByteBuffer source) {
+    ByteBuffer component = source.current(PrimitiveSizes.SHORT);
+    if (component != null) {
+      int length = component.getShort(component.position()) & 0xFFFF;
+      if (component.remaining() >= PrimitiveSizes.SHORT + length) {
+        return componentCodec.readIdentifier(component);
+      }
+    }
+    return readString(source);
+  }
+
+  @Override
+  public void writeByte(byte b, CompositeByteBuffer dest) {
+    componentCodec.writeByte(b, writable(dest, PrimitiveSizes.BYTE));
+  }
+
+  @Override
+  public void writeInt(int i, CompositeByteBuffer dest) {
+    componentCodec.writeInt(i, writable(dest, PrimitiveSizes.INT));
+  }
+
+  @Override
+  public void writeInetAddr(InetAddress address, CompositeByteBuffer dest) {
+    componentCodec.writeInetAddr(address, writable(dest, PrimitiveSizes.BYTE + 16));
+  }
+
+  @Override
+  public void writeLong(long l, CompositeByteBuffer dest) {
+    componentCodec.writeLong(l, writable(dest, PrimitiveSizes.LONG));
+  }
+
+  @Override
+  public void writeUnsignedShort(int i, CompositeByteBuffer dest) {
+    componentCodec.writeUnsignedShort(i, writable(dest, PrimitiveSizes.SHORT));
+  }
+
+  @Override
+  public void writeString(String s, CompositeByteBuffer dest) {
+    componentCodec.writeString(s, writable(dest, PrimitiveSizes.SHORT + 3 * s.length()));
+  }
+
+  @Override
+  public void writeLongString(String s, CompositeByteBuffer dest) {
+    componentCodec.writeLongString(s, writable(dest, PrimitiveSizes.INT + 3 * s.length()));
+  }
+
+  @Override
+  public void writeBytes(ByteBuffer bytes, CompositeByteBuffer dest) {
+    int length = (bytes == null) ? 0 : bytes.remaining();
+    componentCodec.writeBytes(bytes, writable(dest, PrimitiveSizes.INT + length));
+  }
+
+  @Override
+  public void writeBytes(byte[] bytes, CompositeByteBuffer dest) {
+    int length = (bytes == null) ? 0 : bytes.length;
+    componentCodec.writeBytes(bytes, writable(dest, PrimitiveSizes.INT + length));
+  }
+
+  @Override
+  public void writeShortBytes(byte[] bytes, CompositeByteBuffer dest) {
+    componentCodec.writeShortBytes(bytes, writable(dest, PrimitiveSizes.SHORT + bytes.length));
+  }
+
+  @Override
+  public void updateInt(int newValue, CompositeByteBuffer dest, int index) {
+    dest.putInt(index, newValue);
+  }
+
+  @Override
+  public boolean supportsUpdates() {
+    return true;
+  }
+
+  @Override
+  public void writeRaw(CompositeByteBuffer source, CompositeByteBuffer dest) {
+    ByteBuffer target = writable(dest, source.remaining());
+    for (ByteBuffer component : source.nioBuffers()) {
+      // consumes the component
+      componentCodec.writeRaw(component, target);
+    }
+  }
+
+  /**
+   * Returns the component that the next write of at most {@code length} bytes should go to, growing
+   * the buffer if needed.
+   */
+  private ByteBuffer writable(CompositeByteBuffer dest, int length) {
+    ByteBuffer last = dest.last();
+    if (growthChunkSize > 0 && last.capacity() - last.limit() < length) {
+      last = componentCodec.allocate(Math.max(length, growthChunkSize));
+      dest.append(last);
+    }
+    return last;
+  }
+
+  /**
+   * Returns a buffer that holds the next {@code length} bytes at its position: either the current
+   * component, or a copy if the bytes straddle a component boundary.
+   */
+  private static ByteBuffer component(CompositeByteBuffer source, int length) {
+    ByteBuffer component = source.current(length);
+    return (component != null) ? component : source.readSlice(length);
+  }
+
+  /** Returns the readable bytes of a composite buffer as a single buffer, copying if needed. */
+  private static ByteBuffer gather(CompositeByteBuffer source) {
+    int length = source.remaining();
+    return source.readSlice(length);
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+/**
+ * Thrown when the checksum of a protocol v5 segment does not match its contents, which indicates
+ * that the data was corrupted in transit.
+ *
+ * <p>The connection should be closed, since the stream can't be resynchronized.
+ */
+public class CrcMismatchException extends IllegalArgumentException {
+
+  private static final long serialVersionUID = 1;
+
+  public CrcMismatchException(String message) {
+    super(message);
+  }
+}
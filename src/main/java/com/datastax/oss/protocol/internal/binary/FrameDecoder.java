@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a stream of bytes, received in arbitrary chunks (typically socket reads), into frames.
+ *
+ * <p>Typical usage:
+ *
+ * <pre>
+ * Frame frame;
+ * while ((frame = decoder.readFrame(chunk)) != null) {
+ *   handle(frame);
+ * }
+ * </pre>
+ *
+ * When a chunk contains a whole frame, the frame is returned as a view of the chunk, without any
+ * copy. Only frames that span several chunks are accumulated, into a single buffer that is sized as
+ * soon as the {@linkplain FrameCodec#headerEncodedSize() header} is complete. The declared length
+ * is validated at that point, so an oversized frame is rejected before any of its body is buffered.
+ *
+ * <p>Once this class has thrown an exception, the stream is out of sync and the decoder should not
+ * be used anymore (typically, the connection gets closed).
+ *
+ * <p>This class is not thread-safe.
+ */
+public class FrameDecoder {
+
+  private static final int HEADER_SIZE = FrameCodec.headerEncodedSize();
+  private static final int LENGTH_OFFSET = HEADER_SIZE - 4;
+
+  private final FrameCodec<ByteBuffer> frameCodec;
+  private final int maxFrameLength;
+  private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+  // The frame being accumulated, once its header is known. null between frames.
+  private ByteBuffer pending;
+
+  /**
+   * @param frameCodec the codec that decodes the frames. Its {@linkplain
+   *     FrameCodec.Limits#maxFrameLength maximum frame length} also caps what gets buffered.
+   */
+  public FrameDecoder(FrameCodec<ByteBuffer> frameCodec) {
+    this.frameCodec = frameCodec;
+    this.maxFrameLength = frameCodec.getLimits().maxFrameLength;
+  }
+
+  /**
+   * Consumes bytes from {@code input} until the next frame is complete, and decodes it.
+   *
+   * @return the frame, or {@code null} if {@code input} was exhausted before a frame could be
+   *     completed. In that case, the partial frame has been buffered internally, and decoding will
+   *     resume with the next chunk.
+   * @throws IllegalArgumentException if a header declares an invalid or oversized frame length.
+   * @see #readFrameBuffer(ByteBuffer)
+   */
+  public Frame readFrame(ByteBuffer input) {
+    ByteBuffer buffer = readFrameBuffer(input);
+    return (buffer == null) ? null : frameCodec.decode(buffer);
+  }
+
+  /**
+   * Consumes bytes from {@code input} until the next frame is complete, and returns its encoded
+   * bytes (header included).
+   *
+   * <p>If the frame was entirely contained in {@code input}, the result is a view of it: the caller
+   * must not modify the chunk while the frame is in use (this also applies to the values decoded
+   * from it, if the primitive codec {@linkplain
+   * com.datastax.oss.protocol.internal.PrimitiveCodec#slicesBytes() slices bytes}). Otherwise, it
+   * is a buffer owned by this decoder, that won't be reused.
+   *
+   * @return the buffer, or {@code null} if {@code input} was exhausted before a frame could be
+   *     completed.
+   * @throws IllegalArgumentException if a header declares an invalid or oversized frame length.
+   */
+  public ByteBuffer readFrameBuffer(ByteBuffer input) {
+    if (pending == null) {
+      if (header.position() == 0 && input.remaining() >= HEADER_SIZE) {
+        int frameLength = frameLength(input.getInt(input.position() + LENGTH_OFFSET));
+        if (input.remaining() >= frameLength) {
+          // Fast path: the whole frame is in the chunk
+          ByteBuffer frame = input.slice();
+          frame.limit(frameLength);
+          input.position(input.position() + frameLength);
+          return frame;
+        }
+        pending = ByteBuffer.allocate(frameLength);
+      } else {
+        transfer(input, header);
+        if (header.hasRemaining()) {
+          return null;
+        }
+        header.flip();
+        pending = ByteBuffer.allocate(frameLength(header.getInt(LENGTH_OFFSET)));
+        pending.put(header);
+        header.clear();
+      }
+    }
+    transfer(input, pending);
+    if (pending.hasRemaining()) {
+      return null;
+    }
+    ByteBuffer frame = pending;
+    pending = null;
+    frame.flip();
+    return frame;
+  }
+
+  /**
+   * The number of bytes of the current frame that have been buffered so far (0 if the decoder is
+   * between frames).
+   */
+  public int bufferedBytes() {
+    return (pending == null) ? header.position() : pending.position();
+  }
+
+  private int frameLength(int bodyLength) {
+    ProtocolErrors.check(
+        bodyLength >= 0 && bodyLength <= maxFrameLength - HEADER_SIZE,
+        "Invalid frame length %d (max frame length is %d, including the header)",
+        bodyLength,
+        maxFrameLength);
+    return HEADER_SIZE + bodyLength;
+  }
+
+  private static void transfer(ByteBuffer source, ByteBuffer target) {
+    int count = Math.min(source.remaining(), target.remaining());
+    ByteBuffer chunk = source.slice();
+    chunk.limit(count);
+    target.put(chunk);
+    source.position(source.position() + count);
+  }
+}
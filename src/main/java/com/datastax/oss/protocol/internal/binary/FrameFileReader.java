@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file of consecutive encoded frames (for example a capture of native protocol traffic),
+ * without loading it on the heap.
+ *
+ * <p>The file is memory-mapped one window at a time, and frame boundaries are found by reading the
+ * length in each {@linkplain FrameCodec#headerEncodedSize() header}. Heap usage is therefore
+ * independent of the size of the file; paging is left to the operating system.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class FrameFileReader implements Closeable {
+
+  /** The default size of the mapped window (frames larger than that get a mapping of their own). */
+  public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * Opens a file for reading.
+   *
+   * @param frameCodec the codec to decode frames with. Typically built with {@link
+   *     MappedPrimitiveCodec#INSTANCE}.
+   */
+  public static FrameFileReader open(Path path, FrameCodec<ByteBuffer> frameCodec)
+      throws IOException {
+    return new FrameFileReader(
+        FileChannel.open(path, StandardOpenOption.READ), frameCodec, DEFAULT_WINDOW_SIZE);
+  }
+
+  private final FileChannel channel;
+  private final FrameCodec<ByteBuffer> frameCodec;
+  private final int windowSize;
+  private final long size;
+
+  private MappedByteBuffer window;
+  private long windowStart;
+  private long position;
+
+  public FrameFileReader(FileChannel channel, FrameCodec<ByteBuffer> frameCodec, int windowSize)
+      throws IOException {
+    ProtocolErrors.check(
+        windowSize >= FrameCodec.headerEncodedSize(),
+        "windowSize must be at least %d",
+        FrameCodec.headerEncodedSize());
+    this.channel = channel;
+    this.frameCodec = frameCodec;
+    this.windowSize = windowSize;
+    this.size = channel.size();
+    this.position = channel.position();
+  }
+
+  /** The offset in the file of the next frame. */
+  public long position() {
+    return position;
+  }
+
+  /**
+   * Decodes the next frame.
+   *
+   * @return the frame, or {@code null} if the end of the file was reached.
+   * @throws IllegalArgumentException if the file ends with a truncated frame.
+   */
+  public Frame readFrame() throws IOException {
+    ByteBuffer buffer = readFrameBuffer();
+    return (buffer == null) ? null : frameCodec.decode(buffer);
+  }
+
+  /**
+   * Returns the encoded bytes of the next frame (header included), as a read-only view of the
+   * mapped file.
+   *
+   * @return the buffer, or {@code null} if the end of the file was reached.
+   * @throws IllegalArgumentException if the file ends with a truncated frame.
+   */
+  public ByteBuffer readFrameBuffer() throws IOException {
+    if (position >= size) {
+      return null;
+    }
+    int headerSize = FrameCodec.headerEncodedSize();
+    ProtocolErrors.check(
+        size - position >= headerSize, "Truncated frame header at offset %d", position);
+    ByteBuffer header = region(position, headerSize);
+    int length = header.getInt(header.position() + headerSize - 4);
+    ProtocolErrors.check(
+        length >= 0 && length <= Integer.MAX_VALUE - headerSize,
+        "Invalid frame length %d at offset %d",
+        length,
+        position);
+    int frameSize = headerSize + length;
+    ProtocolErrors.check(
+        size - position >= frameSize,
+        "Truncated frame at offset %d (expected %d bytes, %d available)",
+        position,
+        frameSize,
+        size - position);
+    ByteBuffer frame = region(position, frameSize);
+    position += frameSize;
+    return frame;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+
+  private ByteBuffer region(long offset, int length) throws IOException {
+    if (window == null
+        || offset < windowStart
+        || offset + length > windowStart + window.capacity()) {
+      long mapSize = Math.min(Math.max(windowSize, length), size - offset);
+      window = channel.map(FileChannel.MapMode.READ_ONLY, offset, mapSize);
+      windowStart = offset;
+    }
+    ByteBuffer region = window.duplicate();
+    int start = (int) (offset - windowStart);
+    region.limit(start + length).position(start);
+    return region.slice();
+  }
+}
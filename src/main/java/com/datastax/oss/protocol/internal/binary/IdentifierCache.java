@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of decoded schema identifiers (keyspace, table, column names...), keyed on their
+ * raw UTF-8 bytes.
+ *
+ * <p>On a hit, the canonical {@code String} is returned without decoding anything, and all the
+ * decoded metadata that refers to the same identifier shares a single instance.
+ *
+ * <p>The cache is a fixed-size table where each slot holds the last identifier that hashed to it;
+ * collisions simply replace the previous entry. Identifiers longer than {@link #MAX_CACHED_LENGTH}
+ * bytes are never cached.
+ *
+ * <p>This class is thread-safe.
+ */
+public class IdentifierCache {
+
+  /** The maximum encoded length of a cached identifier. */
+  public static final int MAX_CACHED_LENGTH = 128;
+
+  private final Entry[] entries;
+  private final int mask;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /** @param capacity the number of slots. Will be rounded up to the next power of two. */
+  public IdentifierCache(int capacity) {
+    ProtocolErrors.check(capacity > 0 && capacity <= 1 << 30, "Invalid capacity %d", capacity);
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.entries = new Entry[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Returns the string for the UTF-8 bytes at absolute indices {@code [index, index + length)} of
+   * {@code source}. The buffer's position and limit are not modified.
+   */
+  public String get(ByteBuffer source, int index, int length) {
+    if (length > MAX_CACHED_LENGTH) {
+      misses.increment();
+      return decode(source, index, length);
+    }
+    int hash = hash(source, index, length);
+    int slot = hash & mask;
+    Entry entry = entries[slot];
+    if (entry != null && entry.hash == hash && entry.matches(source, index, length)) {
+      hits.increment();
+      return entry.value;
+    }
+    misses.increment();
+    String value = decode(source, index, length);
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = source.get(index + i);
+    }
+    // Entries are immutable, so this racy write is safe: concurrent readers see either the old or
+    // the new entry.
+    entries[slot] = new Entry(hash, bytes, value);
+    return value;
+  }
+
+  /** The number of {@link #get} calls that returned a cached instance. */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /** The number of {@link #get} calls that had to decode the identifier. */
+  public long misses() {
+    return misses.sum();
+  }
+
+  private static int hash(ByteBuffer source, int index, int length) {
+    int hash = 1;
+    for (int i = index; i < index + length; i++) {
+      hash = 31 * hash + source.get(i);
+    }
+    // Murmur3's finalizer: short identifiers produce poorly distributed polynomial hashes, and we
+    // only use the low bits to select the slot
+    hash ^= hash >>> 16;
+    hash *= 0x85EBCA6B;
+    hash ^= hash >>> 13;
+    hash *= 0xC2B2AE35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+
+  private static String decode(ByteBuffer source, int index, int length) {
+    ByteBuffer view = source.duplicate();
+    view.limit(index + length).position(index);
+    return ByteBufferPrimitiveCodec.readUtf8(view, length);
+  }
+
+  private static class Entry {
+    private final int hash;
+    private final byte[] bytes;
+    private final String value;
+
+    private Entry(int hash, byte[] bytes, String value) {
+      this.hash = hash;
+      this.bytes = bytes;
+      this.value = value;
+    }
+
+    private boolean matches(ByteBuffer source, int index, int length) {
+      if (bytes.length != length) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (bytes[i] != source.get(index + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
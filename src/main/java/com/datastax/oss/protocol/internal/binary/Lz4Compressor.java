@@ -0,0 +1,528 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.PrimitiveCodec;
+import com.datastax.oss.protocol.internal.PrimitiveSizes;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import java.nio.ByteBuffer;
+
+/**
+ * A pure Java implementation of the <a
+ * href="https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md">LZ4 block format</a>, that
+ * does not require any native library.
+ *
+ * <p>For frames (protocol v4 and below), the compressed block is prefixed with the uncompressed
+ * length as a 4-byte big-endian integer, as Cassandra expects. For protocol v5 segments, {@link
+ * #compressWithoutLength(ByteBuffer)} produces the raw block.
+ *
+ * <p>Heap buffers are processed through their backing arrays; other buffers (typically direct ones)
+ * with absolute accessors, and bulk puts for literals. Output buffers are allocated with the
+ * primitive codec passed to the constructor, so that they can be released (and pooled) by the frame
+ * codec.
+ *
+ * <p>The compressor uses a hash table of {@value #HASH_TABLE_SIZE} entries per thread, that is
+ * reused across calls. Stale entries from previous calls are harmless since every candidate match
+ * is verified. This class is thread-safe.
+ */
+public class Lz4Compressor implements Compressor<ByteBuffer> {
+
+  private static final int HASH_LOG = 12;
+  private static final int HASH_TABLE_SIZE = 1 << HASH_LOG;
+  private static final int MIN_MATCH = 4;
+  // The last 5 bytes of a block are always literals, and the last match starts at least 12 bytes
+  // before the end (see the "end of block conditions" in the format specification).
+  private static final int LAST_LITERALS = 5;
+  private static final int MF_LIMIT = 12;
+  private static final int MAX_DISTANCE = 0xFFFF;
+  private static final int RUN_MASK = 0xF;
+  // Start skipping faster after that many failed attempts in a row (2^6)
+  private static final int SKIP_TRIGGER = 6;
+
+  private static final ThreadLocal<int[]> HASH_TABLES =
+      ThreadLocal.withInitial(() -> new int[HASH_TABLE_SIZE]);
+
+  private final PrimitiveCodec<ByteBuffer> allocator;
+
+  /** Creates an instance that allocates heap buffers. */
+  public Lz4Compressor() {
+    this(ByteBufferPrimitiveCodec.HEAP);
+  }
+
+  /**
+   * @param allocator the codec that will allocate the output buffers. This should be the same codec
+   *     as the frame codec's, since the frame codec releases the buffers returned by this
+   *     compressor.
+   */
+  public Lz4Compressor(PrimitiveCodec<ByteBuffer> allocator) {
+    ProtocolErrors.check(allocator != null, "allocator can't be null");
+    this.allocator = allocator;
+  }
+
+  @Override
+  public String algorithm() {
+    return "lz4";
+  }
+
+  @Override
+  public int maxCompressedLength(int uncompressedLength) {
+    return PrimitiveSizes.INT + maxBlockLength(uncompressedLength);
+  }
+
+  @Override
+  public ByteBuffer compress(ByteBuffer uncompressed) {
+    ByteBuffer compressed = allocator.allocate(maxCompressedLength(uncompressed.remaining()));
+    compressInto(uncompressed, compressed);
+    return compressed;
+  }
+
+  @Override
+  public void compressInto(ByteBuffer uncompressed, ByteBuffer dest) {
+    int length = uncompressed.remaining();
+    int index = dest.limit();
+    dest.limit(dest.capacity());
+    dest.putInt(index, length);
+    int end = compressBlock(uncompressed, dest, index + PrimitiveSizes.INT);
+    dest.limit(end);
+  }
+
+  @Override
+  public ByteBuffer compressWithoutLength(ByteBuffer uncompressed) {
+    ByteBuffer compressed = allocator.allocate(maxBlockLength(uncompressed.remaining()));
+    int index = compressed.limit();
+    compressed.limit(compressed.capacity());
+    compressed.limit(compressBlock(uncompressed, compressed, index));
+    return compressed;
+  }
+
+  @Override
+  public int decompressedLength(ByteBuffer compressed) {
+    return (compressed.remaining() < PrimitiveSizes.INT)
+        ? -1
+        : compressed.getInt(compressed.position());
+  }
+
+  @Override
+  public ByteBuffer decompress(ByteBuffer compressed) {
+    ProtocolErrors.check(
+        compressed.remaining() >= PrimitiveSizes.INT, "Missing LZ4 uncompressed length");
+    int uncompressedLength = compressed.getInt();
+    return decompressWithoutLength(compressed, uncompressedLength);
+  }
+
+  @Override
+  public boolean supportsDecompressInto() {
+    return true;
+  }
+
+  @Override
+  public void decompressInto(ByteBuffer compressed, ByteBuffer dest) {
+    ProtocolErrors.check(
+        compressed.remaining() >= PrimitiveSizes.INT, "Missing LZ4 uncompressed length");
+    int uncompressedLength = compressed.getInt();
+    decompressInto(compressed, uncompressedLength, dest);
+  }
+
+  @Override
+  public ByteBuffer decompressWithoutLength(ByteBuffer compressed, int uncompressedLength) {
+    ProtocolErrors.check(
+        uncompressedLength >= 0, "Invalid LZ4 uncompressed length %d", uncompressedLength);
+    ByteBuffer uncompressed = allocator.allocate(uncompressedLength);
+    decompressInto(compressed, uncompressedLength, uncompressed);
+    return uncompressed;
+  }
+
+  private static void decompressInto(
+      ByteBuffer compressed, int uncompressedLength, ByteBuffer dest) {
+    ProtocolErrors.check(
+        uncompressedLength >= 0, "Invalid LZ4 uncompressed length %d", uncompressedLength);
+    int index = dest.limit();
+    dest.limit(index + uncompressedLength);
+    if (compressed.hasArray() && dest.hasArray()) {
+      decompressBlock(
+          compressed.array(),
+          compressed.arrayOffset() + compressed.position(),
+          compressed.remaining(),
+          dest.array(),
+          dest.arrayOffset() + index,
+          uncompressedLength);
+    } else {
+      decompressBlock(
+          view(compressed),
+          compressed.position(),
+          compressed.remaining(),
+          view(dest),
+          index,
+          uncompressedLength);
+    }
+    compressed.position(compressed.limit());
+  }
+
+  /** The maximum length of the LZ4 block for the given input length (same as LZ4_compressBound). */
+  static int maxBlockLength(int uncompressedLength) {
+    return uncompressedLength + uncompressedLength / 255 + 16;
+  }
+
+  /**
+   * Compresses the readable bytes of {@code source} (which get consumed) into {@code dest},
+   * starting at the given absolute index.
+   *
+   * @return the absolute index after the last written byte.
+   */
+  private static int compressBlock(ByteBuffer source, ByteBuffer dest, int destIndex) {
+    int length = source.remaining();
+    int end;
+    if (source.hasArray() && dest.hasArray()) {
+      int destOffset = dest.arrayOffset();
+      end =
+          compressBlock(
+                  source.array(),
+                  source.arrayOffset() + source.position(),
+                  length,
+                  dest.array(),
+                  destOffset + destIndex)
+              - destOffset;
+    } else {
+      end = compressBlock(view(source), source.position(), length, view(dest), destIndex);
+    }
+    source.position(source.limit());
+    return end;
+  }
+
+  // Heap path
+
+  private static int compressBlock(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+    int[] hashTable = HASH_TABLES.get();
+    int srcEnd = srcOff + srcLen;
+    int matchLimit = srcEnd - LAST_LITERALS;
+    int mfLimit = srcEnd - MF_LIMIT;
+    int anchor = srcOff;
+    int d = dstOff;
+
+    if (srcLen > MF_LIMIT) {
+      int i = srcOff + 1;
+      hashTable[hash(readIntLE(src, srcOff))] = srcOff;
+      while (true) {
+        // Find a match
+        int ref;
+        int attempts = 1 << SKIP_TRIGGER;
+        do {
+          int step = attempts++ >>> SKIP_TRIGGER;
+          int h = hash(readIntLE(src, i));
+          ref = hashTable[h];
+          hashTable[h] = i;
+          if (ref >= srcOff
+              && ref < i
+              && i - ref <= MAX_DISTANCE
+              && readIntLE(src, ref) == readIntLE(src, i)) {
+            break;
+          }
+          i += step;
+        } while (i <= mfLimit);
+        if (i > mfLimit) {
+          break;
+        }
+
+        // Extend backwards
+        while (i > anchor && ref > srcOff && src[i - 1] == src[ref - 1]) {
+          i -= 1;
+          ref -= 1;
+        }
+        // Extend forwards
+        int matchLength = MIN_MATCH;
+        while (i + matchLength < matchLimit && src[i + matchLength] == src[ref + matchLength]) {
+          matchLength += 1;
+        }
+
+        // Write the sequence
+        int literalLength = i - anchor;
+        int tokenIndex = d++;
+        d = writeLength(literalLength, dst, d);
+        System.arraycopy(src, anchor, dst, d, literalLength);
+        d += literalLength;
+        int offset = i - ref;
+        dst[d++] = (byte) offset;
+        dst[d++] = (byte) (offset >>> 8);
+        d = writeLength(matchLength - MIN_MATCH, dst, d);
+        dst[tokenIndex] = token(literalLength, matchLength - MIN_MATCH);
+
+        i += matchLength;
+        anchor = i;
+        if (i > mfLimit) {
+          break;
+        }
+        // Index the position just before, this improves the ratio for repetitive data
+        hashTable[hash(readIntLE(src, i - 2))] = i - 2;
+      }
+    }
+
+    // Last literals
+    int literalLength = srcEnd - anchor;
+    dst[d++] = token(literalLength, 0);
+    d = writeLength(literalLength, dst, d);
+    System.arraycopy(src, anchor, dst, d, literalLength);
+    return d + literalLength;
+  }
+
+  private static void decompressBlock(
+      byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+    int i = srcOff;
+    int srcEnd = srcOff + srcLen;
+    int o = dstOff;
+    int dstEnd = dstOff + dstLen;
+    while (true) {
+      checkInput(i < srcEnd);
+      int token = src[i++] & 0xFF;
+
+      int literalLength = token >>> 4;
+      if (literalLength == RUN_MASK) {
+        int b;
+        do {
+          checkInput(i < srcEnd);
+          b = src[i++] & 0xFF;
+          literalLength += b;
+          checkInput(literalLength <= dstLen);
+        } while (b == 0xFF);
+      }
+      checkInput(literalLength <= srcEnd - i && literalLength <= dstEnd - o);
+      System.arraycopy(src, i, dst, o, literalLength);
+      i += literalLength;
+      o += literalLength;
+      if (i == srcEnd) {
+        break;
+      }
+
+      checkInput(srcEnd - i >= 2);
+      int offset = (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8;
+      i += 2;
+      checkInput(offset > 0 && offset <= o - dstOff);
+
+      int matchLength = token & RUN_MASK;
+      if (matchLength == RUN_MASK) {
+        int b;
+        do {
+          checkInput(i < srcEnd);
+          b = src[i++] & 0xFF;
+          matchLength += b;
+          checkInput(matchLength <= dstLen);
+        } while (b == 0xFF);
+      }
+      matchLength += MIN_MATCH;
+      checkInput(matchLength <= dstEnd - o);
+      int ref = o - offset;
+      if (offset >= matchLength) {
+        System.arraycopy(dst, ref, dst, o, matchLength);
+      } else {
+        // Overlapping copy: the match repeats the last `offset` bytes
+        for (int j = 0; j < matchLength; j++) {
+          dst[o + j] = dst[ref + j];
+        }
+      }
+      o += matchLength;
+    }
+    checkInput(o == dstEnd);
+  }
+
+  // ByteBuffer path (absolute accessors, used for direct buffers)
+
+  private static int compressBlock(
+      ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int dstOff) {
+    int[] hashTable = HASH_TABLES.get();
+    int srcEnd = srcOff + srcLen;
+    int matchLimit = srcEnd - LAST_LITERALS;
+    int mfLimit = srcEnd - MF_LIMIT;
+    int anchor = srcOff;
+    int d = dstOff;
+
+    if (srcLen > MF_LIMIT) {
+      int i = srcOff + 1;
+      hashTable[hash(src.getInt(srcOff))] = srcOff;
+      while (true) {
+        int ref;
+        int attempts = 1 << SKIP_TRIGGER;
+        do {
+          int step = attempts++ >>> SKIP_TRIGGER;
+          int value = src.getInt(i);
+          int h = hash(value);
+          ref = hashTable[h];
+          hashTable[h] = i;
+          if (ref >= srcOff && ref < i && i - ref <= MAX_DISTANCE && src.getInt(ref) == value) {
+            break;
+          }
+          i += step;
+        } while (i <= mfLimit);
+        if (i > mfLimit) {
+          break;
+        }
+
+        while (i > anchor && ref > srcOff && src.get(i - 1) == src.get(ref - 1)) {
+          i -= 1;
+          ref -= 1;
+        }
+        int matchLength = MIN_MATCH;
+        while (i + matchLength < matchLimit
+            && src.get(i + matchLength) == src.get(ref + matchLength)) {
+          matchLength += 1;
+        }
+
+        int literalLength = i - anchor;
+        int tokenIndex = d++;
+        d = writeLength(literalLength, dst, d);
+        copy(src, anchor, dst, d, literalLength);
+        d += literalLength;
+        int offset = i - ref;
+        dst.put(d++, (byte) offset);
+        dst.put(d++, (byte) (offset >>> 8));
+        d = writeLength(matchLength - MIN_MATCH, dst, d);
+        dst.put(tokenIndex, token(literalLength, matchLength - MIN_MATCH));
+
+        i += matchLength;
+        anchor = i;
+        if (i > mfLimit) {
+          break;
+        }
+        hashTable[hash(src.getInt(i - 2))] = i - 2;
+      }
+    }
+
+    int literalLength = srcEnd - anchor;
+    dst.put(d++, token(literalLength, 0));
+    d = writeLength(literalLength, dst, d);
+    copy(src, anchor, dst, d, literalLength);
+    return d + literalLength;
+  }
+
+  private static void decompressBlock(
+      ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int dstOff, int dstLen) {
+    int i = srcOff;
+    int srcEnd = srcOff + srcLen;
+    int o = dstOff;
+    int dstEnd = dstOff + dstLen;
+    while (true) {
+      checkInput(i < srcEnd);
+      int token = src.get(i++) & 0xFF;
+
+      int literalLength = token >>> 4;
+      if (literalLength == RUN_MASK) {
+        int b;
+        do {
+          checkInput(i < srcEnd);
+          b = src.get(i++) & 0xFF;
+          literalLength += b;
+          checkInput(literalLength <= dstLen);
+        } while (b == 0xFF);
+      }
+      checkInput(literalLength <= srcEnd - i && literalLength <= dstEnd - o);
+      copy(src, i, dst, o, literalLength);
+      i += literalLength;
+      o += literalLength;
+      if (i == srcEnd) {
+        break;
+      }
+
+      checkInput(srcEnd - i >= 2);
+      int offset = (src.get(i) & 0xFF) | (src.get(i + 1) & 0xFF) << 8;
+      i += 2;
+      checkInput(offset > 0 && offset <= o - dstOff);
+
+      int matchLength = token & RUN_MASK;
+      if (matchLength == RUN_MASK) {
+        int b;
+        do {
+          checkInput(i < srcEnd);
+          b = src.get(i++) & 0xFF;
+          matchLength += b;
+          checkInput(matchLength <= dstLen);
+        } while (b == 0xFF);
+      }
+      matchLength += MIN_MATCH;
+      checkInput(matchLength <= dstEnd - o);
+      int ref = o - offset;
+      for (int j = 0; j < matchLength; j++) {
+        dst.put(o + j, dst.get(ref + j));
+      }
+      o += matchLength;
+    }
+    checkInput(o == dstEnd);
+  }
+
+  private static int hash(int value) {
+    return (value * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  private static int readIntLE(byte[] bytes, int i) {
+    return (bytes[i] & 0xFF)
+        | (bytes[i + 1] & 0xFF) << 8
+        | (bytes[i + 2] & 0xFF) << 16
+        | (bytes[i + 3] & 0xFF) << 24;
+  }
+
+  private static byte token(int literalLength, int matchLength) {
+    return (byte) (Math.min(literalLength, RUN_MASK) << 4 | Math.min(matchLength, RUN_MASK));
+  }
+
+  /** Writes the extra bytes of a length that doesn't fit in its half of the token, if any. */
+  private static int writeLength(int length, byte[] dst, int d) {
+    if (length >= RUN_MASK) {
+      length -= RUN_MASK;
+      while (length >= 0xFF) {
+        dst[d++] = (byte) 0xFF;
+        length -= 0xFF;
+      }
+      dst[d++] = (byte) length;
+    }
+    return d;
+  }
+
+  private static int writeLength(int length, ByteBuffer dst, int d) {
+    if (length >= RUN_MASK) {
+      length -= RUN_MASK;
+      while (length >= 0xFF) {
+        dst.put(d++, (byte) 0xFF);
+        length -= 0xFF;
+      }
+      dst.put(d++, (byte) length);
+    }
+    return d;
+  }
+
+  /**
+   * Returns a duplicate spanning the whole capacity of a buffer, that {@link #copy} can move
+   * around. This is called once per block, not once per literal.
+   */
+  private static ByteBuffer view(ByteBuffer buffer) {
+    ByteBuffer view = buffer.duplicate();
+    view.clear();
+    return view;
+  }
+
+  /** Bulk copy between two {@linkplain #view(ByteBuffer) views}. */
+  private static void copy(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex, int length) {
+    if (length > 0) {
+      src.limit(srcIndex + length);
+      src.position(srcIndex);
+      dst.position(dstIndex);
+      dst.put(src);
+      // Absolute reads past this literal must still be allowed
+      src.limit(src.capacity());
+    }
+  }
+
+  private static void checkInput(boolean condition) {
+    ProtocolErrors.check(condition, "Malformed LZ4 input");
+  }
+}
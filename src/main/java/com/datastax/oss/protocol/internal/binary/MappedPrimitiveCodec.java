@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only primitive codec for memory-mapped regions (see {@link FrameFileReader}).
+ *
+ * <p>Reads follow the same conventions as {@link ByteBufferPrimitiveCodec}. All the values that
+ * outlive the frame ({@code [bytes]}, strings, etc.) are copied to the heap, so the decoded
+ * messages never reference the mapped region.
+ *
+ * <p>Writes are not supported: this codec can only be used to decode frames. The only allocations
+ * are the scratch buffers that the frame codec decompresses compressed frames into; they are on the
+ * heap, and not tied to the mapped region.
+ */
+public class MappedPrimitiveCodec extends ByteBufferPrimitiveCodec {
+
+  public static final MappedPrimitiveCodec INSTANCE = new MappedPrimitiveCodec();
+
+  private MappedPrimitiveCodec() {
+    super(true);
+  }
+
+  @Override
+  public ByteBuffer allocate(int size) {
+    return ByteBufferPrimitiveCodec.HEAP.allocate(size);
+  }
+
+  @Override
+  public ByteBuffer concat(ByteBuffer left, ByteBuffer right) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeByte(byte b, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeInt(int i, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeInetAddr(InetAddress address, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeLong(long l, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeUnsignedShort(int i, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeString(String s, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeLongString(String s, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeBytes(ByteBuffer bytes, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeBytes(byte[] bytes, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeShortBytes(byte[] bytes, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void updateInt(int newValue, ByteBuffer dest, int index) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean supportsUpdates() {
+    return false;
+  }
+
+  @Override
+  public void writeRaw(ByteBuffer source, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeInts(int[] values, int offset, int length, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeLongs(long[] values, int offset, int length, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  @Override
+  public void writeUnsignedShorts(int[] values, int offset, int length, ByteBuffer dest) {
+    throw readOnly();
+  }
+
+  private static UnsupportedOperationException readOnly() {
+    return new UnsupportedOperationException("This codec is read-only");
+  }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.PrimitiveCodec;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decorates a primitive codec to allocate its buffers from a {@link ByteBufferPool}.
+ *
+ * <p>The delegate must follow the same buffer conventions as {@link ByteBufferPrimitiveCodec}
+ * (readable bytes between the position and the limit, writes appended at the limit).
+ *
+ * <p>Buffers returned by {@code FrameCodec.encode} come from the pool: once they have been written
+ * to the network, the caller should hand them back with {@link #release(ByteBuffer)}. Similarly,
+ * {@link #concat(ByteBuffer, ByteBuffer)} takes ownership of its arguments, and releases any of
+ * them that it does not return.
+ *
+ * <p>If the delegate is in {@linkplain #slicesBytes() slice mode}, a decoded frame may point into
+ * its source buffer: the source must only be released (and therefore recycled) once the frame is
+ * not used anymore. The same goes for the pooled body of a compressed frame, which is recycled by
+ * {@link com.datastax.oss.protocol.internal.Frame#release()}.
+ */
+public class PoolingPrimitiveCodec implements PrimitiveCodec<ByteBuffer> {
+
+  private final PrimitiveCodec<ByteBuffer> delegate;
+  private final ByteBufferPool pool;
+
+  public PoolingPrimitiveCodec(PrimitiveCodec<ByteBuffer> delegate, ByteBufferPool pool) {
+    this.delegate = delegate;
+    this.pool = pool;
+  }
+
+  public ByteBufferPool getPool() {
+    return pool;
+  }
+
+  @Override
+  public ByteBuffer allocate(int size) {
+    ByteBuffer buffer = pool.acquire(size);
+    buffer.limit(0);
+    return buffer;
+  }
+
+  @Override
+  public void release(ByteBuffer toRelease) {
+    pool.release(toRelease);
+  }
+
+  @Override
+  public int sizeOf(ByteBuffer toMeasure) {
+    return delegate.sizeOf(toMeasure);
+  }
+
+  @Override
+  @SuppressWarnings("ReferenceEquality")
+  public ByteBuffer concat(ByteBuffer left, ByteBuffer right) {
+    ByteBuffer result;
+    if (left.capacity() - left.limit() < right.remaining() && right.position() < left.remaining()) {
+      // Neither operand can absorb the other: start from a pooled buffer that is big enough, so
+      // that the delegate only appends to it.
+      result = allocate(left.remaining() + right.remaining());
+      result = delegate.concat(result, left);
+      result = delegate.concat(result, right);
+    } else {
+      result = delegate.concat(left, right);
+    }
+    if (result != left) {
+      release(left);
+    }
+    if (result != right) {
+      release(right);
+    }
+    return result;
+  }
+
+  @Override
+  public byte readByte(ByteBuffer source) {
+    return delegate.readByte(source);
+  }
+
+  @Override
+  public int readInt(ByteBuffer source) {
+    return delegate.readInt(source);
+  }
+
+  @Override
+  public InetAddress readInetAddr(ByteBuffer source) {
+    return delegate.readInetAddr(source);
+  }
+
+  @Override
+  public long readLong(ByteBuffer source) {
+    return delegate.readLong(source);
+  }
+
+  @Override
+  public int readUnsignedShort(ByteBuffer source) {
+    return delegate.readUnsignedShort(source);
+  }
+
+  @Override
+  public ByteBuffer readBytes(ByteBuffer source) {
+    return delegate.readBytes(source);
+  }
+
+  @Override
+  public boolean slicesBytes() {
+    return delegate.slicesBytes();
+  }
+
+  @Override
+  public boolean decodesLazily() {
+    return delegate.decodesLazily();
+  }
+
+  @Override
+  public byte[] readShortBytes(ByteBuffer source) {
+    return delegate.readShortBytes(source);
+  }
+
+  @Override
+  public String readString(ByteBuffer source) {
+    return delegate.readString(source);
+  }
+
+  @Override
+  public String readLongString(ByteBuffer source) {
+    return delegate.readLongString(source);
+  }
+
+  @Override
+  public String readIdentifier(ByteBuffer source) {
+    return delegate.readIdentifier(source);
+  }
+
+  @Override
+  public void readInts(ByteBuffer source, int[] dest, int offset, int length) {
+    delegate.readInts(source, dest, offset, length);
+  }
+
+  @Override
+  public void readLongs(ByteBuffer source, long[] dest, int offset, int length) {
+    delegate.readLongs(source, dest, offset, length);
+  }
+
+  @Override
+  public void readUnsignedShorts(ByteBuffer source, int[] dest, int offset, int length) {
+    delegate.readUnsignedShorts(source, dest, offset, length);
+  }
+
+  @Override
+  public void writeInts(int[] values, int offset, int length, ByteBuffer dest) {
+    delegate.writeInts(values, offset, length, dest);
+  }
+
+  @Override
+  public void writeLongs(long[] values, int offset, int length, ByteBuffer dest) {
+    delegate.writeLongs(values, offset, length, dest);
+  }
+
+  @Override
+  public void writeUnsignedShorts(int[] values, int offset, int length, ByteBuffer dest) {
+    delegate.writeUnsignedShorts(values, offset, length, dest);
+  }
+
+  @Override
+  public void skip(ByteBuffer source, int length) {
+    delegate.skip(source, length);
+  }
+
+  @Override
+  public void skipBytes(ByteBuffer source) {
+    delegate.skipBytes(source);
+  }
+
+  @Override
+  public void skipShortBytes(ByteBuffer source) {
+    delegate.skipShortBytes(source);
+  }
+
+  @Override
+  public void skipString(ByteBuffer source) {
+    delegate.skipString(source);
+  }
+
+  @Override
+  public void skipLongString(ByteBuffer source) {
+    delegate.skipLongString(source);
+  }
+
+  @Override
+  public void skipStringList(ByteBuffer source) {
+    delegate.skipStringList(source);
+  }
+
+  @Override
+  public void skipBytesMap(ByteBuffer source) {
+    delegate.skipBytesMap(source);
+  }
+
+  @Override
+  public CharSequence readLazyString(ByteBuffer source) {
+    return delegate.readLazyString(source);
+  }
+
+  @Override
+  public List<String> readLazyStringList(ByteBuffer source) {
+    return delegate.readLazyStringList(source);
+  }
+
+  @Override
+  public UUID readUuid(ByteBuffer source) {
+    return delegate.readUuid(source);
+  }
+
+  @Override
+  public List<String> readStringList(ByteBuffer source) {
+    return delegate.readStringList(source);
+  }
+
+  @Override
+  public Map<String, String> readStringMap(ByteBuffer source) {
+    return delegate.readStringMap(source);
+  }
+
+  @Override
+  public Map<String, List<String>> readStringMultimap(ByteBuffer source) {
+    return delegate.readStringMultimap(source);
+  }
+
+  @Override
+  public Map<String, ByteBuffer> readBytesMap(ByteBuffer source) {
+    return delegate.readBytesMap(source);
+  }
+
+  @Override
+  public InetSocketAddress readInet(ByteBuffer source) {
+    return delegate.readInet(source);
+  }
+
+  @Override
+  public void writeByte(byte b, ByteBuffer dest) {
+    delegate.writeByte(b, dest);
+  }
+
+  @Override
+  public void writeInt(int i, ByteBuffer dest) {
+    delegate.writeInt(i, dest);
+  }
+
+  @Override
+  public void writeInetAddr(InetAddress address, ByteBuffer dest) {
+    delegate.writeInetAddr(address, dest);
+  }
+
+  @Override
+  public void writeLong(long l, ByteBuffer dest) {
+    delegate.writeLong(l, dest);
+  }
+
+  @Override
+  public void writeUnsignedShort(int i, ByteBuffer dest) {
+    delegate.writeUnsignedShort(i, dest);
+  }
+
+  @Override
+  public void writeString(String s, ByteBuffer dest) {
+    delegate.writeString(s, dest);
+  }
+
+  @Override
+  public void writeLongString(String s, ByteBuffer dest) {
+    delegate.writeLongString(s, dest);
+  }
+
+  @Override
+  public void writeUuid(UUID uuid, ByteBuffer dest) {
+    delegate.writeUuid(uuid, dest);
+  }
+
+  @Override
+  public void writeBytes(ByteBuffer bytes, ByteBuffer dest) {
+    delegate.writeBytes(bytes, dest);
+  }
+
+  @Override
+  public void writeBytes(byte[] bytes, ByteBuffer dest) {
+    delegate.writeBytes(bytes, dest);
+  }
+
+  @Override
+  public void writeShortBytes(byte[] bytes, ByteBuffer dest) {
+    delegate.writeShortBytes(bytes, dest);
+  }
+
+  @Override
+  public void updateInt(int newValue, ByteBuffer dest, int index) {
+    delegate.updateInt(newValue, dest, index);
+  }
+
+  @Override
+  public boolean supportsUpdates() {
+    return delegate.supportsUpdates();
+  }
+
+  @Override
+  public boolean unread(ByteBuffer source, int length) {
+    return delegate.unread(source, length);
+  }
+
+  @Override
+  public void writeRaw(ByteBuffer source, ByteBuffer dest) {
+    delegate.writeRaw(source, dest);
+  }
+
+  @Override
+  public void writeStringList(List<String> l, ByteBuffer dest) {
+    delegate.writeStringList(l, dest);
+  }
+
+  @Override
+  public void writeStringMap(Map<String, String> m, ByteBuffer dest) {
+    delegate.writeStringMap(m, dest);
+  }
+
+  @Override
+  public void writeStringMultimap(Map<String, List<String>> m, ByteBuffer dest) {
+    delegate.writeStringMultimap(m, dest);
+  }
+
+  @Override
+  public void writeBytesMap(Map<String, ByteBuffer> m, ByteBuffer dest) {
+    delegate.writeBytesMap(m, dest);
+  }
+
+  @Override
+  public void writeInet(InetSocketAddress address, ByteBuffer dest) {
+    delegate.writeInet(address, dest);
+  }
+}
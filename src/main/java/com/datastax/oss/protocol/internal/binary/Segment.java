@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A protocol v5 segment: the unit of framing beneath frames, that carries a checksummed (and
+ * optionally compressed) payload of up to {@link SegmentCodec#MAX_PAYLOAD_LENGTH} bytes.
+ *
+ * <p>A self-contained segment holds one or more complete frames; otherwise, it holds a slice of a
+ * frame that is too large to fit in a single segment.
+ *
+ * @see SegmentCodec
+ */
+public class Segment {
+
+  /** The uncompressed payload. */
+  public final ByteBuffer payload;
+
+  public final boolean isSelfContained;
+
+  public Segment(ByteBuffer payload, boolean isSelfContained) {
+    this.payload = payload;
+    this.isSelfContained = isSelfContained;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "Segment(%d bytes, %s)",
+        payload.remaining(), isSelfContained ? "self-contained" : "not self-contained");
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.PrimitiveCodec;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs encoded frames into protocol v5 segments.
+ *
+ * <p>Consecutive frames are grouped into self-contained segments, as many as fit in the maximum
+ * payload length. The builder takes ownership of the frames it is given: they are released once
+ * copied into a segment payload.
+ *
+ * <p>A frame that is larger than the maximum payload length is split into a sequence of
+ * non-self-contained segments, whose payloads are views of the frame (it is not copied, and
+ * therefore not released). See {@link SegmentReassembler} for the receiving side.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @see SegmentCodec
+ */
+public class SegmentBuilder {
+
+  private final PrimitiveCodec<ByteBuffer> primitiveCodec;
+  private final int maxPayloadLength;
+
+  private final List<ByteBuffer> pendingFrames = new ArrayList<>();
+  private int pendingLength;
+
+  public SegmentBuilder(PrimitiveCodec<ByteBuffer> primitiveCodec) {
+    this(primitiveCodec, SegmentCodec.MAX_PAYLOAD_LENGTH);
+  }
+
+  public SegmentBuilder(PrimitiveCodec<ByteBuffer> primitiveCodec, int maxPayloadLength) {
+    ProtocolErrors.check(
+        maxPayloadLength > 0 && maxPayloadLength <= SegmentCodec.MAX_PAYLOAD_LENGTH,
+        "maxPayloadLength must be between 1 and %d",
+        SegmentCodec.MAX_PAYLOAD_LENGTH);
+    this.primitiveCodec = primitiveCodec;
+    this.maxPayloadLength = maxPayloadLength;
+  }
+
+  /**
+   * Adds an encoded frame. If it does not fit in the current segment, that segment is completed and
+   * added to {@code out} first.
+   */
+  public void addFrame(ByteBuffer frame, List<Segment> out) {
+    int length = frame.remaining();
+    if (pendingLength + length > maxPayloadLength) {
+      flush(out);
+    }
+    if (length > maxPayloadLength) {
+      ByteBuffer remaining = frame.duplicate();
+      while (remaining.hasRemaining()) {
+        ByteBuffer slice = remaining.slice();
+        slice.limit(Math.min(maxPayloadLength, slice.remaining()));
+        remaining.position(remaining.position() + slice.remaining());
+        out.add(new Segment(slice, false));
+      }
+      return;
+    }
+    pendingFrames.add(frame);
+    pendingLength += length;
+  }
+
+  /** Completes the current segment (if it contains any frame), and adds it to {@code out}. */
+  public void flush(List<Segment> out) {
+    if (pendingFrames.isEmpty()) {
+      return;
+    }
+    ByteBuffer payload;
+    if (pendingFrames.size() == 1) {
+      payload = pendingFrames.get(0);
+    } else {
+      payload = primitiveCodec.allocate(pendingLength);
+      for (ByteBuffer frame : pendingFrames) {
+        primitiveCodec.writeRaw(frame, payload);
+        primitiveCodec.release(frame);
+      }
+    }
+    out.add(new Segment(payload, true));
+    pendingFrames.clear();
+    pendingLength = 0;
+  }
+}
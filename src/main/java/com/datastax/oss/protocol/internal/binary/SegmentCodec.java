@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.NoopCompressor;
+import com.datastax.oss.protocol.internal.PrimitiveCodec;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import com.datastax.oss.protocol.internal.util.Crc24;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes and decodes protocol v5 segments.
+ *
+ * <p>In protocol v5, frames are not written directly to the connection anymore: they are wrapped in
+ * segments. A segment starts with a header that contains the payload length (and, if compression is
+ * enabled, the uncompressed length) and the self-contained flag, protected by a {@linkplain Crc24
+ * CRC24}. The payload follows, protected by a CRC32. All the integers are little-endian:
+ *
+ * <pre>
+ * uncompressed header: payload length (17 bits) | self-contained (1 bit) | padding (6 bits)
+ * compressed header:   payload length (17 bits) | uncompressed length (17 bits)
+ *                      | self-contained (1 bit) | padding (5 bits)
+ * </pre>
+ *
+ * If compression is enabled, each segment is compressed individually with {@link
+ * Compressor#compressWithoutLength(Object)}; an uncompressed length of 0 indicates a payload that
+ * was sent uncompressed because compression did not make it smaller. Frames inside segments should
+ * themselves be encoded without compression.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @see SegmentBuilder
+ */
+public class SegmentCodec {
+
+  /** The maximum length of the payload of a segment (128 KiB - 1). */
+  public static final int MAX_PAYLOAD_LENGTH = (1 << 17) - 1;
+
+  public static final int CRC24_LENGTH = 3;
+  public static final int CRC32_LENGTH = 4;
+
+  private static final int UNCOMPRESSED_HEADER_LENGTH = 3;
+  private static final int COMPRESSED_HEADER_LENGTH = 5;
+
+  // The protocol seeds the payload CRC32 with these bytes, so that a payload of zeros doesn't have
+  // a zero checksum.
+  private static final byte[] CRC32_SEED = {(byte) 0xFA, (byte) 0x2D, (byte) 0x55, (byte) 0xCA};
+
+  private final PrimitiveCodec<ByteBuffer> primitiveCodec;
+  private final Compressor<ByteBuffer> compressor;
+  private final boolean compress;
+
+  /**
+   * @param primitiveCodec the codec used to allocate encoded segments.
+   * @param compressor the compressor, or {@link Compressor#none()}. It must support {@link
+   *     Compressor#compressWithoutLength(Object)}.
+   */
+  public SegmentCodec(
+      PrimitiveCodec<ByteBuffer> primitiveCodec, Compressor<ByteBuffer> compressor) {
+    ProtocolErrors.check(primitiveCodec != null, "primitiveCodec can't be null");
+    ProtocolErrors.check(compressor != null, "compressor can't be null, use Compressor.none()");
+    this.primitiveCodec = primitiveCodec;
+    this.compressor = compressor;
+    this.compress = !(compressor instanceof NoopCompressor);
+  }
+
+  /** The length of a segment header, including its CRC. */
+  public int headerLength() {
+    return (compress ? COMPRESSED_HEADER_LENGTH : UNCOMPRESSED_HEADER_LENGTH) + CRC24_LENGTH;
+  }
+
+  /** Encodes a segment (header, payload and payload CRC) into a new buffer. */
+  public ByteBuffer encode(Segment segment) {
+    ByteBuffer payload = segment.payload;
+    int uncompressedLength = payload.remaining();
+    ProtocolErrors.check(
+        uncompressedLength <= MAX_PAYLOAD_LENGTH,
+        "Segment payload is too large (%d bytes, max is %d)",
+        uncompressedLength,
+        MAX_PAYLOAD_LENGTH);
+
+    long header;
+    int headerLength;
+    ByteBuffer compressedPayload = null;
+    if (compress) {
+      compressedPayload = compressor.compressWithoutLength(payload.duplicate());
+      if (compressedPayload.remaining() < uncompressedLength) {
+        payload = compressedPayload;
+      } else {
+        // Not worth it, send the payload as-is
+        uncompressedLength = 0;
+      }
+      header = payload.remaining() | ((long) uncompressedLength << 17);
+      if (segment.isSelfContained) {
+        header |= 1L << 34;
+      }
+      headerLength = COMPRESSED_HEADER_LENGTH;
+    } else {
+      header = payload.remaining();
+      if (segment.isSelfContained) {
+        header |= 1L << 17;
+      }
+      headerLength = UNCOMPRESSED_HEADER_LENGTH;
+    }
+
+    int payloadLength = payload.remaining();
+    ByteBuffer dest = primitiveCodec.allocate(headerLength() + payloadLength + CRC32_LENGTH);
+    writeLittleEndian(header, headerLength, dest);
+    writeLittleEndian(Crc24.compute(header, headerLength), CRC24_LENGTH, dest);
+    int payloadCrc = crc32(payload);
+    primitiveCodec.writeRaw(payload.duplicate(), dest);
+    writeLittleEndian(payloadCrc, CRC32_LENGTH, dest);
+
+    if (compressedPayload != null) {
+      primitiveCodec.release(compressedPayload);
+    }
+    return dest;
+  }
+
+  /**
+   * Encodes several segments concurrently, each one in a separate task of {@code executor}.
+   *
+   * <p>Segments are compressed independently, so this is the way to spread the compression of a
+   * large frame (split by {@link SegmentBuilder}) over several cores, instead of stalling the
+   * calling thread (typically an event loop that serves other connections) until it is done.
+   *
+   * @return a future that completes with the encoded segments, in the same order.
+   */
+  public CompletableFuture<List<ByteBuffer>> encodeAsync(
+      List<Segment> segments, Executor executor) {
+    List<CompletableFuture<ByteBuffer>> futures = new ArrayList<>(segments.size());
+    for (Segment segment : segments) {
+      futures.add(CompletableFuture.supplyAsync(() -> encode(segment), executor));
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+        .thenApply(
+            v -> {
+              List<ByteBuffer> encoded = new ArrayList<>(futures.size());
+              for (CompletableFuture<ByteBuffer> future : futures) {
+                encoded.add(future.join());
+              }
+              return encoded;
+            });
+  }
+
+  /**
+   * Decodes a segment header, and checks its CRC.
+   *
+   * <p>{@code source} must contain at least {@link #headerLength()} bytes, which get consumed.
+   *
+   * @throws CrcMismatchException if the header is corrupted.
+   */
+  public Header decodeHeader(ByteBuffer source) {
+    int headerLength = compress ? COMPRESSED_HEADER_LENGTH : UNCOMPRESSED_HEADER_LENGTH;
+    long header = readLittleEndian(source, headerLength);
+    int expectedCrc = (int) readLittleEndian(source, CRC24_LENGTH);
+    int actualCrc = Crc24.compute(header, headerLength);
+    if (actualCrc != expectedCrc) {
+      throw new CrcMismatchException(
+          String.format(
+              "Segment header CRC mismatch (expected %06x, got %06x)", expectedCrc, actualCrc));
+    }
+    int payloadLength = (int) header & MAX_PAYLOAD_LENGTH;
+    if (compress) {
+      int uncompressedLength = (int) (header >>> 17) & MAX_PAYLOAD_LENGTH;
+      boolean isSelfContained = (header & (1L << 34)) != 0;
+      return new Header(payloadLength, uncompressedLength, isSelfContained);
+    } else {
+      boolean isSelfContained = (header & (1L << 17)) != 0;
+      return new Header(payloadLength, 0, isSelfContained);
+    }
+  }
+
+  /**
+   * Decodes the rest of a segment, after its header: the payload and its CRC.
+   *
+   * <p>{@code source} must contain at least {@link Header#remainingLength()} bytes, which get
+   * consumed. If the payload was not compressed, the resulting segment's payload is a view of
+   * {@code source} (no copy).
+   *
+   * @throws CrcMismatchException if the payload is corrupted.
+   */
+  public Segment decode(Header header, ByteBuffer source) {
+    ByteBuffer payload = source.slice();
+    payload.limit(header.payloadLength);
+    source.position(source.position() + header.payloadLength);
+
+    int expectedCrc = (int) readLittleEndian(source, CRC32_LENGTH);
+    int actualCrc = crc32(payload);
+    if (actualCrc != expectedCrc) {
+      throw new CrcMismatchException(
+          String.format(
+              "Segment payload CRC mismatch (expected %08x, got %08x)", expectedCrc, actualCrc));
+    }
+    if (header.uncompressedLength > 0) {
+      payload = compressor.decompressWithoutLength(payload, header.uncompressedLength);
+    }
+    return new Segment(payload, header.isSelfContained);
+  }
+
+  /**
+   * Decodes the next segment if {@code source} contains it entirely.
+   *
+   * @return the segment, or {@code null} if {@code source} does not contain a complete segment (in
+   *     which case it is not consumed).
+   * @throws CrcMismatchException if the segment is corrupted.
+   */
+  public Segment decode(ByteBuffer source) {
+    if (source.remaining() < headerLength()) {
+      return null;
+    }
+    int start = source.position();
+    Header header = decodeHeader(source);
+    if (source.remaining() < header.remainingLength()) {
+      source.position(start);
+      return null;
+    }
+    return decode(header, source);
+  }
+
+  private void writeLittleEndian(long value, int length, ByteBuffer dest) {
+    for (int i = 0; i < length; i++) {
+      primitiveCodec.writeByte((byte) (value >>> (i * 8)), dest);
+    }
+  }
+
+  private static long readLittleEndian(ByteBuffer source, int length) {
+    long value = 0;
+    for (int i = 0; i < length; i++) {
+      value |= (source.get() & 0xFFL) << (i * 8);
+    }
+    return value;
+  }
+
+  private static int crc32(ByteBuffer payload) {
+    CRC32 crc = new CRC32();
+    crc.update(CRC32_SEED);
+    crc.update(payload.duplicate());
+    return (int) crc.getValue();
+  }
+
+  /** A decoded segment header. */
+  public static class Header {
+
+    /** The length of the payload, as sent (compressed or not). */
+    public final int payloadLength;
+
+    /** The uncompressed length of the payload, or 0 if it was sent uncompressed. */
+    public final int uncompressedLength;
+
+    public final boolean isSelfContained;
+
+    public Header(int payloadLength, int uncompressedLength, boolean isSelfContained) {
+      this.payloadLength = payloadLength;
+      this.uncompressedLength = uncompressedLength;
+      this.isSelfContained = isSelfContained;
+    }
+
+    /** The number of bytes that follow the header: the payload, and its CRC. */
+    public int remainingLength() {
+      return payloadLength + CRC32_LENGTH;
+    }
+  }
+}
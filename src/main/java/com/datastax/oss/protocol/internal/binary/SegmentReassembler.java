@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.FrameHeader;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Extracts frames from incoming protocol v5 segments.
+ *
+ * <p>Frames from self-contained segments are returned as views of the segment payload. Large
+ * frames, that were split across non-self-contained segments by the sender, are reassembled as
+ * {@link CompositeByteBuffer}s: each segment payload becomes a component, so nothing is copied (a
+ * {@link CompositePrimitiveCodec} can decode the frame directly). The frame size is read from the
+ * header in the first segment, so the number of components is known up front, and a frame that
+ * exceeds the maximum length is rejected before anything is buffered.
+ *
+ * <p>Alternatively, a {@link LargeFrameListener} can take over large frames, and receive the body
+ * chunks as segments arrive, without any buffering.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class SegmentReassembler {
+
+  private static final int HEADER_SIZE = FrameCodec.headerEncodedSize();
+  private static final int LENGTH_OFFSET = HEADER_SIZE - 4;
+
+  private final FrameCodec<ByteBuffer> frameCodec;
+  private final int maxFrameLength;
+  private final LargeFrameListener listener;
+
+  // The state of the large frame being received, if any
+  private CompositeByteBuffer pending;
+  private boolean streaming;
+  private int remaining;
+
+  public SegmentReassembler(FrameCodec<ByteBuffer> frameCodec) {
+    this(frameCodec, null);
+  }
+
+  /**
+   * @param frameCodec the codec whose {@linkplain FrameCodec.Limits#maxFrameLength maximum frame
+   *     length} caps the size of large frames, and that decodes their headers if there is a
+   *     listener.
+   * @param listener an optional listener for large frames, or {@code null}.
+   */
+  public SegmentReassembler(FrameCodec<ByteBuffer> frameCodec, LargeFrameListener listener) {
+    ProtocolErrors.check(frameCodec != null, "frameCodec can't be null");
+    this.frameCodec = frameCodec;
+    this.maxFrameLength = frameCodec.getLimits().maxFrameLength;
+    this.listener = listener;
+  }
+
+  /**
+   * Processes the next segment, and adds the frames that it completes (if any) to {@code out}.
+   *
+   * @throws IllegalArgumentException if the segment does not fit in the sequence (truncated frame
+   *     in a self-contained segment, segments that overflow the frame size...), or if a frame
+   *     exceeds the maximum length.
+   */
+  public void addSegment(Segment segment, List<CompositeByteBuffer> out) {
+    ByteBuffer payload = segment.payload;
+    if (segment.isSelfContained) {
+      ProtocolErrors.check(
+          remaining == 0, "Got a self-contained segment while %d bytes are missing", remaining);
+      while (payload.hasRemaining()) {
+        ProtocolErrors.check(
+            payload.remaining() >= HEADER_SIZE, "Truncated frame header in self-contained segment");
+        int frameLength = frameLength(payload.getInt(payload.position() + LENGTH_OFFSET));
+        ProtocolErrors.check(
+            payload.remaining() >= frameLength, "Truncated frame in self-contained segment");
+        ByteBuffer frame = payload.slice();
+        frame.limit(frameLength);
+        payload.position(payload.position() + frameLength);
+        out.add(CompositeByteBuffer.wrap(frame));
+      }
+    } else {
+      if (remaining == 0) {
+        startLargeFrame(payload);
+      } else {
+        ProtocolErrors.check(
+            payload.remaining() <= remaining,
+            "Segment overflows the current frame (%d bytes, %d expected)",
+            payload.remaining(),
+            remaining);
+        remaining -= payload.remaining();
+        if (streaming) {
+          listener.onBodyChunk(payload);
+        } else {
+          pending.append(payload);
+        }
+      }
+      if (remaining == 0) {
+        if (streaming) {
+          streaming = false;
+          listener.onBodyEnd();
+        } else {
+          out.add(pending);
+          pending = null;
+        }
+      }
+    }
+  }
+
+  /** Whether the reassembler is in the middle of a large frame. */
+  public boolean isReassembling() {
+    return remaining > 0;
+  }
+
+  private void startLargeFrame(ByteBuffer payload) {
+    ProtocolErrors.check(
+        payload.remaining() >= HEADER_SIZE,
+        "First segment of a large frame must contain the frame header");
+    int frameLength = frameLength(payload.getInt(payload.position() + LENGTH_OFFSET));
+    ProtocolErrors.check(
+        payload.remaining() <= frameLength,
+        "Segment overflows the current frame (%d bytes, %d expected)",
+        payload.remaining(),
+        frameLength);
+    remaining = frameLength - payload.remaining();
+    if (listener != null && listener.onLargeFrame(frameCodec.decodeHeader(payload.duplicate()))) {
+      streaming = true;
+      ByteBuffer body = payload.duplicate();
+      body.position(body.position() + HEADER_SIZE);
+      listener.onBodyChunk(body.slice());
+    } else {
+      int segmentLength = payload.remaining();
+      pending = new CompositeByteBuffer(1 + (remaining + segmentLength - 1) / segmentLength);
+      pending.append(payload);
+    }
+  }
+
+  private int frameLength(int bodyLength) {
+    ProtocolErrors.check(
+        bodyLength >= 0 && bodyLength <= maxFrameLength - HEADER_SIZE,
+        "Invalid frame length %d (max frame length is %d, including the header)",
+        bodyLength,
+        maxFrameLength);
+    return HEADER_SIZE + bodyLength;
+  }
+
+  /** Receives the body of large frames as it arrives, instead of reassembling them. */
+  public interface LargeFrameListener {
+
+    /**
+     * Called when the first segment of a large frame arrives.
+     *
+     * @return true to receive the body through {@link #onBodyChunk(ByteBuffer)}, or false to let
+     *     the reassembler buffer the frame as usual.
+     */
+    boolean onLargeFrame(FrameHeader header);
+
+    /**
+     * Called with the next chunk of the body (possibly compressed, if the frame is). The buffer is
+     * a view of the segment payload.
+     */
+    void onBodyChunk(ByteBuffer chunk);
+
+    /** Called after the last chunk of the body. */
+    void onBodyEnd();
+  }
+}
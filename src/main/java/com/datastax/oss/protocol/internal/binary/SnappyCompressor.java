@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.PrimitiveCodec;
+import com.datastax.oss.protocol.internal.ProtocolErrors;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * A pure Java implementation of the <a
+ * href="https://github.com/google/snappy/blob/main/format_description.txt">Snappy format</a>, that
+ * does not require any native library.
+ *
+ * <p>Snappy is only supported by protocol v4 and below (v5 segments only use LZ4). The compressed
+ * data starts with the uncompressed length as a varint, which is used to size the decompression
+ * buffer exactly, and to check the frame codec's {@linkplain
+ * com.datastax.oss.protocol.internal.FrameCodec.Limits limits} before allocating it.
+ *
+ * <p>The compressor supports {@link #compressInto(ByteBuffer, ByteBuffer)}, so the frame codec
+ * compresses directly into the frame buffer without any intermediary allocation. Both heap and
+ * direct buffers are processed with absolute accessors; literals are copied with {@code
+ * System.arraycopy} if both buffers have a backing array, or with bulk puts otherwise. Output
+ * buffers are allocated with the primitive codec passed to the constructor.
+ *
+ * <p>Like {@link Lz4Compressor}, this uses a hash table per thread, reused across calls. This class
+ * is thread-safe.
+ *
+ * <p>Large inputs can optionally be compressed in parallel: they are split in {@value
+ * #CHUNK_SIZE}-byte chunks that are compressed independently on a fork-join pool, and concatenated
+ * after a single length header. Since no copy refers to a previous chunk, the result is a regular
+ * Snappy stream (this is also how the reference implementation processes its input). This is not
+ * possible with LZ4, where a block can't be followed by another one.
+ *
+ * <p>Note that parallel compression only reduces the latency of a large frame: the calling thread
+ * still waits until all the chunks are done. To keep an event loop available for other connections
+ * in the meantime, encode the frame with {@link
+ * com.datastax.oss.protocol.internal.FrameCodec#encodeAsync(com.datastax.oss.protocol.internal.Frame,
+ * java.util.concurrent.Executor) FrameCodec.encodeAsync}.
+ */
+public class SnappyCompressor implements Compressor<ByteBuffer> {
+
+  private static final int HASH_LOG = 14;
+  private static final int HASH_TABLE_SIZE = 1 << HASH_LOG;
+  private static final int MIN_MATCH = 4;
+  // Copies with a 2-byte offset, the largest that this implementation emits
+  private static final int MAX_OFFSET = 0xFFFF;
+  private static final int MAX_COPY_LENGTH = 64;
+  // Copies with a 1-byte offset
+  private static final int MAX_SHORT_COPY_LENGTH = 11;
+  private static final int MAX_SHORT_COPY_OFFSET = 1 << 11;
+  private static final int SKIP_TRIGGER = 5;
+  private static final int MAX_VARINT_LENGTH = 5;
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private static final int TAG_LITERAL = 0b00;
+  private static final int TAG_COPY_1 = 0b01;
+  private static final int TAG_COPY_2 = 0b10;
+
+  private static final ThreadLocal<int[]> HASH_TABLES =
+      ThreadLocal.withInitial(() -> new int[HASH_TABLE_SIZE]);
+
+  private final PrimitiveCodec<ByteBuffer> allocator;
+  private final ForkJoinPool pool;
+  private final int parallelThreshold;
+
+  /** Creates an instance that allocates heap buffers. */
+  public SnappyCompressor() {
+    this(ByteBufferPrimitiveCodec.HEAP);
+  }
+
+  /**
+   * @param allocator the codec that will allocate the output buffers. This should be the same codec
+   *     as the frame codec's, since the frame codec releases the buffers returned by this
+   *     compressor.
+   */
+  public SnappyCompressor(PrimitiveCodec<ByteBuffer> allocator) {
+    this(allocator, null, 0);
+  }
+
+  /**
+   * Creates an instance that compresses large inputs in parallel.
+   *
+   * @param pool the pool that compresses the chunks of large inputs (the calling thread compresses
+   *     the first one, and waits for the others), or {@code null} to always compress on the calling
+   *     thread.
+   * @param parallelThreshold the minimum input length to compress in parallel. It should be large
+   *     enough to cover the cost of dispatching the tasks; typically a few hundred kilobytes.
+   */
+  public SnappyCompressor(
+      PrimitiveCodec<ByteBuffer> allocator, ForkJoinPool pool, int parallelThreshold) {
+    ProtocolErrors.check(allocator != null, "allocator can't be null");
+    ProtocolErrors.check(parallelThreshold >= 0, "Invalid parallelThreshold %d", parallelThreshold);
+    this.allocator = allocator;
+    this.pool = pool;
+    this.parallelThreshold = Math.max(parallelThreshold, 2 * CHUNK_SIZE);
+  }
+
+  @Override
+  public String algorithm() {
+    return "snappy";
+  }
+
+  /** Same as Snappy's {@code MaxCompressedLength}. */
+  @Override
+  public int maxCompressedLength(int uncompressedLength) {
+    return 32 + uncompressedLength + uncompressedLength / 6;
+  }
+
+  @Override
+  public ByteBuffer compress(ByteBuffer uncompressed) {
+    ByteBuffer compressed = allocator.allocate(maxCompressedLength(uncompressed.remaining()));
+    compressInto(uncompressed, compressed);
+    return compressed;
+  }
+
+  @Override
+  public void compressInto(ByteBuffer uncompressed, ByteBuffer dest) {
+    int index = dest.limit();
+    dest.limit(dest.capacity());
+    int length = uncompressed.remaining();
+    int end =
+        (pool != null && length >= parallelThreshold)
+            ? compressParallel(uncompressed, uncompressed.position(), length, dest, index)
+            : compress(uncompressed, uncompressed.position(), length, dest, index);
+    dest.limit(end);
+    uncompressed.position(uncompressed.limit());
+  }
+
+  @Override
+  public int decompressedLength(ByteBuffer compressed) {
+    int i = compressed.position();
+    int end = Math.min(compressed.limit(), i + MAX_VARINT_LENGTH);
+    long result = 0;
+    for (int shift = 0; i < end; shift += 7) {
+      int b = compressed.get(i++);
+      result |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return (result > Integer.MAX_VALUE) ? -1 : (int) result;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public ByteBuffer decompress(ByteBuffer compressed) {
+    ByteBuffer uncompressed = allocator.allocate(checkedDecompressedLength(compressed));
+    decompressInto(compressed, uncompressed);
+    return uncompressed;
+  }
+
+  @Override
+  public boolean supportsDecompressInto() {
+    return true;
+  }
+
+  @Override
+  public void decompressInto(ByteBuffer compressed, ByteBuffer dest) {
+    int uncompressedLength = checkedDecompressedLength(compressed);
+    int i = compressed.position();
+    while ((compressed.get(i++) & 0x80) != 0) {
+      // skip the varint
+    }
+    int index = dest.limit();
+    dest.limit(index + uncompressedLength);
+    decompress(
+        view(compressed, dest),
+        i,
+        compressed.limit(),
+        view(dest, compressed),
+        index,
+        index + uncompressedLength);
+    compressed.position(compressed.limit());
+  }
+
+  private int checkedDecompressedLength(ByteBuffer compressed) {
+    int uncompressedLength = decompressedLength(compressed);
+    ProtocolErrors.check(uncompressedLength >= 0, "Invalid Snappy uncompressed length");
+    return uncompressedLength;
+  }
+
+  private static int compress(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int d) {
+    ByteBuffer to = view(dst, src);
+    return compressElements(view(src, dst), srcOff, srcLen, to, writeVarint(srcLen, to, d));
+  }
+
+  private int compressParallel(ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int d) {
+    List<ForkJoinTask<ByteBuffer>> tasks = new ArrayList<>(srcLen / CHUNK_SIZE);
+    for (int start = srcOff + CHUNK_SIZE; start < srcOff + srcLen; start += CHUNK_SIZE) {
+      int chunkOff = start;
+      int chunkLen = Math.min(CHUNK_SIZE, srcOff + srcLen - start);
+      tasks.add(pool.submit(() -> compressChunk(src, chunkOff, chunkLen)));
+    }
+    int joined = 0;
+    try {
+      ByteBuffer to = view(dst, src);
+      d = writeVarint(srcLen, to, d);
+      d = compressElements(view(src, dst), srcOff, CHUNK_SIZE, to, d);
+      while (joined < tasks.size()) {
+        // The compressed length of a chunk is only known once it's done, hence the copy
+        ByteBuffer chunk = tasks.get(joined++).join();
+        try {
+          int chunkLength = chunk.remaining();
+          copy(view(chunk, to), chunk.position(), to, d, chunkLength);
+          d += chunkLength;
+        } finally {
+          allocator.release(chunk);
+        }
+      }
+      return d;
+    } finally {
+      // If we're failing, wait for the remaining tasks and release their chunks. Cancelling them
+      // is not an option: a task that is already running would still allocate its chunk, but the
+      // result would be discarded.
+      for (int i = joined; i < tasks.size(); i++) {
+        ForkJoinTask<ByteBuffer> task = tasks.get(i);
+        task.quietlyJoin();
+        if (task.isCompletedNormally()) {
+          allocator.release(task.getRawResult());
+        }
+      }
+    }
+  }
+
+  private ByteBuffer compressChunk(ByteBuffer src, int srcOff, int srcLen) {
+    ByteBuffer chunk = allocator.allocate(maxCompressedLength(srcLen));
+    int index = chunk.limit();
+    chunk.limit(chunk.capacity());
+    chunk.limit(compressElements(view(src, chunk), srcOff, srcLen, view(chunk, src), index));
+    return chunk;
+  }
+
+  /** Compresses to a sequence of literals and copies, without the length header. */
+  private static int compressElements(
+      ByteBuffer src, int srcOff, int srcLen, ByteBuffer dst, int d) {
+    int srcEnd = srcOff + srcLen;
+    int anchor = srcOff;
+    // A match needs to read 4 bytes at its start
+    int inputLimit = srcEnd - MIN_MATCH;
+
+    if (srcLen > MIN_MATCH) {
+      int[] hashTable = HASH_TABLES.get();
+      hashTable[hash(src.getInt(srcOff))] = srcOff;
+      int i = srcOff + 1;
+      int attempts = 1 << SKIP_TRIGGER;
+      while (i <= inputLimit) {
+        int value = src.getInt(i);
+        int h = hash(value);
+        int ref = hashTable[h];
+        hashTable[h] = i;
+        if (ref >= srcOff && ref < i && i - ref <= MAX_OFFSET && src.getInt(ref) == value) {
+          int matchLength = MIN_MATCH;
+          while (i + matchLength < srcEnd
+              && src.get(i + matchLength) == src.get(ref + matchLength)) {
+            matchLength += 1;
+          }
+          d = writeLiteral(src, anchor, i - anchor, dst, d);
+          d = writeCopy(i - ref, matchLength, dst, d);
+          i += matchLength;
+          anchor = i;
+          attempts = 1 << SKIP_TRIGGER;
+          if (i <= inputLimit) {
+            // Index the position just before, this improves the ratio for repetitive data
+            hashTable[hash(src.getInt(i - 1))] = i - 1;
+          }
+        } else {
+          i += attempts++ >>> SKIP_TRIGGER;
+        }
+      }
+    }
+    return writeLiteral(src, anchor, srcEnd - anchor, dst, d);
+  }
+
+  private static void decompress(
+      ByteBuffer src, int i, int srcEnd, ByteBuffer dst, int dstOff, int dstEnd) {
+    int o = dstOff;
+    while (i < srcEnd) {
+      int tag = src.get(i++) & 0xFF;
+      int length;
+      int offset;
+      switch (tag & 0b11) {
+        case TAG_LITERAL:
+          length = (tag >>> 2) + 1;
+          if (length > 60) {
+            int extraBytes = length - 60;
+            checkInput(srcEnd - i >= extraBytes);
+            long longLength = readLittleEndian(src, i, extraBytes) + 1;
+            checkInput(longLength <= dstEnd - o);
+            length = (int) longLength;
+            i += extraBytes;
+          }
+          checkInput(length <= srcEnd - i && length <= dstEnd - o);
+          copy(src, i, dst, o, length);
+          i += length;
+          o += length;
+          continue;
+        case TAG_COPY_1:
+          checkInput(i < srcEnd);
+          length = ((tag >>> 2) & 0b111) + 4;
+          offset = (tag & 0b1110_0000) << 3 | (src.get(i++) & 0xFF);
+          break;
+        case TAG_COPY_2:
+          checkInput(srcEnd - i >= 2);
+          length = (tag >>> 2) + 1;
+          offset = (int) readLittleEndian(src, i, 2);
+          i += 2;
+          break;
+        default: // copy with a 4-byte offset
+          checkInput(srcEnd - i >= 4);
+          length = (tag >>> 2) + 1;
+          long longOffset = readLittleEndian(src, i, 4);
+          checkInput(longOffset <= Integer.MAX_VALUE);
+          offset = (int) longOffset;
+          i += 4;
+          break;
+      }
+      checkInput(offset > 0 && offset <= o - dstOff && length <= dstEnd - o);
+      int ref = o - offset;
+      for (int j = 0; j < length; j++) {
+        dst.put(o + j, dst.get(ref + j));
+      }
+      o += length;
+    }
+    checkInput(o == dstEnd);
+  }
+
+  private static int writeLiteral(ByteBuffer src, int srcIndex, int length, ByteBuffer dst, int d) {
+    if (length == 0) {
+      return d;
+    }
+    int n = length - 1;
+    if (n < 60) {
+      dst.put(d++, (byte) (n << 2 | TAG_LITERAL));
+    } else {
+      int extraBytes = (n < 1 << 8) ? 1 : (n < 1 << 16) ? 2 : (n < 1 << 24) ? 3 : 4;
+      dst.put(d++, (byte) ((59 + extraBytes) << 2 | TAG_LITERAL));
+      for (int k = 0; k < extraBytes; k++) {
+        dst.put(d++, (byte) (n >>> (8 * k)));
+      }
+    }
+    copy(src, srcIndex, dst, d, length);
+    return d + length;
+  }
+
+  private static int writeCopy(int offset, int length, ByteBuffer dst, int d) {
+    // Emit 64-byte copies, but keep at least 4 bytes for the last one
+    while (length >= MAX_COPY_LENGTH + MIN_MATCH) {
+      d = writeCopy2(offset, MAX_COPY_LENGTH, dst, d);
+      length -= MAX_COPY_LENGTH;
+    }
+    if (length > MAX_COPY_LENGTH) {
+      d = writeCopy2(offset, MAX_COPY_LENGTH - MIN_MATCH, dst, d);
+      length -= MAX_COPY_LENGTH - MIN_MATCH;
+    }
+    if (length <= MAX_SHORT_COPY_LENGTH && offset < MAX_SHORT_COPY_OFFSET) {
+      dst.put(d++, (byte) ((offset >>> 8) << 5 | (length - 4) << 2 | TAG_COPY_1));
+      dst.put(d++, (byte) offset);
+      return d;
+    }
+    return writeCopy2(offset, length, dst, d);
+  }
+
+  private static int writeCopy2(int offset, int length, ByteBuffer dst, int d) {
+    dst.put(d++, (byte) ((length - 1) << 2 | TAG_COPY_2));
+    dst.put(d++, (byte) offset);
+    dst.put(d++, (byte) (offset >>> 8));
+    return d;
+  }
+
+  private static int writeVarint(int value, ByteBuffer dst, int d) {
+    while ((value & ~0x7F) != 0) {
+      dst.put(d++, (byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    dst.put(d++, (byte) value);
+    return d;
+  }
+
+  /**
+   * Returns the buffer to pass to {@link #copy}: the buffer itself if both have a backing array,
+   * otherwise a duplicate spanning its whole capacity, since bulk puts move the position and limit.
+   * This is called once per operation, not once per literal.
+   */
+  private static ByteBuffer view(ByteBuffer buffer, ByteBuffer other) {
+    if (buffer.hasArray() && other.hasArray()) {
+      return buffer;
+    }
+    ByteBuffer view = buffer.duplicate();
+    view.clear();
+    return view;
+  }
+
+  private static void copy(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex, int length) {
+    if (src.hasArray() && dst.hasArray()) {
+      System.arraycopy(
+          src.array(),
+          src.arrayOffset() + srcIndex,
+          dst.array(),
+          dst.arrayOffset() + dstIndex,
+          length);
+    } else if (length > 0) {
+      src.limit(srcIndex + length);
+      src.position(srcIndex);
+      dst.position(dstIndex);
+      dst.put(src);
+      // Absolute reads past this literal must still be allowed
+      src.limit(src.capacity());
+    }
+  }
+
+  private static long readLittleEndian(ByteBuffer src, int i, int length) {
+    long result = 0;
+    for (int k = 0; k < length; k++) {
+      result |= (long) (src.get(i + k) & 0xFF) << (8 * k);
+    }
+    return result;
+  }
+
+  private static int hash(int value) {
+    return (value * 0x1e35a7bd) >>> (32 - HASH_LOG);
+  }
+
+  private static void checkInput(boolean condition) {
+    ProtocolErrors.check(condition, "Malformed Snappy input");
+  }
+}
@@ -36,6 +36,15 @@ public class AuthResponse extends Message {
     this.token = token;
   }
 
+  /**
+   * The token is erased when the message gets encoded, so encoding it again yields a different
+   * size.
+   */
+  @Override
+  protected boolean isEncodedSizeStable() {
+    return false;
+  }
+
   @Override
   public String toString() {
     return "AUTH_RESPONSE";
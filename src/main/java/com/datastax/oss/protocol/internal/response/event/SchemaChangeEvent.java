@@ -131,7 +131,7 @@ public class SchemaChangeEvent extends Event {
           target,
           protocolVersion);
 
-      String keyspace = decoder.readString(source);
+      String keyspace = decoder.readIdentifier(source);
       String object;
       List<String> arguments;
       switch (target) {
@@ -141,12 +141,12 @@ public class SchemaChangeEvent extends Event {
           break;
         case ProtocolConstants.SchemaChangeTarget.TABLE:
         case ProtocolConstants.SchemaChangeTarget.TYPE:
-          object = decoder.readString(source);
+          object = decoder.readIdentifier(source);
           arguments = null;
           break;
         case ProtocolConstants.SchemaChangeTarget.AGGREGATE:
         case ProtocolConstants.SchemaChangeTarget.FUNCTION:
-          object = decoder.readString(source);
+          object = decoder.readIdentifier(source);
           arguments = decoder.readStringList(source);
           break;
         default:
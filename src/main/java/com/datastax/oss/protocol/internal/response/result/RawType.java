@@ -46,13 +46,13 @@ public abstract class RawType {
         RawType value = decode(source, decoder, protocolVersion);
         return new RawMap(key, value);
       case ProtocolConstants.DataType.UDT:
-        String keyspace = decoder.readString(source);
-        String typeName = decoder.readString(source);
+        String keyspace = decoder.readIdentifier(source);
+        String typeName = decoder.readIdentifier(source);
         int fieldCount = decoder.readUnsignedShort(source);
         NullAllowingImmutableMap.Builder<String, RawType> fields =
             NullAllowingImmutableMap.builder(fieldCount);
         for (int i = 0; i < fieldCount; i++) {
-          String fieldName = decoder.readString(source);
+          String fieldName = decoder.readIdentifier(source);
           RawType fieldType = decode(source, decoder, protocolVersion);
           fields.put(fieldName, fieldType);
         }
@@ -118,9 +118,7 @@ public class RowsMetadata {
         encoder.writeInt(0, dest);
       } else {
         encoder.writeInt(pkIndices.length, dest);
-        for (int pkIndex : pkIndices) {
-          encoder.writeUnsignedShort(pkIndex, dest);
-        }
+        encoder.writeUnsignedShorts(pkIndices, 0, pkIndices.length, dest);
       }
     }
     if (Flags.contains(flags, ProtocolConstants.RowsFlag.HAS_MORE_PAGES)) {
@@ -190,9 +188,7 @@ public class RowsMetadata {
     int pkCount;
     if (withPkIndices && (pkCount = decoder.readInt(source)) > 0) {
       pkIndices = new int[pkCount];
-      for (int i = 0; i < pkCount; i++) {
-        pkIndices[i] = decoder.readUnsignedShort(source);
-      }
+      decoder.readUnsignedShorts(source, pkIndices, 0, pkCount);
     }
 
     ByteBuffer state =
@@ -215,15 +211,15 @@ public class RowsMetadata {
       String globalKsName = null;
       String globalCfName = null;
       if (globalTablesSpec) {
-        globalKsName = decoder.readString(source);
-        globalCfName = decoder.readString(source);
+        globalKsName = decoder.readIdentifier(source);
+        globalCfName = decoder.readIdentifier(source);
       }
       NullAllowingImmutableList.Builder<ColumnSpec> builder =
           NullAllowingImmutableList.builder(columnCount);
       for (int i = 0; i < columnCount; i++) {
-        String ksName = globalTablesSpec ? globalKsName : decoder.readString(source);
-        String cfName = globalTablesSpec ? globalCfName : decoder.readString(source);
-        String name = decoder.readString(source);
+        String ksName = globalTablesSpec ? globalKsName : decoder.readIdentifier(source);
+        String cfName = globalTablesSpec ? globalCfName : decoder.readIdentifier(source);
+        String name = decoder.readIdentifier(source);
         RawType type = RawType.decode(source, decoder, protocolVersion);
         builder.add(new ColumnSpec(ksName, cfName, name, i, type));
       }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.util;
+
+/**
+ * The 24-bit CRC used to protect the headers of protocol v5 segments.
+ *
+ * <p>Polynomial {@code 0x1974F0B}, initial value {@code 0x875060}, no reflection; the input bytes
+ * are processed least significant first. This is a table-driven implementation (one lookup per
+ * byte).
+ */
+public final class Crc24 {
+
+  private Crc24() {}
+
+  private static final int INITIAL_VALUE = 0x875060;
+  private static final int POLYNOMIAL = 0x1974F0B;
+
+  private static final int[] TABLE = new int[256];
+
+  static {
+    for (int b = 0; b < 256; b++) {
+      int crc = b << 16;
+      for (int i = 0; i < 8; i++) {
+        crc <<= 1;
+        if ((crc & 0x1000000) != 0) {
+          crc ^= POLYNOMIAL;
+        }
+      }
+      TABLE[b] = crc;
+    }
+  }
+
+  /**
+   * Computes the CRC of the {@code length} low-order bytes of {@code value}.
+   *
+   * @param length the number of bytes, between 0 and 8.
+   */
+  public static int compute(long value, int length) {
+    int crc = INITIAL_VALUE;
+    for (int i = 0; i < length; i++) {
+      int b = (int) (value >>> (i * 8)) & 0xFF;
+      crc = ((crc << 8) ^ TABLE[((crc >>> 16) ^ b) & 0xFF]) & 0xFFFFFF;
+    }
+    return crc;
+  }
+}
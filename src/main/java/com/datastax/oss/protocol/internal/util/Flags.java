@@ -24,4 +24,8 @@ public class Flags {
   public static int add(int flags, int mask) {
     return flags | mask;
   }
+
+  public static int remove(int flags, int mask) {
+    return flags & ~mask;
+  }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A character sequence that holds raw UTF-8 bytes, and only decodes them the first time its
+ * contents are accessed.
+ *
+ * <p>{@link #equals(Object)} and {@link #hashCode()} operate on the raw bytes, so they don't
+ * trigger decoding.
+ *
+ * <p>This class is thread-safe: concurrent first accesses might decode the bytes more than once,
+ * but always produce equal results.
+ */
+public class Utf8CharSequence implements CharSequence {
+
+  private final byte[] bytes;
+  private String decoded;
+
+  /** @param bytes the UTF-8 bytes. The array is not copied, and must not be modified afterwards. */
+  public Utf8CharSequence(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /** Whether the bytes have been decoded yet. */
+  public boolean isDecoded() {
+    return decoded != null;
+  }
+
+  @Override
+  public int length() {
+    return toString().length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    return toString().charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().subSequence(start, end);
+  }
+
+  @Override
+  public String toString() {
+    String result = decoded;
+    if (result == null) {
+      result = new String(bytes, StandardCharsets.UTF_8);
+      decoded = result;
+    }
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == this) {
+      return true;
+    } else if (other instanceof Utf8CharSequence) {
+      return Arrays.equals(bytes, ((Utf8CharSequence) other).bytes);
+    } else {
+      return false;
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(bytes);
+  }
+}
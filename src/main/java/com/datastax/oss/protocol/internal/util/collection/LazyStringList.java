@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.util.collection;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of strings, backed by character sequences that are only converted when an
+ * element is accessed.
+ *
+ * <p>Combined with lazy sequences such as {@link
+ * com.datastax.oss.protocol.internal.util.Utf8CharSequence}, this defers the decoding of each
+ * element until (and unless) it is read.
+ */
+public class LazyStringList extends AbstractList<String> implements RandomAccess {
+
+  private final CharSequence[] elements;
+
+  /** @param elements the elements. The array is not copied, and must not be modified afterwards. */
+  public LazyStringList(CharSequence[] elements) {
+    this.elements = elements;
+  }
+
+  @Override
+  public String get(int index) {
+    CharSequence element = elements[index];
+    return (element == null) ? null : element.toString();
+  }
+
+  @Override
+  public int size() {
+    return elements.length;
+  }
+}
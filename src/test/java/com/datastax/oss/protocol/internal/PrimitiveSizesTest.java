@@ -53,4 +53,13 @@ public class PrimitiveSizesTest {
           .isEqualTo(s.getBytes(StandardCharsets.UTF_8).length);
     }
   }
+
+  @Test
+  public void should_measure_size_of_string_with_ascii_prefix() {
+    for (String s : new String[] {"", "abc", "abcé", "abc\ud83d\ude00", "abc\ud83d", "éabc"}) {
+      assertThat(PrimitiveSizes.encodedUTF8Length(s))
+          .as(s)
+          .isEqualTo(s.getBytes(StandardCharsets.UTF_8).length);
+    }
+  }
 }
@@ -0,0 +1,801 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.FrameHeader;
+import com.datastax.oss.protocol.internal.LazyFrame;
+import com.datastax.oss.protocol.internal.Message;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.ProtocolV4ClientCodecs;
+import com.datastax.oss.protocol.internal.TestDataProviders;
+import com.datastax.oss.protocol.internal.request.AuthResponse;
+import com.datastax.oss.protocol.internal.request.Query;
+import com.datastax.oss.protocol.internal.request.Register;
+import com.datastax.oss.protocol.internal.response.Error;
+import com.datastax.oss.protocol.internal.util.Bytes;
+import com.datastax.oss.protocol.internal.util.collection.LazyStringList;
+import com.tngtech.java.junit.dataprovider.DataProvider;
+import com.tngtech.java.junit.dataprovider.DataProviderRunner;
+import com.tngtech.java.junit.dataprovider.UseDataProvider;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Checks that every message type survives a round trip through the default client and server frame
+ * codecs with real binary buffers.
+ */
+@RunWith(DataProviderRunner.class)
+public class ByteBufferFrameCodecTest {
+
+  @Test
+  @UseDataProvider("codecsAndVersions")
+  public void should_round_trip_requests(ByteBufferPrimitiveCodec codec, int protocolVersion) {
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, Compressor.none());
+    FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, Compressor.none());
+    for (Frame frame : FrameSamples.requests(protocolVersion)) {
+      should_round_trip(frame, client, server, client);
+    }
+  }
+
+  @Test
+  @UseDataProvider("codecsAndVersions")
+  public void should_round_trip_responses(ByteBufferPrimitiveCodec codec, int protocolVersion) {
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, Compressor.none());
+    FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, Compressor.none());
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      should_round_trip(frame, server, client, server);
+    }
+  }
+
+  @Test
+  @UseDataProvider(location = TestDataProviders.class, value = "protocolV4OrAbove")
+  public void should_skip_custom_payload_and_warnings(int protocolVersion) {
+    FrameCodec<ByteBuffer> client =
+        FrameCodec.defaultClient(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+    FrameCodec<ByteBuffer> server =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      ByteBuffer encoded = server.encode(frame);
+
+      Frame decoded = client.decode(encoded.duplicate(), false, false);
+      assertThat(decoded.customPayload).isEmpty();
+      assertThat(decoded.warnings).isEmpty();
+      assertThat(decoded.tracingId).isEqualTo(frame.tracingId);
+      assertThat(decoded.message).isInstanceOf(frame.message.getClass());
+
+      Frame full = client.decode(encoded.duplicate(), true, true);
+      assertThat(full.customPayload).isEqualTo(frame.customPayload);
+      assertThat(full.warnings).isEqualTo(frame.warnings);
+    }
+  }
+
+  @Test
+  @UseDataProvider(location = TestDataProviders.class, value = "protocolV4OrAbove")
+  public void should_decode_warnings_lazily_only_if_enabled(int protocolVersion) {
+    FrameCodec<ByteBuffer> server =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+    FrameCodec<ByteBuffer> eager =
+        FrameCodec.defaultClient(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+    FrameCodec<ByteBuffer> lazy =
+        FrameCodec.defaultClient(
+            new ByteBufferPrimitiveCodec(false, false, true, null), Compressor.none());
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      if (frame.warnings.isEmpty()) {
+        continue;
+      }
+      ByteBuffer encoded = server.encode(frame);
+
+      Frame eagerFrame = eager.decode(encoded.duplicate());
+      assertThat(eagerFrame.warnings).isNotInstanceOf(LazyStringList.class);
+      assertThat(eagerFrame.warnings).isEqualTo(frame.warnings);
+
+      Frame lazyFrame = lazy.decode(encoded.duplicate());
+      assertThat(lazyFrame.warnings).isInstanceOf(LazyStringList.class);
+      assertThat(lazyFrame.warnings).isEqualTo(frame.warnings);
+    }
+  }
+
+  @Test
+  @UseDataProvider("codecsAndVersions")
+  public void should_encode_into_shared_buffer(
+      ByteBufferPrimitiveCodec codec, int protocolVersion) {
+    for (Compressor<ByteBuffer> compressor :
+        new Compressor[] {
+          Compressor.<ByteBuffer>none(),
+          new PaddingCompressor(codec),
+          new InPlacePaddingCompressor(codec)
+        }) {
+      FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, compressor);
+      FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, compressor);
+      List<Frame> frames = FrameSamples.responses(protocolVersion);
+
+      int totalSize = 0;
+      for (Frame frame : frames) {
+        totalSize += server.encodedSize(frame);
+      }
+      ByteBuffer dest = codec.allocate(totalSize);
+      for (Frame frame : frames) {
+        server.encodeInto(frame, dest);
+      }
+      assertThat(dest.remaining()).isEqualTo(totalSize);
+
+      FrameDecoder decoder = new FrameDecoder(client);
+      for (Frame frame : frames) {
+        ByteBuffer encoded = decoder.readFrameBuffer(dest);
+        assertThat(encoded).isEqualTo(server.encode(frame));
+        Frame decoded = client.decode(encoded);
+        assertThat(decoded.streamId).isEqualTo(frame.streamId);
+        assertThat(decoded.message).isInstanceOf(frame.message.getClass());
+      }
+      assertThat(dest.hasRemaining()).isFalse();
+    }
+  }
+
+  @Test
+  @UseDataProvider("codecsAndVersions")
+  public void should_encode_batch(ByteBufferPrimitiveCodec codec, int protocolVersion) {
+    for (Compressor<ByteBuffer> compressor :
+        new Compressor[] {
+          Compressor.<ByteBuffer>none(),
+          new PaddingCompressor(codec),
+          new InPlacePaddingCompressor(codec)
+        }) {
+      FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, compressor);
+      List<Frame> frames = FrameSamples.responses(protocolVersion);
+
+      ByteBuffer batch = server.encodeBatch(frames);
+
+      for (Frame frame : frames) {
+        ByteBuffer expected = server.encode(frame);
+        ByteBuffer actual = batch.slice();
+        actual.limit(expected.remaining());
+        assertThat(actual).isEqualTo(expected);
+        batch.position(batch.position() + expected.remaining());
+      }
+      assertThat(batch.hasRemaining()).isFalse();
+      assertThat(server.batchCount()).isEqualTo(1);
+      assertThat(server.batchedFrameCount()).isEqualTo(frames.size());
+      assertThat(server.batchedByteCount()).isEqualTo(batch.limit());
+    }
+  }
+
+  @Test
+  @UseDataProvider(location = TestDataProviders.class, value = "protocolV3OrAbove")
+  public void should_compress_directly_into_frame(int protocolVersion) {
+    AllocationCountingCodec codec = new AllocationCountingCodec();
+    FrameCodec<ByteBuffer> legacyServer =
+        FrameCodec.defaultServer(codec, new PaddingCompressor(codec));
+    FrameCodec<ByteBuffer> server =
+        FrameCodec.defaultServer(codec, new InPlacePaddingCompressor(codec));
+    FrameCodec<ByteBuffer> client =
+        FrameCodec.defaultClient(codec, new InPlacePaddingCompressor(codec));
+
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      codec.allocations = 0;
+      ByteBuffer expected = legacyServer.encode(frame);
+      int legacyAllocations = codec.allocations;
+
+      codec.allocations = 0;
+      ByteBuffer encoded = server.encode(frame);
+      // uncompressed body + frame
+      assertThat(codec.allocations).isEqualTo(2).isLessThan(legacyAllocations);
+      assertThat(encoded).isEqualTo(expected);
+      assertThat(encoded.getInt(5)).isEqualTo(encoded.remaining() - FrameCodec.headerEncodedSize());
+
+      Frame decoded = client.decode(encoded);
+      assertThat(decoded.streamId).isEqualTo(frame.streamId);
+      assertThat(decoded.message).isInstanceOf(frame.message.getClass());
+    }
+  }
+
+  @Test
+  @UseDataProvider(location = TestDataProviders.class, value = "protocolV3OrAbove")
+  public void should_decode_lazily(int protocolVersion) {
+    ByteBufferPrimitiveCodec codec = ByteBufferPrimitiveCodec.HEAP;
+    FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, new PaddingCompressor(codec));
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, new PaddingCompressor(codec));
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      ByteBuffer encoded = server.encode(frame);
+      int size = encoded.remaining();
+
+      LazyFrame<ByteBuffer> lazyFrame = client.decodeLazily(encoded);
+      FrameHeader header = lazyFrame.header();
+      assertThat(header.protocolVersion).isEqualTo(protocolVersion);
+      assertThat(header.isResponse).isTrue();
+      assertThat(header.isCompressed()).isTrue();
+      assertThat(header.streamId).isEqualTo(frame.streamId);
+      assertThat(header.opcode).isEqualTo(frame.message.opcode);
+      assertThat(header.size()).isEqualTo(size);
+      assertThat(lazyFrame.isDecoded()).isFalse();
+      assertThat(lazyFrame.body().remaining()).isEqualTo(header.length);
+
+      assertThat(lazyFrame.message()).isInstanceOf(frame.message.getClass());
+      assertThat(lazyFrame.isDecoded()).isTrue();
+      assertThat(lazyFrame.body()).isNull();
+      assertThat(lazyFrame.frame().streamId).isEqualTo(frame.streamId);
+      assertThat(lazyFrame.frame().compressedSize).isEqualTo(size);
+    }
+  }
+
+  @Test
+  @UseDataProvider(location = TestDataProviders.class, value = "protocolV3OrAbove")
+  public void should_forward_with_new_stream_id(int protocolVersion) {
+    ByteBufferPrimitiveCodec codec = ByteBufferPrimitiveCodec.HEAP;
+    FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, new PaddingCompressor(codec));
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, new PaddingCompressor(codec));
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      ByteBuffer encoded = server.encode(frame);
+      ByteBuffer original = ByteBuffer.allocate(encoded.remaining()).put(encoded.duplicate());
+      original.flip();
+
+      LazyFrame<ByteBuffer> lazyFrame = client.decodeLazily(encoded);
+      ByteBuffer forwarded = client.forward(lazyFrame, -2);
+
+      // The new header was written in place of the old one
+      assertThat(forwarded.array()).isSameAs(encoded.array());
+      assertThat(forwarded.getShort(2)).isEqualTo((short) -2);
+      forwarded.putShort(2, original.getShort(2));
+      assertThat(forwarded).isEqualTo(original);
+      forwarded.putShort(2, (short) -2);
+
+      Frame decoded = client.decode(forwarded);
+      assertThat(decoded.streamId).isEqualTo(-2);
+      assertThat(decoded.message).isInstanceOf(frame.message.getClass());
+    }
+  }
+
+  @Test
+  public void should_forward_without_allocating() {
+    AllocationCountingCodec codec = new AllocationCountingCodec();
+    FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, Compressor.none());
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, Compressor.none());
+    Frame frame =
+        Frame.forResponse(
+            ProtocolConstants.Version.V4,
+            1,
+            null,
+            Collections.emptyMap(),
+            Collections.emptyList(),
+            new Error(ProtocolConstants.ErrorCode.SERVER_ERROR, "mock error"));
+    ByteBuffer encoded = server.encode(frame);
+    int position = encoded.position();
+
+    codec.allocations = 0;
+    ByteBuffer forwarded = client.forward(client.decodeLazily(encoded), 42);
+
+    assertThat(codec.allocations).isEqualTo(0);
+    assertThat(forwarded).isSameAs(encoded);
+    assertThat(forwarded.position()).isEqualTo(position);
+    assertThat(client.decode(forwarded).streamId).isEqualTo(42);
+
+    // A read-only source can't be patched, the header is copied instead
+    ByteBuffer readOnly = server.encode(frame).asReadOnlyBuffer();
+    forwarded = client.forward(client.decodeLazily(readOnly), 42);
+    assertThat(forwarded).isNotSameAs(readOnly);
+    assertThat(client.decode(forwarded).streamId).isEqualTo(42);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_not_forward_with_invalid_stream_id() {
+    FrameCodec<ByteBuffer> server =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+    FrameCodec<ByteBuffer> client =
+        FrameCodec.defaultClient(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+    Frame frame = FrameSamples.responses(ProtocolConstants.Version.V4).get(0);
+    client.forward(client.decodeLazily(server.encode(frame)), 1 << 15);
+  }
+
+  @Test
+  public void should_memoize_message_size_of_reencoded_message() {
+    CountingRegisterCodec registerCodec = new CountingRegisterCodec(ProtocolConstants.Version.V4);
+    FrameCodec<ByteBuffer> client =
+        new FrameCodec<>(
+            ByteBufferPrimitiveCodec.HEAP,
+            Compressor.none(),
+            registry -> registry.addEncoder(registerCodec));
+    Frame frame =
+        Frame.forRequest(
+            ProtocolConstants.Version.V4,
+            1,
+            false,
+            Collections.emptyMap(),
+            new Register(Collections.singletonList(ProtocolConstants.EventType.SCHEMA_CHANGE)));
+
+    ByteBuffer first = client.encode(frame);
+    assertThat(registerCodec.sizeComputations).isEqualTo(1);
+
+    // The size is only memoized once the message gets encoded again
+    ByteBuffer second = client.encode(frame);
+    ByteBuffer third = client.encode(frame);
+
+    assertThat(second).isEqualTo(first);
+    assertThat(third).isEqualTo(first);
+    assertThat(registerCodec.sizeComputations).isEqualTo(2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_reject_frame_longer_than_limit_from_header() {
+    FrameCodec<ByteBuffer> client =
+        new FrameCodec<>(
+            ByteBufferPrimitiveCodec.HEAP,
+            Compressor.none(),
+            new FrameCodec.Limits(1024, 1024, 0),
+            new ProtocolV4ClientCodecs());
+    ByteBuffer header = ByteBuffer.allocate(FrameCodec.headerEncodedSize());
+    header.put(0, (byte) (0x80 | ProtocolConstants.Version.V4));
+    header.putInt(5, 1024);
+    // only the header is available, the limit must be checked before trying to read the body
+    client.decodeHeader(header);
+  }
+
+  @Test
+  public void should_check_decompression_limits_before_decompressing() {
+    LengthPrefixCompressor compressor = new LengthPrefixCompressor();
+    FrameCodec<ByteBuffer> server =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, compressor);
+    Frame frame =
+        Frame.forResponse(
+            ProtocolConstants.Version.V4,
+            1,
+            null,
+            Collections.emptyMap(),
+            Collections.emptyList(),
+            new Error(ProtocolConstants.ErrorCode.SERVER_ERROR, "mock error"));
+    ByteBuffer encoded = server.encode(frame);
+    int compressedLength = encoded.remaining() - FrameCodec.headerEncodedSize();
+    int uncompressedLength = compressedLength - 4;
+
+    // Within the limits
+    FrameCodec<ByteBuffer> client =
+        new FrameCodec<>(
+            ByteBufferPrimitiveCodec.HEAP,
+            compressor,
+            new FrameCodec.Limits(1024, uncompressedLength, 1),
+            new ProtocolV4ClientCodecs());
+    assertThat(client.decode(encoded.duplicate()).message).isInstanceOf(Error.class);
+    assertThat(compressor.decompressions).isEqualTo(1);
+
+    // Decompressed length too large
+    client =
+        new FrameCodec<>(
+            ByteBufferPrimitiveCodec.HEAP,
+            compressor,
+            new FrameCodec.Limits(1024, uncompressedLength - 1, 0),
+            new ProtocolV4ClientCodecs());
+    assertRejected(client, encoded.duplicate());
+
+    // Declared length inflated by a hostile peer
+    ByteBuffer bomb = encoded.duplicate();
+    bomb.putInt(FrameCodec.headerEncodedSize(), compressedLength * 100);
+    client =
+        new FrameCodec<>(
+            ByteBufferPrimitiveCodec.HEAP,
+            compressor,
+            new FrameCodec.Limits(1024, Integer.MAX_VALUE, 50),
+            new ProtocolV4ClientCodecs());
+    assertRejected(client, bomb);
+
+    assertThat(compressor.decompressions).isEqualTo(1);
+  }
+
+  @Test
+  public void should_check_declared_length_of_compressor_without_decompress_into() {
+    LengthPrefixCompressor inPlace = new LengthPrefixCompressor();
+    FrameCodec<ByteBuffer> server =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, inPlace);
+    ByteBuffer encoded =
+        server.encode(
+            Frame.forResponse(
+                ProtocolConstants.Version.V4,
+                1,
+                null,
+                Collections.emptyMap(),
+                Collections.emptyList(),
+                new Error(ProtocolConstants.ErrorCode.SERVER_ERROR, "mock error")));
+    int uncompressedLength = encoded.remaining() - FrameCodec.headerEncodedSize() - 4;
+
+    // Only exposes the declared length, and decompresses by allocating its own buffer
+    int[] decompressions = new int[1];
+    Compressor<ByteBuffer> compressor =
+        new Compressor<ByteBuffer>() {
+          @Override
+          public String algorithm() {
+            return inPlace.algorithm();
+          }
+
+          @Override
+          public ByteBuffer compress(ByteBuffer uncompressed) {
+            return inPlace.compress(uncompressed);
+          }
+
+          @Override
+          public int decompressedLength(ByteBuffer compressed) {
+            return inPlace.decompressedLength(compressed);
+          }
+
+          @Override
+          public ByteBuffer decompress(ByteBuffer compressed) {
+            decompressions[0] += 1;
+            ByteBuffer uncompressed = ByteBuffer.allocate(compressed.getInt());
+            uncompressed.put(compressed).flip();
+            return uncompressed;
+          }
+        };
+
+    FrameCodec<ByteBuffer> client =
+        new FrameCodec<>(
+            ByteBufferPrimitiveCodec.HEAP,
+            compressor,
+            new FrameCodec.Limits(1024, uncompressedLength, 0),
+            new ProtocolV4ClientCodecs());
+    assertThat(client.decode(encoded.duplicate()).message).isInstanceOf(Error.class);
+    assertThat(decompressions[0]).isEqualTo(1);
+
+    client =
+        new FrameCodec<>(
+            ByteBufferPrimitiveCodec.HEAP,
+            compressor,
+            new FrameCodec.Limits(1024, uncompressedLength - 1, 0),
+            new ProtocolV4ClientCodecs());
+    assertRejected(client, encoded.duplicate());
+    assertThat(decompressions[0]).isEqualTo(1);
+  }
+
+  @Test
+  @UseDataProvider(location = TestDataProviders.class, value = "protocolV4OrAbove")
+  public void should_decompress_into_buffer_from_frame_codec(int protocolVersion) {
+    AllocationCountingCodec frameAllocator = new AllocationCountingCodec();
+    AllocationCountingCodec compressorAllocator = new AllocationCountingCodec();
+    Lz4Compressor compressor = new Lz4Compressor(compressorAllocator);
+    FrameCodec<ByteBuffer> server =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, new Lz4Compressor());
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(frameAllocator, compressor);
+
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      ByteBuffer encoded = server.encode(frame);
+      ByteBuffer body = encoded.duplicate();
+      body.position(FrameCodec.headerEncodedSize());
+      int bodySize = compressor.decompressedLength(body);
+
+      frameAllocator.allocations = 0;
+      Frame decoded = client.decode(encoded);
+
+      assertThat(frameAllocator.allocations).isEqualTo(1);
+      assertThat(compressorAllocator.allocations).isEqualTo(0);
+      assertThat(decoded.size).isEqualTo(FrameCodec.headerEncodedSize() + bodySize);
+      assertThat(decoded.message).isInstanceOf(frame.message.getClass());
+    }
+  }
+
+  @Test
+  public void should_not_compress_bodies_below_threshold() {
+    Lz4Compressor compressor = new Lz4Compressor();
+    FrameCodec<ByteBuffer> client =
+        new FrameCodec<>(
+            ByteBufferPrimitiveCodec.HEAP,
+            compressor,
+            new FrameCodec.CompressionPolicy(100, false),
+            FrameCodec.Limits.DEFAULT,
+            new ProtocolV4ClientCodecs());
+    FrameCodec<ByteBuffer> server =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, compressor);
+    Frame small = queryFrame("SELECT * FROM t");
+    Frame large = queryFrame(repeat("SELECT * FROM t WHERE k = 1 AND c = 2; ", 20));
+
+    assertCompressed(client.encode(small), false, server);
+    assertCompressed(client.encode(large), true, server);
+
+    ByteBuffer batch = client.encodeBatch(Arrays.asList(small, large));
+    assertCompressed(batch, false, server);
+    assertCompressed(batch, true, server);
+
+    ByteBuffer dest = ByteBuffer.allocate(client.encodedSize(small));
+    dest.limit(0);
+    client.encodeInto(small, dest);
+    assertThat(dest.remaining()).isEqualTo(dest.capacity());
+    assertCompressed(dest, false, server);
+  }
+
+  @Test
+  public void should_prepare_compressed_frame_without_encoding_it_twice() {
+    Lz4Compressor compressor = new Lz4Compressor();
+    FrameCodec<ByteBuffer> client =
+        FrameCodec.defaultClient(ByteBufferPrimitiveCodec.HEAP, compressor);
+    FrameCodec<ByteBuffer> server =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, compressor);
+    String credentials = "0x00636173736e647261006361737361";
+    Frame frame =
+        Frame.forRequest(
+            ProtocolConstants.Version.V4,
+            1,
+            false,
+            Frame.NO_PAYLOAD,
+            new AuthResponse(Bytes.fromHexString(credentials)));
+
+    FrameCodec.PreparedFrame<ByteBuffer> prepared = client.prepare(frame);
+    ByteBuffer dest = ByteBuffer.allocate(prepared.encodedSize());
+    dest.limit(0);
+    prepared.encodeInto(dest);
+
+    assertThat(dest.remaining()).isEqualTo(dest.capacity());
+    assertThat(server.decodeHeader(dest.duplicate()).isCompressed()).isTrue();
+    Frame decoded = server.decode(dest);
+    assertThat(((AuthResponse) decoded.message).token).isEqualTo(Bytes.fromHexString(credentials));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_not_compute_compressed_size_of_message_that_can_only_be_encoded_once() {
+    FrameCodec<ByteBuffer> client =
+        FrameCodec.defaultClient(ByteBufferPrimitiveCodec.HEAP, new Lz4Compressor());
+    client.encodedSize(
+        Frame.forRequest(
+            ProtocolConstants.Version.V4,
+            1,
+            false,
+            Frame.NO_PAYLOAD,
+            new AuthResponse(Bytes.fromHexString("0xcafebabe"))));
+  }
+
+  @Test
+  public void should_not_compress_in_place_if_codec_does_not_support_updates() {
+    ByteBufferPrimitiveCodec codec =
+        new ByteBufferPrimitiveCodec(false) {
+          @Override
+          public void updateInt(int newValue, ByteBuffer dest, int index) {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public boolean supportsUpdates() {
+            return false;
+          }
+        };
+    Lz4Compressor compressor = new Lz4Compressor(codec);
+    FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, compressor);
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, compressor);
+    List<Frame> frames = FrameSamples.responses(ProtocolConstants.Version.V4);
+
+    ByteBuffer batch = server.encodeBatch(frames);
+    for (Frame frame : frames) {
+      assertThat(client.decode(server.encode(frame)).streamId).isEqualTo(frame.streamId);
+      ByteBuffer encoded = batch.slice();
+      encoded.limit(client.decodeHeader(encoded.duplicate()).size());
+      batch.position(batch.position() + encoded.remaining());
+      assertThat(client.decode(encoded).streamId).isEqualTo(frame.streamId);
+    }
+  }
+
+  @Test
+  public void should_send_uncompressed_body_if_compression_does_not_help() {
+    Lz4Compressor compressor = new Lz4Compressor();
+    FrameCodec<ByteBuffer> client =
+        new FrameCodec<>(
+            ByteBufferPrimitiveCodec.HEAP,
+            compressor,
+            new FrameCodec.CompressionPolicy(0, true),
+            FrameCodec.Limits.DEFAULT,
+            new ProtocolV4ClientCodecs());
+    FrameCodec<ByteBuffer> server =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, compressor);
+    // LZ4 adds at least 5 bytes to an incompressible body
+    Frame incompressible = queryFrame("SELECT now() FROM system.local");
+    Frame compressible = queryFrame(repeat("SELECT * FROM t WHERE k = 1 AND c = 2; ", 20));
+
+    assertCompressed(client.encode(incompressible), false, server);
+    assertCompressed(client.encode(compressible), true, server);
+    assertThat(client.encodedSize(incompressible))
+        .isEqualTo(FrameCodec.headerEncodedSize() + 4 + 30 + 2 + 1);
+
+    ByteBuffer batch = client.encodeBatch(Arrays.asList(incompressible, compressible));
+    assertCompressed(batch, false, server);
+    assertCompressed(batch, true, server);
+  }
+
+  private static Frame queryFrame(String query) {
+    return Frame.forRequest(
+        ProtocolConstants.Version.V4, 1, false, Collections.emptyMap(), new Query(query));
+  }
+
+  private static String repeat(String s, int count) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      builder.append(s);
+    }
+    return builder.toString();
+  }
+
+  /** Checks the flag of the next frame in {@code encoded}, and that it can be decoded. */
+  private static void assertCompressed(
+      ByteBuffer encoded, boolean expected, FrameCodec<ByteBuffer> decoder) {
+    FrameHeader header = decoder.decodeHeader(encoded.duplicate());
+    assertThat(header.isCompressed()).isEqualTo(expected);
+    ByteBuffer frame = encoded.slice();
+    frame.limit(header.size());
+    encoded.position(encoded.position() + header.size());
+    assertThat(decoder.decode(frame).message).isInstanceOf(Query.class);
+  }
+
+  private static void assertRejected(FrameCodec<ByteBuffer> codec, ByteBuffer encoded) {
+    try {
+      codec.decode(encoded);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static void should_round_trip(
+      Frame frame,
+      FrameCodec<ByteBuffer> encoder,
+      FrameCodec<ByteBuffer> decoder,
+      FrameCodec<ByteBuffer> reEncoder) {
+    ByteBuffer encoded = encoder.encode(frame);
+    assertThat(encoded.position()).isEqualTo(0);
+    assertThat(encoded.remaining())
+        .isEqualTo(FrameCodec.headerEncodedSize() + encoded.getInt(5))
+        .isEqualTo(encoded.capacity());
+
+    Frame decoded = decoder.decode(encoded.duplicate());
+    assertThat(decoded.protocolVersion).isEqualTo(frame.protocolVersion);
+    assertThat(decoded.streamId).isEqualTo(frame.streamId);
+    assertThat(decoded.tracingId).isEqualTo(frame.tracingId);
+    assertThat(decoded.customPayload).isEqualTo(frame.customPayload);
+    assertThat(decoded.warnings).isEqualTo(frame.warnings);
+    assertThat(decoded.size).isEqualTo(encoded.remaining());
+    assertThat(decoded.message).isInstanceOf(frame.message.getClass());
+
+    // Messages don't implement equals, so compare the binary forms instead
+    ByteBuffer reEncoded = reEncoder.encode(decoded);
+    assertThat(reEncoded).isEqualTo(encoded);
+  }
+
+  /** A fake compressor that prepends a byte, to get a body size that differs from the input. */
+  private static class PaddingCompressor implements Compressor<ByteBuffer> {
+    final ByteBufferPrimitiveCodec codec;
+
+    private PaddingCompressor(ByteBufferPrimitiveCodec codec) {
+      this.codec = codec;
+    }
+
+    @Override
+    public String algorithm() {
+      return "padding";
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer uncompressed) {
+      ByteBuffer compressed = codec.allocate(uncompressed.remaining() + 1);
+      codec.writeByte((byte) 0, compressed);
+      codec.writeRaw(uncompressed, compressed);
+      return compressed;
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer compressed) {
+      ByteBuffer decompressed = compressed.duplicate();
+      decompressed.position(decompressed.position() + 1);
+      return decompressed.slice();
+    }
+  }
+
+  /** Same as {@link PaddingCompressor}, but supports compressing into the frame buffer. */
+  private static class InPlacePaddingCompressor extends PaddingCompressor {
+
+    private InPlacePaddingCompressor(ByteBufferPrimitiveCodec codec) {
+      super(codec);
+    }
+
+    @Override
+    public int maxCompressedLength(int uncompressedLength) {
+      // deliberately larger than needed, to check that the frame codec does not rely on it
+      return uncompressedLength + 8;
+    }
+
+    @Override
+    public void compressInto(ByteBuffer uncompressed, ByteBuffer dest) {
+      codec.writeByte((byte) 0, dest);
+      codec.writeRaw(uncompressed, dest);
+    }
+  }
+
+  /** A fake compressor that only prefixes the data with its length, like LZ4 does. */
+  private static class LengthPrefixCompressor implements Compressor<ByteBuffer> {
+    private int decompressions;
+
+    @Override
+    public String algorithm() {
+      return "length-prefix";
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer uncompressed) {
+      ByteBuffer compressed = ByteBuffer.allocate(4 + uncompressed.remaining());
+      compressed.putInt(uncompressed.remaining()).put(uncompressed).flip();
+      return compressed;
+    }
+
+    @Override
+    public int decompressedLength(ByteBuffer compressed) {
+      return compressed.getInt(compressed.position());
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer compressed) {
+      throw new AssertionError("Should use decompressInto");
+    }
+
+    @Override
+    public boolean supportsDecompressInto() {
+      return true;
+    }
+
+    @Override
+    public void decompressInto(ByteBuffer compressed, ByteBuffer dest) {
+      decompressions += 1;
+      compressed.getInt();
+      ByteBufferPrimitiveCodec.HEAP.writeRaw(compressed, dest);
+    }
+  }
+
+  private static class AllocationCountingCodec extends ByteBufferPrimitiveCodec {
+    private int allocations;
+
+    private AllocationCountingCodec() {
+      super(false);
+    }
+
+    @Override
+    public ByteBuffer allocate(int size) {
+      allocations += 1;
+      return super.allocate(size);
+    }
+  }
+
+  @DataProvider
+  public static Object[][] codecsAndVersions() {
+    return TestDataProviders.combine(
+        TestDataProviders.fromList(
+            ByteBufferPrimitiveCodec.HEAP,
+            ByteBufferPrimitiveCodec.DIRECT,
+            ByteBufferPrimitiveCodec.SLICING_HEAP,
+            ByteBufferPrimitiveCodec.SLICING_DIRECT),
+        TestDataProviders.protocolV3OrAbove());
+  }
+
+  private static class CountingRegisterCodec extends Register.Codec {
+    private int sizeComputations;
+
+    private CountingRegisterCodec(int protocolVersion) {
+      super(protocolVersion);
+    }
+
+    @Override
+    public int encodedSize(Message message) {
+      sizeComputations += 1;
+      return super.encodedSize(message);
+    }
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class ByteBufferPoolTest {
+
+  @Test
+  public void should_round_up_to_size_class() {
+    ByteBufferPool pool = new ByteBufferPool(false, 64, 1024, 4, 4);
+    assertThat(pool.acquire(1).capacity()).isEqualTo(64);
+    assertThat(pool.acquire(64).capacity()).isEqualTo(64);
+    assertThat(pool.acquire(65).capacity()).isEqualTo(128);
+    assertThat(pool.acquire(1000).capacity()).isEqualTo(1024);
+    assertThat(pool.acquire(1025).capacity()).isEqualTo(1025); // not pooled
+  }
+
+  @Test
+  public void should_reuse_released_buffers() {
+    ByteBufferPool pool = new ByteBufferPool(true, 64, 1024, 4, 4);
+
+    ByteBuffer buffer1 = pool.acquire(100);
+    assertThat(buffer1.isDirect()).isTrue();
+    assertThat(pool.misses()).isEqualTo(1);
+    assertThat(pool.outstanding()).isEqualTo(1);
+
+    buffer1.position(10);
+    pool.release(buffer1);
+    assertThat(pool.outstanding()).isEqualTo(0);
+
+    ByteBuffer buffer2 = pool.acquire(120);
+    assertThat(buffer2).isSameAs(buffer1);
+    assertThat(buffer2.position()).isEqualTo(0);
+    assertThat(buffer2.limit()).isEqualTo(128);
+    assertThat(pool.hits()).isEqualTo(1);
+    assertThat(pool.misses()).isEqualTo(1);
+    assertThat(pool.outstanding()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_ignore_foreign_buffers() {
+    ByteBufferPool pool = new ByteBufferPool(false, 64, 1024, 4, 4);
+
+    pool.release(ByteBuffer.allocate(100)); // not a size class
+    pool.release(ByteBuffer.allocateDirect(128)); // wrong type
+    pool.release(ByteBuffer.allocate(2048)); // too big
+    byte[] callerArray = new byte[128];
+    pool.release(ByteBuffer.wrap(callerArray)); // matching size class, but not from the pool
+    pool.release(ByteBuffer.wrap(callerArray, 0, 64).slice());
+    assertThat(pool.outstanding()).isEqualTo(0);
+
+    ByteBuffer buffer = pool.acquire(100);
+    assertThat(buffer.array()).isNotSameAs(callerArray);
+    assertThat(pool.hits()).isEqualTo(0);
+    assertThat(pool.misses()).isEqualTo(1);
+    assertThat(pool.outstanding()).isEqualTo(1);
+  }
+
+  @Test
+  public void should_ignore_views_and_double_releases_of_pooled_buffers() {
+    ByteBufferPool pool = new ByteBufferPool(false, 64, 1024, 4, 4);
+    ByteBuffer buffer = pool.acquire(64);
+
+    pool.release(buffer.duplicate());
+    assertThat(pool.outstanding()).isEqualTo(1);
+
+    pool.release(buffer);
+    pool.release(buffer);
+    assertThat(pool.outstanding()).isEqualTo(0);
+
+    assertThat(pool.acquire(64)).isSameAs(buffer);
+    assertThat(pool.acquire(64)).isNotSameAs(buffer);
+  }
+
+  @Test
+  public void should_share_buffers_across_threads_when_thread_cache_is_full() throws Exception {
+    ByteBufferPool pool = new ByteBufferPool(false, 64, 1024, 1, 4);
+    ByteBuffer buffer1 = pool.acquire(64);
+    ByteBuffer buffer2 = pool.acquire(64);
+    pool.release(buffer1); // goes to the thread cache
+    pool.release(buffer2); // thread cache full, goes to the shared cache
+
+    AtomicReference<ByteBuffer> fromOtherThread = new AtomicReference<>();
+    Thread thread = new Thread(() -> fromOtherThread.set(pool.acquire(64)));
+    thread.start();
+    thread.join();
+
+    assertThat(fromOtherThread.get()).isSameAs(buffer2);
+    assertThat(pool.acquire(64)).isSameAs(buffer1);
+    assertThat(pool.hits()).isEqualTo(2);
+  }
+
+  @Test
+  public void should_pool_frame_buffers() {
+    ByteBufferPool pool = new ByteBufferPool(false);
+    PoolingPrimitiveCodec codec = new PoolingPrimitiveCodec(ByteBufferPrimitiveCodec.HEAP, pool);
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, Compressor.none());
+    FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, Compressor.none());
+
+    for (int i = 0; i < 10; i++) {
+      for (Frame frame : FrameSamples.requests(ProtocolConstants.Version.V4)) {
+        ByteBuffer encoded = client.encode(frame);
+        Frame decoded = server.decode(encoded.duplicate());
+        assertThat(decoded.message).isInstanceOf(frame.message.getClass());
+        codec.release(encoded);
+      }
+    }
+    assertThat(pool.outstanding()).isEqualTo(0);
+    assertThat(pool.hits()).isGreaterThan(pool.misses());
+  }
+
+  @Test
+  public void should_release_decompressed_bodies_with_frames_in_slice_mode() {
+    ByteBufferPool pool = new ByteBufferPool(false);
+    PoolingPrimitiveCodec codec =
+        new PoolingPrimitiveCodec(ByteBufferPrimitiveCodec.SLICING_HEAP, pool);
+    Lz4Compressor compressor = new Lz4Compressor(codec);
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, compressor);
+    FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, compressor);
+
+    List<Frame> decodedFrames = new ArrayList<>();
+    int compressedFrames = 0;
+    for (Frame frame : FrameSamples.requests(ProtocolConstants.Version.V4)) {
+      ByteBuffer encoded = client.encode(frame);
+      Frame decoded = server.decode(encoded.duplicate());
+      decodedFrames.add(decoded);
+      if (decoded.compressedSize >= 0) {
+        compressedFrames += 1;
+      }
+      codec.release(encoded);
+    }
+    // The values of the frames may point into their decompressed bodies, which are still in use
+    assertThat(compressedFrames).isGreaterThan(0);
+    assertThat(pool.outstanding()).isEqualTo(compressedFrames);
+
+    for (Frame decoded : decodedFrames) {
+      decoded.release();
+      decoded.release();
+    }
+    assertThat(pool.outstanding()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_release_concatenated_buffers() {
+    ByteBufferPool pool = new ByteBufferPool(false, 64, 1024, 4, 4);
+    PoolingPrimitiveCodec codec = new PoolingPrimitiveCodec(ByteBufferPrimitiveCodec.HEAP, pool);
+
+    ByteBuffer left = codec.allocate(64);
+    while (left.limit() < left.capacity()) {
+      codec.writeByte((byte) 1, left);
+    }
+    ByteBuffer right = codec.allocate(64);
+    codec.writeByte((byte) 2, right);
+
+    ByteBuffer result = codec.concat(left, right);
+
+    assertThat(result.capacity()).isEqualTo(128);
+    assertThat(result.remaining()).isEqualTo(65);
+    assertThat(result.get(64)).isEqualTo((byte) 2);
+    assertThat(pool.outstanding()).isEqualTo(1);
+  }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import com.datastax.oss.protocol.internal.PrimitiveSizes;
+import com.datastax.oss.protocol.internal.TestDataProviders;
+import com.datastax.oss.protocol.internal.util.Bytes;
+import com.datastax.oss.protocol.internal.util.Utf8CharSequence;
+import com.datastax.oss.protocol.internal.util.collection.NullAllowingImmutableMap;
+import com.tngtech.java.junit.dataprovider.DataProvider;
+import com.tngtech.java.junit.dataprovider.DataProviderRunner;
+import com.tngtech.java.junit.dataprovider.UseDataProvider;
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(DataProviderRunner.class)
+public class ByteBufferPrimitiveCodecTest {
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_allocate_empty_buffer(ByteBufferPrimitiveCodec codec) {
+    ByteBuffer buffer = codec.allocate(10);
+    assertThat(buffer.isDirect()).isEqualTo(codec.isDirect());
+    assertThat(buffer.capacity()).isEqualTo(10);
+    assertThat(codec.sizeOf(buffer)).isEqualTo(0);
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_write_and_read_primitives(ByteBufferPrimitiveCodec codec) throws Exception {
+    InetAddress address = InetAddress.getByName("127.0.0.1");
+    ByteBuffer buffer = codec.allocate(64);
+
+    codec.writeByte((byte) 0x7F, buffer);
+    codec.writeInt(42, buffer);
+    codec.writeLong(Long.MAX_VALUE, buffer);
+    codec.writeUnsignedShort(0xFFFF, buffer);
+    codec.writeInetAddr(address, buffer);
+    codec.writeBytes(Bytes.fromHexString("0xcafebabe"), buffer);
+    codec.writeBytes((ByteBuffer) null, buffer);
+    codec.writeShortBytes(new byte[] {1, 2, 3}, buffer);
+
+    assertThat(buffer.position()).isEqualTo(0);
+    assertThat(codec.sizeOf(buffer))
+        .isEqualTo(
+            PrimitiveSizes.BYTE
+                + PrimitiveSizes.INT
+                + PrimitiveSizes.LONG
+                + PrimitiveSizes.SHORT
+                + PrimitiveSizes.sizeOfInetAddr(address)
+                + PrimitiveSizes.sizeOfBytes(Bytes.fromHexString("0xcafebabe"))
+                + PrimitiveSizes.INT
+                + PrimitiveSizes.sizeOfShortBytes(new byte[3]));
+
+    assertThat(codec.readByte(buffer)).isEqualTo((byte) 0x7F);
+    assertThat(codec.readInt(buffer)).isEqualTo(42);
+    assertThat(codec.readLong(buffer)).isEqualTo(Long.MAX_VALUE);
+    assertThat(codec.readUnsignedShort(buffer)).isEqualTo(0xFFFF);
+    assertThat(codec.readInetAddr(buffer)).isEqualTo(address);
+    assertThat(codec.readBytes(buffer)).isEqualTo(Bytes.fromHexString("0xcafebabe"));
+    assertThat(codec.readBytes(buffer)).isNull();
+    assertThat(codec.readShortBytes(buffer)).containsExactly(1, 2, 3);
+    assertThat(codec.sizeOf(buffer)).isEqualTo(0);
+  }
+
+  @Test
+  @UseDataProvider("strings")
+  public void should_write_and_read_strings(ByteBufferPrimitiveCodec codec, String s) {
+    int length = PrimitiveSizes.sizeOfString(s) + PrimitiveSizes.sizeOfLongString(s);
+    ByteBuffer buffer = codec.allocate(length);
+
+    codec.writeString(s, buffer);
+    codec.writeLongString(s, buffer);
+
+    // Check against the JDK encoder
+    byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+    assertThat(codec.sizeOf(buffer)).isEqualTo(length);
+    ByteBuffer view = buffer.duplicate();
+    assertThat(codec.readUnsignedShort(view)).isEqualTo(expected.length);
+    byte[] actual = new byte[expected.length];
+    view.get(actual);
+    assertThat(actual).isEqualTo(expected);
+
+    assertThat(codec.readString(buffer)).isEqualTo(new String(expected, StandardCharsets.UTF_8));
+    assertThat(codec.readLongString(buffer))
+        .isEqualTo(new String(expected, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_not_modify_source_when_writing_bytes(ByteBufferPrimitiveCodec codec) {
+    ByteBuffer bytes = Bytes.fromHexString("0xcafebabe");
+    ByteBuffer buffer = codec.allocate(8);
+
+    codec.writeBytes(bytes, buffer);
+
+    assertThat(bytes.position()).isEqualTo(0);
+    assertThat(bytes.remaining()).isEqualTo(4);
+  }
+
+  @Test
+  public void should_read_bytes_as_copies() {
+    ByteBufferPrimitiveCodec codec = ByteBufferPrimitiveCodec.HEAP;
+    ByteBuffer buffer = codec.allocate(8);
+    codec.writeBytes(Bytes.fromHexString("0xcafebabe"), buffer);
+
+    ByteBuffer bytes = codec.readBytes(buffer);
+    buffer.put(7, (byte) 0);
+
+    assertThat(codec.slicesBytes()).isFalse();
+    assertThat(bytes).isEqualTo(Bytes.fromHexString("0xcafebabe"));
+  }
+
+  @Test
+  @UseDataProvider("slicingCodecs")
+  public void should_read_bytes_as_views_in_slice_mode(ByteBufferPrimitiveCodec codec) {
+    ByteBuffer buffer = codec.allocate(12);
+    codec.writeBytes(Bytes.fromHexString("0xcafebabe"), buffer);
+    codec.writeInt(42, buffer);
+
+    ByteBuffer bytes = codec.readBytes(buffer);
+
+    assertThat(codec.slicesBytes()).isTrue();
+    assertThat(bytes.isReadOnly()).isTrue();
+    assertThat(bytes).isEqualTo(Bytes.fromHexString("0xcafebabe"));
+    assertThat(codec.readInt(buffer)).isEqualTo(42);
+
+    // The view shares the source's content
+    buffer.put(7, (byte) 0);
+    assertThat(bytes).isEqualTo(Bytes.fromHexString("0xcafeba00"));
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_read_lazy_strings(ByteBufferPrimitiveCodec codec) {
+    ByteBuffer buffer = codec.allocate(32);
+    codec.writeStringList(Arrays.asList("café", "warning"), buffer);
+    codec.writeString("café", buffer);
+
+    List<String> list = codec.readLazyStringList(buffer);
+    CharSequence lazy = codec.readLazyString(buffer);
+
+    assertThat(lazy).isInstanceOf(Utf8CharSequence.class);
+    assertThat(((Utf8CharSequence) lazy).isDecoded()).isFalse();
+    assertThat(lazy.length()).isEqualTo(4);
+    assertThat(((Utf8CharSequence) lazy).isDecoded()).isTrue();
+    assertThat(lazy.toString()).isEqualTo("café");
+    assertThat(list).containsExactly("café", "warning");
+    assertThat(codec.sizeOf(buffer)).isEqualTo(0);
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_skip_values(ByteBufferPrimitiveCodec codec) {
+    Map<String, ByteBuffer> bytesMap =
+        NullAllowingImmutableMap.of("a", Bytes.fromHexString("0xcafe"), "b", null);
+    ByteBuffer buffer = codec.allocate(128);
+    codec.writeBytes(Bytes.fromHexString("0xcafebabe"), buffer);
+    codec.writeBytes((ByteBuffer) null, buffer);
+    codec.writeShortBytes(new byte[] {1, 2, 3}, buffer);
+    codec.writeString("café", buffer);
+    codec.writeLongString("café", buffer);
+    codec.writeStringList(Arrays.asList("a", "bc"), buffer);
+    codec.writeBytesMap(bytesMap, buffer);
+    codec.writeInt(42, buffer);
+
+    codec.skipBytes(buffer);
+    codec.skipBytes(buffer);
+    codec.skipShortBytes(buffer);
+    codec.skipString(buffer);
+    codec.skipLongString(buffer);
+    codec.skipStringList(buffer);
+    codec.skipBytesMap(buffer);
+
+    assertThat(codec.readInt(buffer)).isEqualTo(42);
+    assertThat(codec.sizeOf(buffer)).isEqualTo(0);
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_write_and_read_primitive_arrays(ByteBufferPrimitiveCodec codec) {
+    int[] ints = {1, -1, Integer.MAX_VALUE};
+    long[] longs = {1, -1, Long.MIN_VALUE};
+    int[] shorts = {0, 1, 0xFFFF};
+    ByteBuffer buffer = codec.allocate(1 + 4 * 2 + 8 * 2 + 2 * 2);
+    codec.writeByte((byte) 0, buffer); // misalign on purpose
+    codec.writeInts(ints, 1, 2, buffer);
+    codec.writeLongs(longs, 1, 2, buffer);
+    codec.writeUnsignedShorts(shorts, 1, 2, buffer);
+    assertThat(codec.sizeOf(buffer)).isEqualTo(buffer.capacity());
+
+    ByteBuffer view = buffer.duplicate();
+    codec.readByte(view);
+    assertThat(codec.readInt(view)).isEqualTo(-1);
+    assertThat(codec.readInt(view)).isEqualTo(Integer.MAX_VALUE);
+    assertThat(codec.readLong(view)).isEqualTo(-1);
+    assertThat(codec.readLong(view)).isEqualTo(Long.MIN_VALUE);
+    assertThat(codec.readUnsignedShort(view)).isEqualTo(1);
+    assertThat(codec.readUnsignedShort(view)).isEqualTo(0xFFFF);
+
+    codec.readByte(buffer);
+    int[] actualInts = new int[3];
+    codec.readInts(buffer, actualInts, 1, 2);
+    assertThat(actualInts).containsExactly(0, -1, Integer.MAX_VALUE);
+    long[] actualLongs = new long[2];
+    codec.readLongs(buffer, actualLongs, 0, 2);
+    assertThat(actualLongs).containsExactly(-1, Long.MIN_VALUE);
+    int[] actualShorts = new int[2];
+    codec.readUnsignedShorts(buffer, actualShorts, 0, 2);
+    assertThat(actualShorts).containsExactly(1, 0xFFFF);
+    assertThat(codec.sizeOf(buffer)).isEqualTo(0);
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_write_arrays_in_buffer_byte_order(ByteBufferPrimitiveCodec codec) {
+    ByteBuffer buffer = codec.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+    codec.writeInts(new int[] {1, 2}, 0, 2, buffer);
+    codec.writeLongs(new long[] {3}, 0, 1, buffer);
+    codec.writeInt(4, buffer);
+    codec.writeInt(5, buffer);
+
+    assertThat(codec.readInt(buffer)).isEqualTo(1);
+    assertThat(codec.readInt(buffer)).isEqualTo(2);
+    assertThat(codec.readLong(buffer)).isEqualTo(3);
+    int[] ints = new int[2];
+    codec.readInts(buffer, ints, 0, 2);
+    assertThat(ints).containsExactly(4, 5);
+  }
+
+  @Test(expected = BufferOverflowException.class)
+  @UseDataProvider("codecs")
+  public void should_fail_to_write_array_whose_size_overflows(ByteBufferPrimitiveCodec codec) {
+    codec.writeLongs(new long[0], 0, Integer.MAX_VALUE / 4, codec.allocate(8));
+  }
+
+  @Test(expected = BufferUnderflowException.class)
+  @UseDataProvider("codecs")
+  public void should_fail_to_read_array_past_limit(ByteBufferPrimitiveCodec codec) {
+    ByteBuffer buffer = codec.allocate(8);
+    codec.writeInt(1, buffer);
+    codec.readInts(buffer, new int[2], 0, 2);
+  }
+
+  @Test(expected = BufferUnderflowException.class)
+  public void should_fail_to_read_bytes_longer_than_source_before_allocating() {
+    ByteBufferPrimitiveCodec codec = ByteBufferPrimitiveCodec.HEAP;
+    ByteBuffer buffer = codec.allocate(8);
+    codec.writeInt(0x7FFFFFF0, buffer);
+    codec.writeInt(0, buffer);
+    codec.readBytes(buffer);
+  }
+
+  @Test(expected = BufferUnderflowException.class)
+  @UseDataProvider("codecs")
+  public void should_fail_to_read_short_bytes_longer_than_source(ByteBufferPrimitiveCodec codec) {
+    ByteBuffer buffer = codec.allocate(4);
+    codec.writeUnsignedShort(0xFFFF, buffer);
+    codec.writeUnsignedShort(0, buffer);
+    codec.readShortBytes(buffer);
+  }
+
+  @Test(expected = BufferOverflowException.class)
+  @UseDataProvider("codecs")
+  public void should_fail_to_write_past_capacity(ByteBufferPrimitiveCodec codec) {
+    ByteBuffer buffer = codec.allocate(3);
+    codec.writeInt(1, buffer);
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_concat_into_left_if_it_has_spare_capacity(ByteBufferPrimitiveCodec codec) {
+    ByteBuffer left = codec.allocate(8);
+    codec.writeInt(1, left);
+    ByteBuffer right = codec.allocate(4);
+    codec.writeInt(2, right);
+
+    ByteBuffer result = codec.concat(left, right);
+
+    assertThat(result).isSameAs(left);
+    assertThat(codec.readInt(result)).isEqualTo(1);
+    assertThat(codec.readInt(result)).isEqualTo(2);
+    assertThat(codec.sizeOf(result)).isEqualTo(0);
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_concat_into_right_if_it_has_headroom(ByteBufferPrimitiveCodec codec) {
+    ByteBuffer left = codec.allocate(4);
+    codec.writeInt(1, left);
+    ByteBuffer right = codec.allocate(8);
+    codec.writeInt(0, right);
+    codec.writeInt(2, right);
+    codec.readInt(right); // consume the first int to leave some headroom
+
+    ByteBuffer result = codec.concat(left, right);
+
+    assertThat(result).isSameAs(right);
+    assertThat(codec.readInt(result)).isEqualTo(1);
+    assertThat(codec.readInt(result)).isEqualTo(2);
+    assertThat(codec.sizeOf(result)).isEqualTo(0);
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_concat_into_new_buffer(ByteBufferPrimitiveCodec codec) {
+    ByteBuffer left = codec.allocate(4);
+    codec.writeInt(1, left);
+    ByteBuffer right = codec.allocate(4);
+    codec.writeInt(2, right);
+
+    ByteBuffer result = codec.concat(left, right);
+
+    assertThat(result).isNotSameAs(left).isNotSameAs(right);
+    assertThat(codec.readInt(result)).isEqualTo(1);
+    assertThat(codec.readInt(result)).isEqualTo(2);
+    assertThat(codec.sizeOf(result)).isEqualTo(0);
+  }
+
+  @DataProvider
+  public static Object[][] codecs() {
+    return TestDataProviders.fromList(
+        ByteBufferPrimitiveCodec.HEAP, ByteBufferPrimitiveCodec.DIRECT);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  @UseDataProvider("codecs")
+  public void should_fail_to_write_string_longer_than_short_length(ByteBufferPrimitiveCodec codec) {
+    // Less than 0xFFFF chars, but more than 0xFFFF bytes
+    String s = longAsciiString(0xFFFF - 1) + "é";
+    codec.writeString(s, codec.allocate(PrimitiveSizes.sizeOfString(s)));
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_not_advance_buffer_if_string_too_long(ByteBufferPrimitiveCodec codec) {
+    String s = longAsciiString(0xFFFF - 1) + "é";
+    ByteBuffer buffer = codec.allocate(PrimitiveSizes.INT + PrimitiveSizes.sizeOfString(s));
+    codec.writeInt(42, buffer);
+    try {
+      codec.writeString(s, buffer);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertThat(buffer.limit()).isEqualTo(PrimitiveSizes.INT);
+    assertThat(codec.readInt(buffer)).isEqualTo(42);
+  }
+
+  private static String longAsciiString(int length) {
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append((char) ('a' + i % 26));
+    }
+    return builder.toString();
+  }
+
+  @DataProvider
+  public static Object[][] slicingCodecs() {
+    return TestDataProviders.fromList(
+        ByteBufferPrimitiveCodec.SLICING_HEAP, ByteBufferPrimitiveCodec.SLICING_DIRECT);
+  }
+
+  @DataProvider
+  public static Object[][] strings() {
+    return TestDataProviders.combine(
+        codecs(),
+        TestDataProviders.fromList(
+            "",
+            "SELECT * FROM system.local",
+            "café",
+            "€100",
+            "😀 emoji",
+            "malformed \ud83d surrogate",
+            "malformed \ude00 surrogate",
+            "ascii prefix, then ünïcödé",
+            "éa",
+            longAsciiString(4096)));
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.ProtocolV4ClientCodecs;
+import com.datastax.oss.protocol.internal.TestDataProviders;
+import com.datastax.oss.protocol.internal.response.Error;
+import com.tngtech.java.junit.dataprovider.DataProviderRunner;
+import com.tngtech.java.junit.dataprovider.UseDataProvider;
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(DataProviderRunner.class)
+public class CompositePrimitiveCodecTest {
+
+  private static final CompositePrimitiveCodec CODEC =
+      new CompositePrimitiveCodec(ByteBufferPrimitiveCodec.HEAP);
+
+  @Test
+  public void should_concat_without_copying() {
+    CompositeByteBuffer left = CODEC.allocate(4);
+    CODEC.writeInt(1, left);
+    CompositeByteBuffer right = CODEC.allocate(4);
+    CODEC.writeInt(2, right);
+    ByteBuffer leftComponent = left.components().get(0);
+    ByteBuffer rightComponent = right.components().get(0);
+
+    CompositeByteBuffer result = CODEC.concat(left, right);
+
+    assertThat(result.components()).containsExactly(leftComponent, rightComponent);
+    assertThat(CODEC.sizeOf(result)).isEqualTo(8);
+    assertThat(CODEC.readInt(result)).isEqualTo(1);
+    assertThat(CODEC.readInt(result)).isEqualTo(2);
+  }
+
+  @Test
+  public void should_read_values_that_straddle_components() {
+    ByteBuffer whole = ByteBufferPrimitiveCodec.HEAP.allocate(32);
+    ByteBufferPrimitiveCodec.HEAP.writeLong(Long.MIN_VALUE, whole);
+    ByteBufferPrimitiveCodec.HEAP.writeString("straddling", whole);
+    ByteBufferPrimitiveCodec.HEAP.writeInt(42, whole);
+
+    CompositeByteBuffer composite = split(whole, 3);
+
+    assertThat(CODEC.readLong(composite)).isEqualTo(Long.MIN_VALUE);
+    assertThat(CODEC.readString(composite)).isEqualTo("straddling");
+    assertThat(CODEC.readInt(composite)).isEqualTo(42);
+    assertThat(CODEC.sizeOf(composite)).isEqualTo(0);
+  }
+
+  @Test
+  public void should_read_arrays_that_straddle_components() {
+    ByteBuffer whole = ByteBufferPrimitiveCodec.HEAP.allocate(32);
+    ByteBufferPrimitiveCodec.HEAP.writeInts(new int[] {1, 2, 3}, 0, 3, whole);
+
+    CompositeByteBuffer composite = split(whole, 5);
+    int[] ints = new int[3];
+    CODEC.readInts(composite, ints, 0, 3);
+
+    assertThat(ints).containsExactly(1, 2, 3);
+    assertThat(CODEC.sizeOf(composite)).isEqualTo(0);
+  }
+
+  @Test
+  public void should_update_int_that_straddles_components() {
+    ByteBuffer whole = ByteBufferPrimitiveCodec.HEAP.allocate(32);
+    ByteBufferPrimitiveCodec.HEAP.writeInt(1, whole);
+    ByteBufferPrimitiveCodec.HEAP.writeInt(2, whole);
+
+    CompositeByteBuffer composite = split(whole, 3);
+    CODEC.readByte(composite);
+    CODEC.updateInt(42, composite, 3);
+
+    assertThat(CODEC.readUnsignedShort(composite)).isEqualTo(0);
+    assertThat(CODEC.readByte(composite)).isEqualTo((byte) 1);
+    assertThat(CODEC.readInt(composite)).isEqualTo(42);
+  }
+
+  @Test(expected = BufferUnderflowException.class)
+  public void should_fail_to_read_bytes_longer_than_source_before_allocating() {
+    ByteBuffer whole = ByteBufferPrimitiveCodec.HEAP.allocate(8);
+    ByteBufferPrimitiveCodec.HEAP.writeInt(0x7FFFFFF0, whole);
+    ByteBufferPrimitiveCodec.HEAP.writeInt(0, whole);
+
+    CODEC.readBytes(split(whole, 3));
+  }
+
+  @Test(expected = BufferUnderflowException.class)
+  public void should_fail_to_read_long_string_longer_than_source_before_allocating() {
+    ByteBuffer whole = ByteBufferPrimitiveCodec.HEAP.allocate(8);
+    ByteBufferPrimitiveCodec.HEAP.writeInt(0x7FFFFFF0, whole);
+    ByteBufferPrimitiveCodec.HEAP.writeInt(0, whole);
+
+    CODEC.readLongString(split(whole, 3));
+  }
+
+  @Test
+  public void should_skip_across_components() {
+    ByteBuffer whole = ByteBufferPrimitiveCodec.HEAP.allocate(32);
+    ByteBufferPrimitiveCodec.HEAP.writeString("straddling", whole);
+    ByteBufferPrimitiveCodec.HEAP.writeInt(42, whole);
+
+    CompositeByteBuffer composite = split(whole, 3);
+    CODEC.skipString(composite);
+
+    assertThat(CODEC.readInt(composite)).isEqualTo(42);
+  }
+
+  @Test
+  public void should_write_with_gathering_channel() throws Exception {
+    CompositeByteBuffer left = CODEC.allocate(4);
+    CODEC.writeInt(1, left);
+    CompositeByteBuffer right = CODEC.allocate(8);
+    CODEC.writeLong(2, right);
+    CompositeByteBuffer result = CODEC.concat(left, right);
+
+    SlowGatheringChannel channel = new SlowGatheringChannel();
+    long written = result.writeTo(channel);
+
+    assertThat(written).isEqualTo(12);
+    assertThat(channel.writeCalls).isGreaterThan(1);
+    ByteBuffer output = ByteBuffer.wrap(channel.output.toByteArray());
+    assertThat(output.getInt()).isEqualTo(1);
+    assertThat(output.getLong()).isEqualTo(2);
+    assertThat(result.remaining()).isEqualTo(0);
+  }
+
+  @Test
+  @UseDataProvider(location = TestDataProviders.class, value = "protocolV3OrAbove")
+  public void should_decode_fragmented_frames(int protocolVersion) throws Exception {
+    FrameCodec<ByteBuffer> reference =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+    FrameCodec<CompositeByteBuffer> server = FrameCodec.defaultServer(CODEC, Compressor.none());
+    FrameCodec<CompositeByteBuffer> client = FrameCodec.defaultClient(CODEC, Compressor.none());
+
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      ByteBuffer expected = reference.encode(frame);
+      Frame decoded = client.decode(split(expected.duplicate(), 7));
+      assertThat(decoded.streamId).isEqualTo(frame.streamId);
+      assertThat(decoded.message).isInstanceOf(frame.message.getClass());
+
+      CompositeByteBuffer reEncoded = server.encode(decoded);
+      SlowGatheringChannel channel = new SlowGatheringChannel();
+      reEncoded.writeTo(channel);
+      assertThat(ByteBuffer.wrap(channel.output.toByteArray())).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  @UseDataProvider(location = TestDataProviders.class, value = "protocolV3OrAbove")
+  public void should_encode_in_single_pass(int protocolVersion) throws Exception {
+    FrameCodec<ByteBuffer> reference =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+    CompositePrimitiveCodec growable =
+        new CompositePrimitiveCodec(ByteBufferPrimitiveCodec.HEAP, 16);
+    FrameCodec<CompositeByteBuffer> server = FrameCodec.defaultServer(growable, Compressor.none());
+
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      ByteBuffer expected = reference.encode(frame);
+      CompositeByteBuffer encoded = server.encodeSinglePass(frame);
+      SlowGatheringChannel channel = new SlowGatheringChannel();
+      encoded.writeTo(channel);
+      assertThat(ByteBuffer.wrap(channel.output.toByteArray())).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  @UseDataProvider(location = TestDataProviders.class, value = "protocolV4OrAbove")
+  public void should_decompress_into_frame_buffer(int protocolVersion) {
+    Compressor<CompositeByteBuffer> lz4 = CompositePrimitiveCodec.adapt(new Lz4Compressor());
+    FrameCodec<CompositeByteBuffer> server = FrameCodec.defaultServer(CODEC, lz4);
+    FrameCodec<CompositeByteBuffer> client = FrameCodec.defaultClient(CODEC, lz4);
+
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      Frame decoded = client.decode(server.encode(frame));
+      assertThat(decoded.streamId).isEqualTo(frame.streamId);
+      assertThat(decoded.message).isInstanceOf(frame.message.getClass());
+    }
+  }
+
+  @Test
+  public void should_reject_oversized_decompressed_body() {
+    AtomicInteger decompressions = new AtomicInteger();
+    Lz4Compressor lz4 =
+        new Lz4Compressor() {
+          @Override
+          public ByteBuffer decompress(ByteBuffer compressed) {
+            decompressions.incrementAndGet();
+            return super.decompress(compressed);
+          }
+
+          @Override
+          public void decompressInto(ByteBuffer compressed, ByteBuffer dest) {
+            decompressions.incrementAndGet();
+            super.decompressInto(compressed, dest);
+          }
+        };
+    Compressor<CompositeByteBuffer> compressor = CompositePrimitiveCodec.adapt(lz4);
+    FrameCodec<CompositeByteBuffer> server = FrameCodec.defaultServer(CODEC, compressor);
+    Frame frame =
+        Frame.forResponse(
+            ProtocolConstants.Version.V4,
+            1,
+            null,
+            Collections.emptyMap(),
+            Collections.emptyList(),
+            new Error(ProtocolConstants.ErrorCode.SERVER_ERROR, "mock error"));
+    CompositeByteBuffer encoded = server.encode(frame);
+    int decompressedLength =
+        FrameCodec.defaultServer(CODEC, Compressor.none()).encode(frame).remaining()
+            - FrameCodec.headerEncodedSize();
+
+    FrameCodec<CompositeByteBuffer> client =
+        new FrameCodec<>(
+            CODEC,
+            compressor,
+            new FrameCodec.Limits(1024, decompressedLength - 1, 0),
+            new ProtocolV4ClientCodecs());
+    try {
+      client.decode(encoded);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage()).contains("decompressed");
+    }
+    // Rejected from the declared length, before decompressing
+    assertThat(decompressions.get()).isEqualTo(0);
+  }
+
+  private static CompositeByteBuffer split(ByteBuffer whole, int chunkSize) {
+    CompositeByteBuffer composite = new CompositeByteBuffer(whole.remaining() / chunkSize + 1);
+    while (whole.hasRemaining()) {
+      ByteBuffer chunk = whole.slice();
+      chunk.limit(Math.min(chunkSize, chunk.remaining()));
+      whole.position(whole.position() + chunk.remaining());
+      composite.append(chunk);
+    }
+    return composite;
+  }
+
+  /** A channel that accepts at most 5 bytes per call, to exercise partial writes. */
+  private static class SlowGatheringChannel implements GatheringByteChannel {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    int writeCalls;
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+      writeCalls += 1;
+      int budget = 5;
+      long written = 0;
+      for (int i = offset; i < offset + length && budget > 0; i++) {
+        while (srcs[i].hasRemaining() && budget > 0) {
+          output.write(srcs[i].get());
+          budget -= 1;
+          written += 1;
+        }
+      }
+      return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+      return (int) write(new ByteBuffer[] {src});
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.ProtocolV4ServerCodecs;
+import com.datastax.oss.protocol.internal.TestDataProviders;
+import com.tngtech.java.junit.dataprovider.DataProvider;
+import com.tngtech.java.junit.dataprovider.DataProviderRunner;
+import com.tngtech.java.junit.dataprovider.UseDataProvider;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(DataProviderRunner.class)
+public class FrameDecoderTest {
+
+  private final FrameCodec<ByteBuffer> writer =
+      FrameCodec.defaultClient(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+  private final FrameCodec<ByteBuffer> reader =
+      FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+
+  @DataProvider
+  public static Object[][] chunkSizes() {
+    return TestDataProviders.fromList(1, 4, 9, 10, 37, 1024);
+  }
+
+  @Test
+  @UseDataProvider("chunkSizes")
+  public void should_decode_frames_from_arbitrary_chunks(int chunkSize) {
+    List<Frame> frames = FrameSamples.requests(ProtocolConstants.Version.V4);
+    ByteBuffer stream = encodeAll(frames);
+
+    FrameDecoder decoder = new FrameDecoder(reader);
+    List<Frame> decoded = new ArrayList<>();
+    while (stream.hasRemaining()) {
+      ByteBuffer chunk = stream.slice();
+      chunk.limit(Math.min(chunkSize, chunk.remaining()));
+      stream.position(stream.position() + chunk.remaining());
+      Frame frame;
+      while ((frame = decoder.readFrame(chunk)) != null) {
+        decoded.add(frame);
+      }
+      assertThat(chunk.hasRemaining()).isFalse();
+    }
+
+    assertThat(decoded).hasSize(frames.size());
+    for (int i = 0; i < frames.size(); i++) {
+      assertThat(decoded.get(i).streamId).isEqualTo(frames.get(i).streamId);
+      assertThat(decoded.get(i).message).isInstanceOf(frames.get(i).message.getClass());
+    }
+    assertThat(decoder.bufferedBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_return_views_of_the_input_when_frames_are_whole() {
+    List<ByteBuffer> encoded = new ArrayList<>();
+    for (Frame frame : FrameSamples.requests(ProtocolConstants.Version.V4)) {
+      encoded.add(writer.encode(frame));
+    }
+    ByteBuffer stream = concat(encoded);
+
+    FrameDecoder decoder = new FrameDecoder(reader);
+    for (ByteBuffer expected : encoded) {
+      ByteBuffer buffer = decoder.readFrameBuffer(stream);
+      assertThat(buffer).isEqualTo(expected);
+      assertThat(buffer.array()).isSameAs(stream.array());
+    }
+    assertThat(decoder.readFrameBuffer(stream)).isNull();
+  }
+
+  @Test
+  public void should_resume_with_header_split_across_chunks() {
+    ByteBuffer encoded = writer.encode(FrameSamples.requests(ProtocolConstants.Version.V4).get(0));
+    FrameDecoder decoder = new FrameDecoder(reader);
+
+    ByteBuffer first = encoded.duplicate();
+    first.limit(5);
+    assertThat(decoder.readFrameBuffer(first)).isNull();
+    assertThat(decoder.bufferedBytes()).isEqualTo(5);
+
+    ByteBuffer second = encoded.duplicate();
+    second.position(5);
+    assertThat(decoder.readFrameBuffer(second)).isEqualTo(encoded);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_reject_oversized_frame_from_header() {
+    ByteBuffer header = ByteBuffer.allocate(FrameCodec.headerEncodedSize());
+    header.put(0, (byte) ProtocolConstants.Version.V4);
+    header.putInt(5, 1024);
+    FrameCodec<ByteBuffer> limitedReader =
+        new FrameCodec<>(
+            ByteBufferPrimitiveCodec.HEAP,
+            Compressor.none(),
+            new FrameCodec.Limits(512, 512, 0),
+            new ProtocolV4ServerCodecs());
+    FrameDecoder decoder = new FrameDecoder(limitedReader);
+    decoder.readFrameBuffer(header);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_reject_negative_frame_length() {
+    ByteBuffer header = ByteBuffer.allocate(FrameCodec.headerEncodedSize());
+    header.putInt(5, -1);
+    FrameDecoder decoder = new FrameDecoder(reader);
+    ByteBuffer first = header.duplicate();
+    first.limit(3);
+    decoder.readFrameBuffer(first);
+    header.position(3);
+    decoder.readFrameBuffer(header);
+  }
+
+  private ByteBuffer encodeAll(List<Frame> frames) {
+    List<ByteBuffer> encoded = new ArrayList<>();
+    for (Frame frame : frames) {
+      encoded.add(writer.encode(frame));
+    }
+    return concat(encoded);
+  }
+
+  private static ByteBuffer concat(List<ByteBuffer> buffers) {
+    int size = 0;
+    for (ByteBuffer buffer : buffers) {
+      size += buffer.remaining();
+    }
+    ByteBuffer stream = ByteBuffer.allocate(size);
+    for (ByteBuffer buffer : buffers) {
+      stream.put(buffer.duplicate());
+    }
+    stream.flip();
+    return stream;
+  }
+}
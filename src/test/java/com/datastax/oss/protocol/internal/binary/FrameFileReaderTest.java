@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FrameFileReaderTest {
+
+  @Rule public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private final FrameCodec<ByteBuffer> writer =
+      FrameCodec.defaultClient(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+  private final FrameCodec<ByteBuffer> reader =
+      FrameCodec.defaultServer(MappedPrimitiveCodec.INSTANCE, Compressor.none());
+
+  @Test
+  public void should_read_all_frames() throws Exception {
+    List<Frame> frames = FrameSamples.requests(ProtocolConstants.Version.V4);
+    File file = write(frames, 0);
+
+    // Use a tiny window to force remapping, and frames larger than the window
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        FrameFileReader frameReader = new FrameFileReader(channel, reader, 32)) {
+      for (Frame expected : frames) {
+        Frame actual = frameReader.readFrame();
+        assertThat(actual).isNotNull();
+        assertThat(actual.streamId).isEqualTo(expected.streamId);
+        assertThat(actual.message).isInstanceOf(expected.message.getClass());
+      }
+      assertThat(frameReader.readFrame()).isNull();
+      assertThat(frameReader.position()).isEqualTo(file.length());
+    }
+  }
+
+  @Test
+  public void should_return_read_only_views() throws Exception {
+    List<Frame> frames = FrameSamples.requests(ProtocolConstants.Version.V4);
+    File file = write(frames, 0);
+
+    try (FrameFileReader frameReader = FrameFileReader.open(file.toPath(), reader)) {
+      ByteBuffer buffer = frameReader.readFrameBuffer();
+      assertThat(buffer.isReadOnly()).isTrue();
+      assertThat(buffer).isEqualTo(writer.encode(frames.get(0)));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_fail_on_truncated_frame() throws Exception {
+    List<Frame> frames = FrameSamples.requests(ProtocolConstants.Version.V4);
+    File file = write(frames.subList(0, 1), 3);
+
+    try (FrameFileReader frameReader = FrameFileReader.open(file.toPath(), reader)) {
+      frameReader.readFrame();
+    }
+  }
+
+  @Test
+  public void should_read_compressed_frames() throws Exception {
+    List<Frame> frames = FrameSamples.requests(ProtocolConstants.Version.V4);
+    for (Compressor<ByteBuffer> compressor :
+        Arrays.<Compressor<ByteBuffer>>asList(new Lz4Compressor(), new SnappyCompressor())) {
+      FrameCodec<ByteBuffer> compressingWriter =
+          FrameCodec.defaultClient(ByteBufferPrimitiveCodec.HEAP, compressor);
+      FrameCodec<ByteBuffer> decompressingReader =
+          FrameCodec.defaultServer(MappedPrimitiveCodec.INSTANCE, compressor);
+      File file = write(frames, compressingWriter, 0);
+
+      try (FrameFileReader frameReader = FrameFileReader.open(file.toPath(), decompressingReader)) {
+        for (Frame expected : frames) {
+          Frame actual = frameReader.readFrame();
+          assertThat(actual).isNotNull();
+          assertThat(actual.streamId).isEqualTo(expected.streamId);
+          assertThat(actual.message).isInstanceOf(expected.message.getClass());
+        }
+        assertThat(frameReader.readFrame()).isNull();
+      }
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void should_not_allow_encoding() {
+    FrameCodec.defaultClient(MappedPrimitiveCodec.INSTANCE, Compressor.none())
+        .encode(FrameSamples.requests(ProtocolConstants.Version.V4).get(0));
+  }
+
+  private File write(List<Frame> frames, int truncate) throws Exception {
+    return write(frames, writer, truncate);
+  }
+
+  private File write(List<Frame> frames, FrameCodec<ByteBuffer> writer, int truncate)
+      throws Exception {
+    File file = tempFolder.newFile();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      for (Frame frame : frames) {
+        ByteBuffer encoded = writer.encode(frame);
+        while (encoded.hasRemaining()) {
+          channel.write(encoded);
+        }
+      }
+      channel.truncate(channel.size() - truncate);
+    }
+    return file;
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.Message;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.request.AuthResponse;
+import com.datastax.oss.protocol.internal.request.Batch;
+import com.datastax.oss.protocol.internal.request.Execute;
+import com.datastax.oss.protocol.internal.request.Options;
+import com.datastax.oss.protocol.internal.request.Prepare;
+import com.datastax.oss.protocol.internal.request.Query;
+import com.datastax.oss.protocol.internal.request.Register;
+import com.datastax.oss.protocol.internal.request.Startup;
+import com.datastax.oss.protocol.internal.request.query.QueryOptions;
+import com.datastax.oss.protocol.internal.response.AuthChallenge;
+import com.datastax.oss.protocol.internal.response.AuthSuccess;
+import com.datastax.oss.protocol.internal.response.Authenticate;
+import com.datastax.oss.protocol.internal.response.Error;
+import com.datastax.oss.protocol.internal.response.Ready;
+import com.datastax.oss.protocol.internal.response.Supported;
+import com.datastax.oss.protocol.internal.response.error.ReadTimeout;
+import com.datastax.oss.protocol.internal.response.event.SchemaChangeEvent;
+import com.datastax.oss.protocol.internal.response.event.StatusChangeEvent;
+import com.datastax.oss.protocol.internal.response.result.ColumnSpec;
+import com.datastax.oss.protocol.internal.response.result.DefaultRows;
+import com.datastax.oss.protocol.internal.response.result.Prepared;
+import com.datastax.oss.protocol.internal.response.result.RawType;
+import com.datastax.oss.protocol.internal.response.result.RowsMetadata;
+import com.datastax.oss.protocol.internal.response.result.SchemaChange;
+import com.datastax.oss.protocol.internal.response.result.SetKeyspace;
+import com.datastax.oss.protocol.internal.response.result.Void;
+import com.datastax.oss.protocol.internal.util.Bytes;
+import com.datastax.oss.protocol.internal.util.collection.NullAllowingImmutableList;
+import com.datastax.oss.protocol.internal.util.collection.NullAllowingImmutableMap;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+
+/** A set of frames covering every message type, for round-trip tests with real binary codecs. */
+public class FrameSamples {
+
+  private static final RawType INT_TYPE = RawType.PRIMITIVES.get(ProtocolConstants.DataType.INT);
+  private static final RawType BLOB_TYPE = RawType.PRIMITIVES.get(ProtocolConstants.DataType.BLOB);
+  private static final byte[] QUERY_ID = Bytes.getArray(Bytes.fromHexString("0xcafebabe"));
+  private static final byte[] RESULT_METADATA_ID = Bytes.getArray(Bytes.fromHexString("0x0123"));
+
+  public static List<Frame> requests(int protocolVersion) {
+    boolean v4OrAbove = protocolVersion >= ProtocolConstants.Version.V4;
+    boolean v5OrAbove = protocolVersion >= ProtocolConstants.Version.V5;
+    Map<String, ByteBuffer> payload =
+        v4OrAbove
+            ? NullAllowingImmutableMap.of("key", Bytes.fromHexString("0x0a0b"))
+            : Frame.NO_PAYLOAD;
+    QueryOptions options =
+        new QueryOptions(
+            ProtocolConstants.ConsistencyLevel.LOCAL_QUORUM,
+            NullAllowingImmutableList.of(
+                Bytes.fromHexString("0x00000001"), null, Bytes.fromHexString("0xcafe")),
+            Collections.emptyMap(),
+            false,
+            5000,
+            Bytes.fromHexString("0xabcdef"),
+            ProtocolConstants.ConsistencyLevel.LOCAL_SERIAL,
+            1234L,
+            null);
+
+    List<Message> messages = new ArrayList<>();
+    messages.add(new Startup("LZ4"));
+    messages.add(Options.INSTANCE);
+    messages.add(new Query("SELECT * FROM system.local WHERE key = 'local'"));
+    messages.add(new Query("SELECT * FROM ks.table WHERE k = ? AND c IN (?, ?)", options));
+    messages.add(new Prepare("INSERT INTO ks.tåble (k, v) VALUES (?, ?)"));
+    messages.add(new Execute(QUERY_ID, v5OrAbove ? RESULT_METADATA_ID : null, options));
+    messages.add(
+        new Batch(
+            ProtocolConstants.BatchType.LOGGED,
+            NullAllowingImmutableList.of("INSERT INTO ks.table (k) VALUES (1)", QUERY_ID),
+            NullAllowingImmutableList.of(
+                Collections.emptyList(),
+                NullAllowingImmutableList.of(Bytes.fromHexString("0x00000002"))),
+            ProtocolConstants.ConsistencyLevel.QUORUM,
+            ProtocolConstants.ConsistencyLevel.SERIAL,
+            Long.MIN_VALUE,
+            null));
+    messages.add(
+        new Register(
+            NullAllowingImmutableList.of(
+                ProtocolConstants.EventType.SCHEMA_CHANGE,
+                ProtocolConstants.EventType.STATUS_CHANGE)));
+    messages.add(new AuthResponse(Bytes.fromHexString("0x00636173736172647261")));
+
+    List<Frame> frames = new ArrayList<>();
+    int streamId = 0;
+    for (Message message : messages) {
+      frames.add(Frame.forRequest(protocolVersion, streamId, false, Frame.NO_PAYLOAD, message));
+      frames.add(Frame.forRequest(protocolVersion, -streamId - 1, true, payload, message));
+      streamId += 1;
+    }
+    return frames;
+  }
+
+  public static List<Frame> responses(int protocolVersion) {
+    boolean v4OrAbove = protocolVersion >= ProtocolConstants.Version.V4;
+    boolean v5OrAbove = protocolVersion >= ProtocolConstants.Version.V5;
+    Map<String, ByteBuffer> payload =
+        v4OrAbove
+            ? NullAllowingImmutableMap.of("key", Bytes.fromHexString("0x0a0b"))
+            : Frame.NO_PAYLOAD;
+    List<String> warnings =
+        v4OrAbove
+            ? NullAllowingImmutableList.of("Batch is too large", "Aggregation query used")
+            : Collections.emptyList();
+
+    RowsMetadata metadata =
+        new RowsMetadata(
+            NullAllowingImmutableList.of(
+                new ColumnSpec("ks", "table", "k", 0, INT_TYPE),
+                new ColumnSpec(
+                    "ks",
+                    "table",
+                    "v",
+                    1,
+                    new RawType.RawMap(
+                        BLOB_TYPE,
+                        new RawType.RawUdt(
+                            "ks",
+                            "address",
+                            NullAllowingImmutableMap.of("street", BLOB_TYPE, "zip", INT_TYPE))))),
+            Bytes.fromHexString("0xabcdef"),
+            new int[] {0},
+            null);
+    Queue<List<ByteBuffer>> data = new ArrayDeque<>();
+    for (int i = 0; i < 10; i++) {
+      data.add(NullAllowingImmutableList.of(Bytes.fromHexString("0x0000000" + i), null));
+    }
+
+    List<Message> messages = new ArrayList<>();
+    messages.add(new Ready());
+    messages.add(new Authenticate("org.apache.cassandra.auth.PasswordAuthenticator"));
+    messages.add(new AuthChallenge(Bytes.fromHexString("0xcafebabe")));
+    messages.add(new AuthSuccess(Bytes.fromHexString("0xcafebabe")));
+    messages.add(
+        new Supported(
+            NullAllowingImmutableMap.of(
+                "COMPRESSION",
+                NullAllowingImmutableList.of("lz4", "snappy"),
+                "CQL_VERSION",
+                NullAllowingImmutableList.of("3.4.4"))));
+    messages.add(new Error(ProtocolConstants.ErrorCode.SERVER_ERROR, "Something went wrong"));
+    messages.add(
+        new ReadTimeout(
+            "Operation timed out", ProtocolConstants.ConsistencyLevel.QUORUM, 1, 2, false));
+    messages.add(Void.INSTANCE);
+    messages.add(new SetKeyspace("ks"));
+    messages.add(
+        new SchemaChange(
+            ProtocolConstants.SchemaChangeType.CREATED,
+            ProtocolConstants.SchemaChangeTarget.TABLE,
+            "ks",
+            "table",
+            null));
+    messages.add(
+        new Prepared(
+            QUERY_ID,
+            v5OrAbove ? RESULT_METADATA_ID : null,
+            new RowsMetadata(
+                NullAllowingImmutableList.of(new ColumnSpec("ks", "table", "k", 0, INT_TYPE)),
+                null,
+                v4OrAbove ? new int[] {0} : null,
+                null),
+            new RowsMetadata(2, null, null, null)));
+    messages.add(new DefaultRows(metadata, data));
+    messages.add(
+        new SchemaChangeEvent(
+            ProtocolConstants.SchemaChangeType.CREATED,
+            ProtocolConstants.SchemaChangeTarget.TABLE,
+            "ks",
+            "table",
+            null));
+    messages.add(
+        new StatusChangeEvent(
+            ProtocolConstants.StatusChangeType.UP, new InetSocketAddress("127.0.0.1", 9042)));
+
+    List<Frame> frames = new ArrayList<>();
+    int streamId = 0;
+    for (Message message : messages) {
+      int eventStreamId = message.opcode == ProtocolConstants.Opcode.EVENT ? -1 : streamId;
+      frames.add(
+          Frame.forResponse(
+              protocolVersion,
+              eventStreamId,
+              null,
+              Frame.NO_PAYLOAD,
+              Collections.emptyList(),
+              message));
+      frames.add(
+          Frame.forResponse(
+              protocolVersion, eventStreamId, UUID.randomUUID(), payload, warnings, message));
+      streamId += 1;
+    }
+    return frames;
+  }
+}
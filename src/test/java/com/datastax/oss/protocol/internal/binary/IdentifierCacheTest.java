@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.response.result.ColumnSpec;
+import com.datastax.oss.protocol.internal.response.result.RawType;
+import com.datastax.oss.protocol.internal.response.result.RowsMetadata;
+import com.datastax.oss.protocol.internal.util.collection.NullAllowingImmutableList;
+import com.datastax.oss.protocol.internal.util.collection.NullAllowingImmutableMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class IdentifierCacheTest {
+
+  @Test
+  public void should_return_canonical_instance() {
+    IdentifierCache cache = new IdentifierCache(16);
+    ByteBuffer buffer1 = ByteBufferPrimitiveCodec.HEAP.allocate(16);
+    ByteBufferPrimitiveCodec.HEAP.writeInt(0, buffer1);
+    ByteBufferPrimitiveCodec.HEAP.writeString("keyspace", buffer1);
+    ByteBuffer buffer2 = ByteBufferPrimitiveCodec.DIRECT.allocate(16);
+    ByteBufferPrimitiveCodec.DIRECT.writeString("keyspace", buffer2);
+
+    String s1 = cache.get(buffer1, 6, 8);
+    String s2 = cache.get(buffer2, 2, 8);
+
+    assertThat(s1).isEqualTo("keyspace");
+    assertThat(s2).isSameAs(s1);
+    assertThat(cache.hits()).isEqualTo(1);
+    assertThat(cache.misses()).isEqualTo(1);
+    assertThat(buffer1.position()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_replace_colliding_entries() {
+    IdentifierCache cache = new IdentifierCache(1);
+    ByteBuffer a = ByteBuffer.wrap("a".getBytes(StandardCharsets.UTF_8));
+    ByteBuffer b = ByteBuffer.wrap("b".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(cache.get(a, 0, 1)).isEqualTo("a");
+    assertThat(cache.get(b, 0, 1)).isEqualTo("b");
+    assertThat(cache.get(a, 0, 1)).isEqualTo("a");
+    assertThat(cache.hits()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_not_cache_long_identifiers() {
+    IdentifierCache cache = new IdentifierCache(16);
+    byte[] bytes = new byte[IdentifierCache.MAX_CACHED_LENGTH + 1];
+    Arrays.fill(bytes, (byte) 'a');
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+    String s1 = cache.get(buffer, 0, bytes.length);
+    String s2 = cache.get(buffer, 0, bytes.length);
+
+    assertThat(s2).isEqualTo(s1).isNotSameAs(s1);
+    assertThat(cache.hits()).isEqualTo(0);
+  }
+
+  @Test
+  public void should_share_identifiers_across_decoded_metadata() {
+    ByteBufferPrimitiveCodec codec =
+        new ByteBufferPrimitiveCodec(false, false, new IdentifierCache(64));
+    RawType intType = RawType.PRIMITIVES.get(ProtocolConstants.DataType.INT);
+    RowsMetadata metadata =
+        new RowsMetadata(
+            NullAllowingImmutableList.of(
+                new ColumnSpec("ks1", "table", "k", 0, intType),
+                new ColumnSpec(
+                    "ks2",
+                    "table",
+                    "v",
+                    1,
+                    new RawType.RawUdt(
+                        "ks2", "address", NullAllowingImmutableMap.of("zip", intType)))),
+            null,
+            null,
+            null);
+    int size = metadata.encodedSize(false, ProtocolConstants.Version.V4);
+    ByteBuffer encoded = codec.allocate(size);
+    metadata.encode(encoded, codec, false, ProtocolConstants.Version.V4);
+
+    RowsMetadata decoded1 =
+        RowsMetadata.decode(encoded.duplicate(), codec, false, ProtocolConstants.Version.V4);
+    RowsMetadata decoded2 =
+        RowsMetadata.decode(encoded.duplicate(), codec, false, ProtocolConstants.Version.V4);
+
+    for (int i = 0; i < 2; i++) {
+      ColumnSpec spec1 = decoded1.columnSpecs.get(i);
+      ColumnSpec spec2 = decoded2.columnSpecs.get(i);
+      assertThat(spec2).isEqualTo(spec1);
+      assertThat(spec2.ksName).isSameAs(spec1.ksName);
+      assertThat(spec2.tableName).isSameAs(spec1.tableName);
+      assertThat(spec2.name).isSameAs(spec1.name);
+    }
+    assertThat(decoded1.columnSpecs.get(1).tableName)
+        .isSameAs(decoded1.columnSpecs.get(0).tableName);
+    RawType.RawUdt udt1 = (RawType.RawUdt) decoded1.columnSpecs.get(1).type;
+    RawType.RawUdt udt2 = (RawType.RawUdt) decoded2.columnSpecs.get(1).type;
+    assertThat(udt1.keyspace).isSameAs(decoded1.columnSpecs.get(1).ksName);
+    assertThat(udt2.typeName).isSameAs(udt1.typeName);
+  }
+}
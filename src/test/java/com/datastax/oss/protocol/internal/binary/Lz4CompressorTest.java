@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.TestDataProviders;
+import com.tngtech.java.junit.dataprovider.DataProvider;
+import com.tngtech.java.junit.dataprovider.DataProviderRunner;
+import com.tngtech.java.junit.dataprovider.UseDataProvider;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(DataProviderRunner.class)
+public class Lz4CompressorTest {
+
+  @DataProvider
+  public static Object[][] codecs() {
+    return TestDataProviders.fromList(
+        ByteBufferPrimitiveCodec.HEAP, ByteBufferPrimitiveCodec.DIRECT);
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_round_trip_payloads(ByteBufferPrimitiveCodec codec) {
+    Lz4Compressor compressor = new Lz4Compressor(codec);
+    for (ByteBuffer payload : payloads(codec)) {
+      int length = payload.remaining();
+
+      ByteBuffer compressed = compressor.compress(payload.duplicate());
+      assertThat(compressed.remaining())
+          .isLessThanOrEqualTo(compressor.maxCompressedLength(length));
+      assertThat(compressor.decompressedLength(compressed)).isEqualTo(length);
+
+      ByteBuffer decompressed = compressor.decompress(compressed);
+      assertThat(decompressed).isEqualTo(payload);
+      assertThat(compressed.hasRemaining()).isFalse();
+    }
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_compress_into_existing_buffer(ByteBufferPrimitiveCodec codec) {
+    Lz4Compressor compressor = new Lz4Compressor(codec);
+    ByteBuffer payload = rowsShapedPayload(codec);
+    ByteBuffer dest = codec.allocate(3 + compressor.maxCompressedLength(payload.remaining()));
+    codec.writeByte((byte) 1, dest);
+    codec.writeUnsignedShort(2, dest);
+
+    compressor.compressInto(payload.duplicate(), dest);
+
+    assertThat(codec.readByte(dest)).isEqualTo((byte) 1);
+    assertThat(codec.readUnsignedShort(dest)).isEqualTo(2);
+    assertThat(compressor.decompress(dest)).isEqualTo(payload);
+  }
+
+  @Test
+  public void should_compress_repetitive_data() {
+    Lz4Compressor compressor = new Lz4Compressor();
+    ByteBuffer payload = rowsShapedPayload(ByteBufferPrimitiveCodec.HEAP);
+    int length = payload.remaining();
+
+    ByteBuffer compressed = compressor.compress(payload);
+
+    assertThat(compressed.remaining()).isLessThan(length / 4);
+  }
+
+  @Test
+  public void should_read_output_of_heap_and_direct_paths() {
+    ByteBuffer heap = rowsShapedPayload(ByteBufferPrimitiveCodec.HEAP);
+    ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining());
+    direct.put(heap.duplicate()).flip();
+
+    ByteBuffer fromHeap = new Lz4Compressor().compress(heap);
+    ByteBuffer fromDirect = new Lz4Compressor(ByteBufferPrimitiveCodec.DIRECT).compress(direct);
+
+    // The hash function reads bytes in a different order, so the output can differ. But both must
+    // be readable by both paths.
+    assertThat(new Lz4Compressor(ByteBufferPrimitiveCodec.DIRECT).decompress(fromHeap))
+        .isEqualTo(new Lz4Compressor().decompress(fromDirect));
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_decompress_reference_block(ByteBufferPrimitiveCodec codec) {
+    // "abc", then a match at offset 3 of 20 bytes (15 + 1 in an extra byte), then 5 last literals
+    byte[] block = {
+      0x3F, 'a', 'b', 'c', 0x03, 0x00, 0x01, 0x50, 'v', 'w', 'x', 'y', 'z',
+    };
+    ByteBuffer compressed = codec.allocate(block.length);
+    compressed.limit(block.length);
+    compressed.put(block).flip();
+
+    ByteBuffer decompressed = new Lz4Compressor(codec).decompressWithoutLength(compressed, 28);
+
+    assertThat(decompressed)
+        .isEqualTo(
+            ByteBuffer.wrap("abcabcabcabcabcabcabcabvwxyz".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  @UseDataProvider("codecs")
+  public void should_reject_offset_before_start_of_output(ByteBufferPrimitiveCodec codec) {
+    byte[] block = {0x10, 'a', 0x02, 0x00, 0x50, 'v', 'w', 'x', 'y', 'z'};
+    ByteBuffer compressed = codec.allocate(block.length);
+    compressed.limit(block.length);
+    compressed.put(block).flip();
+    new Lz4Compressor(codec).decompressWithoutLength(compressed, 10);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_reject_wrong_uncompressed_length() {
+    Lz4Compressor compressor = new Lz4Compressor();
+    ByteBuffer compressed = compressor.compressWithoutLength(rowsShapedPayload(codec()));
+    compressor.decompressWithoutLength(compressed, 10);
+  }
+
+  @Test
+  @UseDataProvider(location = TestDataProviders.class, value = "protocolV3OrAbove")
+  public void should_round_trip_frames(int protocolVersion) {
+    ByteBufferPrimitiveCodec codec = ByteBufferPrimitiveCodec.HEAP;
+    Lz4Compressor compressor = new Lz4Compressor(codec);
+    FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, compressor);
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, compressor);
+    FrameCodec<ByteBuffer> reference = FrameCodec.defaultServer(codec, Compressor.none());
+
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      Frame decoded = client.decode(server.encode(frame));
+      assertThat(decoded.streamId).isEqualTo(frame.streamId);
+      assertThat(reference.encode(decoded)).isEqualTo(reference.encode(frame));
+    }
+  }
+
+  @Test
+  public void should_round_trip_segments() {
+    SegmentCodec codec = new SegmentCodec(codec(), new Lz4Compressor());
+    ByteBuffer payload = rowsShapedPayload(codec());
+
+    ByteBuffer encoded = codec.encode(new Segment(payload.duplicate(), true));
+    assertThat(encoded.remaining()).isLessThan(payload.remaining());
+
+    assertThat(codec.decode(encoded).payload).isEqualTo(payload);
+  }
+
+  private static ByteBufferPrimitiveCodec codec() {
+    return ByteBufferPrimitiveCodec.HEAP;
+  }
+
+  private static List<ByteBuffer> payloads(ByteBufferPrimitiveCodec codec) {
+    Random random = new Random(0);
+    List<ByteBuffer> payloads = new ArrayList<>();
+    for (int length : new int[] {0, 1, 12, 13, 17, 100, 70_000}) {
+      byte[] randomBytes = new byte[length];
+      random.nextBytes(randomBytes);
+      payloads.add(wrap(randomBytes, codec));
+      payloads.add(wrap(new byte[length], codec));
+    }
+    // Long runs and matches, to exercise the extra length bytes
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      text.append("row ").append(i % 37).append(i % 3 == 0 ? " some text value" : " other");
+    }
+    payloads.add(wrap(text.toString().getBytes(StandardCharsets.UTF_8), codec));
+    payloads.add(rowsShapedPayload(codec));
+    return payloads;
+  }
+
+  /** The bodies of the sample responses (which include ROWS results), repeated a few times. */
+  private static ByteBuffer rowsShapedPayload(ByteBufferPrimitiveCodec codec) {
+    FrameCodec<ByteBuffer> server =
+        FrameCodec.defaultServer(ByteBufferPrimitiveCodec.HEAP, Compressor.none());
+    List<ByteBuffer> bodies = new ArrayList<>();
+    int length = 0;
+    for (int i = 0; i < 20; i++) {
+      for (Frame frame : FrameSamples.responses(ProtocolConstants.Version.V4)) {
+        ByteBuffer encoded = server.encode(frame);
+        encoded.position(FrameCodec.headerEncodedSize());
+        bodies.add(encoded);
+        length += encoded.remaining();
+      }
+    }
+    ByteBuffer payload = codec.allocate(length);
+    for (ByteBuffer body : bodies) {
+      codec.writeRaw(body, payload);
+    }
+    return payload;
+  }
+
+  private static ByteBuffer wrap(byte[] bytes, ByteBufferPrimitiveCodec codec) {
+    ByteBuffer buffer = codec.allocate(bytes.length);
+    buffer.limit(bytes.length);
+    buffer.put(bytes).flip();
+    return buffer;
+  }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.FrameHeader;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.ProtocolV5ServerCodecs;
+import com.datastax.oss.protocol.internal.request.Query;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class SegmentCodecTest {
+
+  private static final ByteBufferPrimitiveCodec CODEC = ByteBufferPrimitiveCodec.HEAP;
+
+  @Test
+  public void should_round_trip_uncompressed_segments() {
+    SegmentCodec codec = new SegmentCodec(CODEC, Compressor.none());
+    assertThat(codec.headerLength()).isEqualTo(6);
+    for (boolean selfContained : new boolean[] {true, false}) {
+      ByteBuffer payload = randomBytes(SegmentCodec.MAX_PAYLOAD_LENGTH);
+
+      ByteBuffer encoded = codec.encode(new Segment(payload, selfContained));
+      assertThat(encoded.remaining())
+          .isEqualTo(6 + SegmentCodec.MAX_PAYLOAD_LENGTH + SegmentCodec.CRC32_LENGTH);
+
+      Segment decoded = codec.decode(encoded);
+      assertThat(decoded.isSelfContained).isEqualTo(selfContained);
+      assertThat(decoded.payload).isEqualTo(payload);
+      assertThat(encoded.hasRemaining()).isFalse();
+    }
+  }
+
+  @Test
+  public void should_round_trip_compressed_segments() {
+    SegmentCodec codec = new SegmentCodec(CODEC, new RunLengthCompressor());
+    assertThat(codec.headerLength()).isEqualTo(8);
+
+    ByteBuffer compressible = ByteBuffer.allocate(10_000);
+    ByteBuffer encoded = codec.encode(new Segment(compressible.duplicate(), true));
+    assertThat(encoded.remaining()).isLessThan(1000);
+    SegmentCodec.Header header = codec.decodeHeader(encoded.duplicate());
+    assertThat(header.uncompressedLength).isEqualTo(10_000);
+    assertThat(header.isSelfContained).isTrue();
+    assertThat(codec.decode(encoded).payload).isEqualTo(compressible);
+
+    // Compression would make this one bigger, so it gets sent as-is
+    ByteBuffer incompressible = randomBytes(1000);
+    encoded = codec.encode(new Segment(incompressible.duplicate(), false));
+    header = codec.decodeHeader(encoded.duplicate());
+    assertThat(header.uncompressedLength).isEqualTo(0);
+    assertThat(header.payloadLength).isEqualTo(1000);
+    Segment decoded = codec.decode(encoded);
+    assertThat(decoded.payload).isEqualTo(incompressible);
+    assertThat(decoded.isSelfContained).isFalse();
+  }
+
+  @Test(expected = CrcMismatchException.class)
+  public void should_detect_corrupted_header() {
+    SegmentCodec codec = new SegmentCodec(CODEC, Compressor.none());
+    ByteBuffer encoded = codec.encode(new Segment(randomBytes(100), true));
+    encoded.put(1, (byte) (encoded.get(1) ^ 0x01));
+    codec.decode(encoded);
+  }
+
+  @Test(expected = CrcMismatchException.class)
+  public void should_detect_corrupted_payload() {
+    SegmentCodec codec = new SegmentCodec(CODEC, Compressor.none());
+    ByteBuffer encoded = codec.encode(new Segment(randomBytes(100), true));
+    encoded.put(50, (byte) (encoded.get(50) ^ 0x10));
+    codec.decode(encoded);
+  }
+
+  @Test
+  public void should_not_consume_incomplete_segment() {
+    SegmentCodec codec = new SegmentCodec(CODEC, Compressor.none());
+    ByteBuffer encoded = codec.encode(new Segment(randomBytes(100), true));
+    for (int length : new int[] {3, 6, 100}) {
+      ByteBuffer partial = encoded.duplicate();
+      partial.limit(length);
+      assertThat(codec.decode(partial)).isNull();
+      assertThat(partial.position()).isEqualTo(0);
+    }
+  }
+
+  @Test
+  public void should_pack_frames_into_segments() {
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(CODEC, Compressor.none());
+    FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(CODEC, Compressor.none());
+    SegmentCodec segmentCodec = new SegmentCodec(CODEC, Compressor.none());
+    List<Frame> frames = FrameSamples.requests(ProtocolConstants.Version.V5);
+
+    SegmentBuilder builder = new SegmentBuilder(CODEC, 200);
+    List<Segment> segments = new ArrayList<>();
+    for (Frame frame : frames) {
+      builder.addFrame(client.encode(frame), segments);
+    }
+    builder.flush(segments);
+    assertThat(segments.size()).isGreaterThan(1).isLessThan(frames.size());
+
+    List<Frame> decoded = new ArrayList<>();
+    for (Segment segment : segments) {
+      assertThat(segment.isSelfContained).isTrue();
+      assertThat(segment.payload.remaining()).isLessThanOrEqualTo(200);
+      Segment received = segmentCodec.decode(segmentCodec.encode(segment));
+      FrameDecoder frameDecoder = new FrameDecoder(server);
+      Frame frame;
+      while ((frame = frameDecoder.readFrame(received.payload)) != null) {
+        decoded.add(frame);
+      }
+      assertThat(frameDecoder.bufferedBytes()).isEqualTo(0);
+    }
+    assertThat(decoded).hasSize(frames.size());
+    for (int i = 0; i < frames.size(); i++) {
+      assertThat(decoded.get(i).streamId).isEqualTo(frames.get(i).streamId);
+      assertThat(decoded.get(i).message).isInstanceOf(frames.get(i).message.getClass());
+    }
+  }
+
+  @Test
+  public void should_split_and_reassemble_large_frames() {
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(CODEC, Compressor.none());
+    FrameCodec<CompositeByteBuffer> server =
+        FrameCodec.defaultServer(new CompositePrimitiveCodec(CODEC), Compressor.none());
+    SegmentCodec segmentCodec = new SegmentCodec(CODEC, Compressor.none());
+    List<Frame> frames = largeAndSmallFrames();
+
+    List<Segment> segments = new ArrayList<>();
+    SegmentBuilder builder = new SegmentBuilder(CODEC, 200);
+    for (Frame frame : frames) {
+      builder.addFrame(client.encode(frame), segments);
+    }
+    builder.flush(segments);
+    assertThat(segments).extracting("isSelfContained").contains(true, false);
+
+    SegmentReassembler reassembler =
+        new SegmentReassembler(FrameCodec.defaultServer(CODEC, Compressor.none()));
+    List<CompositeByteBuffer> reassembled = new ArrayList<>();
+    for (Segment segment : segments) {
+      assertThat(segment.payload.remaining()).isLessThanOrEqualTo(200);
+      reassembler.addSegment(segmentCodec.decode(segmentCodec.encode(segment)), reassembled);
+    }
+    assertThat(reassembler.isReassembling()).isFalse();
+
+    assertThat(reassembled).hasSize(frames.size());
+    for (int i = 0; i < frames.size(); i++) {
+      Frame decoded = server.decode(reassembled.get(i));
+      assertThat(decoded.streamId).isEqualTo(frames.get(i).streamId);
+      assertThat(((Query) decoded.message).query).isEqualTo(((Query) frames.get(i).message).query);
+    }
+  }
+
+  @Test
+  public void should_stream_large_frame_body_to_listener() {
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(CODEC, Compressor.none());
+    List<Frame> frames = largeAndSmallFrames();
+    ByteBuffer large = client.encode(frames.get(1));
+
+    List<Segment> segments = new ArrayList<>();
+    SegmentBuilder builder = new SegmentBuilder(CODEC, 200);
+    builder.addFrame(large.duplicate(), segments);
+    builder.addFrame(client.encode(frames.get(0)), segments);
+    builder.flush(segments);
+
+    List<FrameHeader> headers = new ArrayList<>();
+    ByteBuffer body = ByteBuffer.allocate(large.remaining());
+    int[] ends = new int[1];
+    SegmentReassembler reassembler =
+        new SegmentReassembler(
+            client,
+            new SegmentReassembler.LargeFrameListener() {
+              @Override
+              public boolean onLargeFrame(FrameHeader header) {
+                headers.add(header);
+                return true;
+              }
+
+              @Override
+              public void onBodyChunk(ByteBuffer chunk) {
+                body.put(chunk);
+              }
+
+              @Override
+              public void onBodyEnd() {
+                ends[0] += 1;
+              }
+            });
+    List<CompositeByteBuffer> out = new ArrayList<>();
+    for (Segment segment : segments) {
+      reassembler.addSegment(segment, out);
+    }
+
+    // Only the small frame goes to the output
+    assertThat(out).hasSize(1);
+    assertThat(headers).hasSize(1);
+    assertThat(headers.get(0).streamId).isEqualTo(frames.get(1).streamId);
+    assertThat(ends[0]).isEqualTo(1);
+    body.flip();
+    large.position(FrameCodec.headerEncodedSize());
+    assertThat(body).isEqualTo(large);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_reject_oversized_large_frame_from_first_segment() {
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(CODEC, Compressor.none());
+    List<Segment> segments = new ArrayList<>();
+    new SegmentBuilder(CODEC, 200).addFrame(client.encode(largeAndSmallFrames().get(1)), segments);
+
+    FrameCodec<ByteBuffer> server =
+        new FrameCodec<>(
+            CODEC,
+            Compressor.none(),
+            new FrameCodec.Limits(1024, 1024, 0),
+            new ProtocolV5ServerCodecs());
+    new SegmentReassembler(server).addSegment(segments.get(0), new ArrayList<>());
+  }
+
+  @Test
+  public void should_encode_segments_concurrently() throws Exception {
+    SegmentCodec codec = new SegmentCodec(CODEC, new RunLengthCompressor());
+    List<Segment> segments = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      ByteBuffer payload = ByteBuffer.allocate(10_000);
+      while (payload.hasRemaining()) {
+        payload.put((byte) (payload.position() / (i + 10)));
+      }
+      payload.flip();
+      segments.add(new Segment(payload, i % 2 == 0));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<ByteBuffer> encoded = codec.encodeAsync(segments, executor).get(10, TimeUnit.SECONDS);
+
+      assertThat(encoded).hasSize(segments.size());
+      for (int i = 0; i < segments.size(); i++) {
+        Segment segment = segments.get(i);
+        assertThat(encoded.get(i)).isEqualTo(codec.encode(segment));
+        Segment decoded = codec.decode(encoded.get(i));
+        assertThat(decoded.payload).isEqualTo(segment.payload);
+        assertThat(decoded.isSelfContained).isEqualTo(segment.isSelfContained);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static List<Frame> largeAndSmallFrames() {
+    char[] chars = new char[2000];
+    Arrays.fill(chars, 'a');
+    String longQuery = "SELECT * FROM t WHERE k = '" + new String(chars) + "'";
+    return Arrays.asList(
+        Frame.forRequest(
+            ProtocolConstants.Version.V5, 1, false, Frame.NO_PAYLOAD, new Query("SELECT 1")),
+        Frame.forRequest(
+            ProtocolConstants.Version.V5, 2, false, Frame.NO_PAYLOAD, new Query(longQuery)),
+        Frame.forRequest(
+            ProtocolConstants.Version.V5, 3, false, Frame.NO_PAYLOAD, new Query("SELECT 3")));
+  }
+
+  private static ByteBuffer randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  /** A naive run-length encoding, that compresses runs of identical bytes. */
+  private static class RunLengthCompressor implements Compressor<ByteBuffer> {
+
+    @Override
+    public String algorithm() {
+      return "rle";
+    }
+
+    @Override
+    public ByteBuffer compress(ByteBuffer uncompressed) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ByteBuffer decompress(ByteBuffer compressed) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ByteBuffer compressWithoutLength(ByteBuffer uncompressed) {
+      ByteBuffer compressed = ByteBuffer.allocate(uncompressed.remaining() * 2);
+      while (uncompressed.hasRemaining()) {
+        byte b = uncompressed.get();
+        int run = 1;
+        while (run < 255
+            && uncompressed.hasRemaining()
+            && uncompressed.get(uncompressed.position()) == b) {
+          uncompressed.get();
+          run += 1;
+        }
+        compressed.put((byte) run).put(b);
+      }
+      compressed.flip();
+      return compressed;
+    }
+
+    @Override
+    public ByteBuffer decompressWithoutLength(ByteBuffer compressed, int uncompressedLength) {
+      byte[] bytes = new byte[uncompressedLength];
+      int i = 0;
+      while (compressed.hasRemaining()) {
+        int run = compressed.get() & 0xFF;
+        Arrays.fill(bytes, i, i + run, compressed.get());
+        i += run;
+      }
+      return ByteBuffer.wrap(bytes);
+    }
+  }
+}
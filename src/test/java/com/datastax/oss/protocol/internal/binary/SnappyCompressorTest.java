@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.binary;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import com.datastax.oss.protocol.internal.Compressor;
+import com.datastax.oss.protocol.internal.Frame;
+import com.datastax.oss.protocol.internal.FrameCodec;
+import com.datastax.oss.protocol.internal.ProtocolConstants;
+import com.datastax.oss.protocol.internal.TestDataProviders;
+import com.tngtech.java.junit.dataprovider.DataProvider;
+import com.tngtech.java.junit.dataprovider.DataProviderRunner;
+import com.tngtech.java.junit.dataprovider.UseDataProvider;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(DataProviderRunner.class)
+public class SnappyCompressorTest {
+
+  @DataProvider
+  public static Object[][] codecs() {
+    return TestDataProviders.fromList(
+        ByteBufferPrimitiveCodec.HEAP, ByteBufferPrimitiveCodec.DIRECT);
+  }
+
+  @DataProvider
+  public static Object[][] snappyVersions() {
+    return TestDataProviders.fromList(ProtocolConstants.Version.V3, ProtocolConstants.Version.V4);
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_round_trip_payloads(ByteBufferPrimitiveCodec codec) {
+    SnappyCompressor compressor = new SnappyCompressor(codec);
+    for (ByteBuffer payload : payloads(codec)) {
+      int length = payload.remaining();
+
+      ByteBuffer compressed = compressor.compress(payload.duplicate());
+      assertThat(compressed.remaining())
+          .isLessThanOrEqualTo(compressor.maxCompressedLength(length));
+      assertThat(compressor.decompressedLength(compressed)).isEqualTo(length);
+
+      ByteBuffer decompressed = compressor.decompress(compressed);
+      assertThat(decompressed).isEqualTo(payload);
+      assertThat(decompressed.capacity()).isEqualTo(length);
+      assertThat(compressed.hasRemaining()).isFalse();
+    }
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_compress_into_existing_buffer(ByteBufferPrimitiveCodec codec) {
+    SnappyCompressor compressor = new SnappyCompressor(codec);
+    ByteBuffer payload = textPayload(codec);
+    ByteBuffer dest = codec.allocate(3 + compressor.maxCompressedLength(payload.remaining()));
+    codec.writeByte((byte) 1, dest);
+    codec.writeUnsignedShort(2, dest);
+
+    compressor.compressInto(payload.duplicate(), dest);
+
+    assertThat(codec.readByte(dest)).isEqualTo((byte) 1);
+    assertThat(codec.readUnsignedShort(dest)).isEqualTo(2);
+    assertThat(dest.remaining()).isLessThan(payload.remaining() / 4);
+    assertThat(compressor.decompress(dest)).isEqualTo(payload);
+  }
+
+  @Test
+  public void should_copy_between_array_offsets_and_direct_buffers() {
+    SnappyCompressor compressor = new SnappyCompressor();
+    ByteBuffer payload = textPayload(ByteBufferPrimitiveCodec.HEAP);
+    // A heap slice with a non-zero array offset
+    ByteBuffer source = ByteBuffer.allocate(payload.remaining() + 5);
+    source.position(5);
+    source = source.slice();
+    source.put(payload.duplicate()).flip();
+    assertThat(source.arrayOffset()).isEqualTo(5);
+
+    ByteBuffer direct =
+        ByteBufferPrimitiveCodec.DIRECT.allocate(
+            compressor.maxCompressedLength(source.remaining()));
+    compressor.compressInto(source.duplicate(), direct);
+    ByteBuffer heap = ByteBufferPrimitiveCodec.HEAP.allocate(direct.capacity());
+    compressor.compressInto(source.duplicate(), heap);
+    assertThat(direct).isEqualTo(heap);
+
+    ByteBuffer fromDirect = ByteBufferPrimitiveCodec.DIRECT.allocate(payload.remaining());
+    compressor.decompressInto(heap.duplicate(), fromDirect);
+    ByteBuffer fromHeap = ByteBufferPrimitiveCodec.HEAP.allocate(payload.remaining());
+    compressor.decompressInto(direct, fromHeap);
+    assertThat(fromDirect).isEqualTo(payload);
+    assertThat(fromHeap).isEqualTo(payload);
+  }
+
+  @Test
+  @UseDataProvider("codecs")
+  public void should_decompress_reference_stream(ByteBufferPrimitiveCodec codec) {
+    byte[] stream = {
+      0x20, // varint: 32 bytes
+      0x08, 'a', 'b', 'c', // 3 literals
+      0x4E, 0x03, 0x00, // copy of 20 bytes at offset 3 (2-byte offset)
+      0x10, 'v', 'w', 'x', 'y', 'z', // 5 literals
+      0x01, 0x05, // copy of 4 bytes at offset 5 (1-byte offset)
+    };
+    ByteBuffer compressed = codec.allocate(stream.length);
+    compressed.limit(stream.length);
+    compressed.put(stream).flip();
+
+    ByteBuffer decompressed = new SnappyCompressor(codec).decompress(compressed);
+
+    assertThat(decompressed)
+        .isEqualTo(
+            ByteBuffer.wrap("abcabcabcabcabcabcabcabvwxyzvwxy".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  @UseDataProvider("codecs")
+  public void should_reject_offset_before_start_of_output(ByteBufferPrimitiveCodec codec) {
+    byte[] stream = {0x05, 0x00, 'a', 0x01, 0x02};
+    ByteBuffer compressed = codec.allocate(stream.length);
+    compressed.limit(stream.length);
+    compressed.put(stream).flip();
+    new SnappyCompressor(codec).decompress(compressed);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_reject_truncated_input() {
+    SnappyCompressor compressor = new SnappyCompressor();
+    ByteBuffer compressed = compressor.compress(textPayload(ByteBufferPrimitiveCodec.HEAP));
+    compressed.limit(compressed.limit() - 1);
+    compressor.decompress(compressed);
+  }
+
+  @Test
+  public void should_compress_large_input_in_parallel() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      SnappyCompressor parallel = new SnappyCompressor(ByteBufferPrimitiveCodec.HEAP, pool, 0);
+      SnappyCompressor sequential = new SnappyCompressor();
+      // Text with random parts, so that chunks don't all compress the same way
+      Random random = new Random(0);
+      StringBuilder text = new StringBuilder();
+      while (text.length() < 1_000_000) {
+        text.append("row ").append(random.nextInt(1000)).append(" some text value; ");
+      }
+      ByteBuffer payload =
+          wrap(text.toString().getBytes(StandardCharsets.UTF_8), ByteBufferPrimitiveCodec.HEAP);
+
+      ByteBuffer compressed = parallel.compress(payload.duplicate());
+
+      assertThat(compressed.remaining()).isLessThan(payload.remaining() / 2);
+      assertThat(sequential.decompress(compressed)).isEqualTo(payload);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void should_allocate_parallel_chunks_with_allocator() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      ByteBufferPool bufferPool = new ByteBufferPool(false);
+      PoolingPrimitiveCodec codec =
+          new PoolingPrimitiveCodec(ByteBufferPrimitiveCodec.HEAP, bufferPool);
+      SnappyCompressor parallel = new SnappyCompressor(codec, pool, 0);
+      ByteBuffer payload = wrap(new byte[1_000_000], ByteBufferPrimitiveCodec.HEAP);
+
+      ByteBuffer compressed = parallel.compress(payload.duplicate());
+      assertThat(new SnappyCompressor().decompress(compressed.duplicate())).isEqualTo(payload);
+      codec.release(compressed);
+
+      // The result, plus one buffer per chunk except the first one
+      assertThat(bufferPool.hits() + bufferPool.misses()).isEqualTo(1_000_000 / (64 * 1024) + 1);
+      assertThat(bufferPool.outstanding()).isEqualTo(0);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void should_release_chunks_if_parallel_compression_fails() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      AtomicInteger allocations = new AtomicInteger();
+      AtomicInteger outstanding = new AtomicInteger();
+      ByteBufferPrimitiveCodec codec =
+          new ByteBufferPrimitiveCodec(false) {
+            @Override
+            public ByteBuffer allocate(int size) {
+              if (allocations.incrementAndGet() == 5) {
+                throw new IllegalStateException("simulated allocation failure");
+              }
+              outstanding.incrementAndGet();
+              return super.allocate(size);
+            }
+
+            @Override
+            public void release(ByteBuffer toRelease) {
+              outstanding.decrementAndGet();
+            }
+          };
+      SnappyCompressor parallel = new SnappyCompressor(codec, pool, 0);
+      ByteBuffer payload = wrap(new byte[1_000_000], ByteBufferPrimitiveCodec.HEAP);
+      ByteBuffer dest = ByteBufferPrimitiveCodec.HEAP.allocate(1_200_000);
+
+      try {
+        parallel.compressInto(payload, dest);
+        fail("Expected an IllegalStateException");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+      assertThat(allocations.get()).isGreaterThan(5);
+      assertThat(outstanding.get()).isEqualTo(0);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void should_encode_frame_off_calling_thread() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      ByteBufferPrimitiveCodec codec = ByteBufferPrimitiveCodec.HEAP;
+      SnappyCompressor compressor = new SnappyCompressor(codec);
+      FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, compressor);
+      FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, compressor);
+
+      for (Frame frame : FrameSamples.responses(ProtocolConstants.Version.V4)) {
+        ByteBuffer encoded = server.encodeAsync(frame, executor).get(10, TimeUnit.SECONDS);
+        assertThat(encoded).isEqualTo(server.encode(frame));
+        assertThat(client.decode(encoded).streamId).isEqualTo(frame.streamId);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  @UseDataProvider("snappyVersions")
+  public void should_round_trip_frames(int protocolVersion) {
+    ByteBufferPrimitiveCodec codec = ByteBufferPrimitiveCodec.HEAP;
+    SnappyCompressor compressor = new SnappyCompressor(codec);
+    FrameCodec<ByteBuffer> reference = FrameCodec.defaultServer(codec, Compressor.none());
+    FrameCodec<ByteBuffer> server = FrameCodec.defaultServer(codec, compressor);
+    FrameCodec<ByteBuffer> client = FrameCodec.defaultClient(codec, compressor);
+
+    for (Frame frame : FrameSamples.responses(protocolVersion)) {
+      Frame decoded = client.decode(server.encode(frame));
+      assertThat(decoded.streamId).isEqualTo(frame.streamId);
+      assertThat(reference.encode(decoded)).isEqualTo(reference.encode(frame));
+    }
+  }
+
+  private static List<ByteBuffer> payloads(ByteBufferPrimitiveCodec codec) {
+    Random random = new Random(0);
+    List<ByteBuffer> payloads = new ArrayList<>();
+    for (int length : new int[] {0, 1, 4, 5, 61, 300, 70_000}) {
+      byte[] randomBytes = new byte[length];
+      random.nextBytes(randomBytes);
+      payloads.add(wrap(randomBytes, codec));
+      payloads.add(wrap(new byte[length], codec));
+    }
+    payloads.add(textPayload(codec));
+    return payloads;
+  }
+
+  private static ByteBuffer textPayload(ByteBufferPrimitiveCodec codec) {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      text.append("row ").append(i % 37).append(i % 3 == 0 ? " some text value" : " other");
+    }
+    return wrap(text.toString().getBytes(StandardCharsets.UTF_8), codec);
+  }
+
+  private static ByteBuffer wrap(byte[] bytes, ByteBufferPrimitiveCodec codec) {
+    ByteBuffer buffer = codec.allocate(bytes.length);
+    buffer.limit(bytes.length);
+    buffer.put(bytes).flip();
+    return buffer;
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017-2017 DataStax Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datastax.oss.protocol.internal.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class Crc24Test {
+
+  @Test
+  public void should_match_bitwise_implementation() {
+    Random random = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      long value = random.nextLong();
+      int length = random.nextInt(9);
+      assertThat(Crc24.compute(value, length)).isEqualTo(bitwise(value, length));
+    }
+  }
+
+  @Test
+  public void should_only_use_requested_bytes() {
+    assertThat(Crc24.compute(0xFF_000001L, 3)).isEqualTo(Crc24.compute(0x000001L, 3));
+    assertThat(Crc24.compute(0L, 0)).isEqualTo(0x875060);
+  }
+
+  // The reference algorithm from the protocol spec, one bit at a time
+  private static int bitwise(long value, int length) {
+    int crc = 0x875060;
+    while (length-- > 0) {
+      crc ^= (int) (value & 0xFF) << 16;
+      value >>= 8;
+      for (int i = 0; i < 8; i++) {
+        crc <<= 1;
+        if ((crc & 0x1000000) != 0) {
+          crc ^= 0x1974F0B;
+        }
+      }
+    }
+    return crc;
+  }
+}